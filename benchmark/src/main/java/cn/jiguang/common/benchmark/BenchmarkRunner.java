@@ -0,0 +1,37 @@
+package cn.jiguang.common.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * benchmarks.jar 的入口：依次以不同线程数（并发数）运行 HttpClientBenchmark，并开启 GC profiler 统计分配速率。
+ * <p>
+ * 线程数用 -Dthreads=1,8,32 指定，其余参数与 JMH 命令行一致，如
+ * java -Dthreads=1,16 -jar target/benchmarks.jar -p client=netty,http2 -p bodySize=4096
+ * 每个线程数的结果写入 jmh-result-t{n}.json。
+ */
+public class BenchmarkRunner {
+
+    private static final String DEFAULT_THREADS = "1,8,32";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        for (String threads : System.getProperty("threads", DEFAULT_THREADS).split(",")) {
+            int count = Integer.parseInt(threads.trim());
+            ChainedOptionsBuilder builder = new OptionsBuilder()
+                    .parent(cmdOptions)
+                    .threads(count)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-result-t" + count + ".json");
+            if (cmdOptions.getIncludes().isEmpty()) {
+                builder.include(HttpClientBenchmark.class.getSimpleName());
+            }
+            new Runner(builder.build()).run();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package cn.jiguang.common.benchmark;
+
+import cn.jiguang.common.ClientConfig;
+import cn.jiguang.common.connection.ApacheHttpClient;
+import cn.jiguang.common.connection.Http2Client;
+import cn.jiguang.common.connection.IHttpClient;
+import cn.jiguang.common.connection.NativeHttpClient;
+import cn.jiguang.common.connection.NettyHttpClient;
+import cn.jiguang.common.resp.ResponseWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较四种 IHttpClient 实现在 GET/POST/PUT/DELETE 上的吞吐量和延迟分布，请求发往进程内的 StubServer。
+ * <p>
+ * Throughput 给出吞吐量，SampleTime 给出 p50/p99 等分位延迟，配合 -prof gc 得到分配速率；
+ * 并发数由 JMH 的线程数决定，见 BenchmarkRunner。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpClientBenchmark {
+
+    private static final String AUTH_CODE = "Basic YmVuY2htYXJrOmJlbmNobWFyaw==";
+    private static final String PATH = "/v3/push";
+
+    @Param({"native", "apache", "netty", "http2"})
+    public String client;
+
+    /**
+     * http1 为明文 HTTP/1.1；h2 为 TLS 端口，支持 ALPN 时协商 h2，否则为 HTTPS/1.1
+     */
+    @Param({"http1", "h2"})
+    public String protocol;
+
+    /**
+     * POST/PUT 的请求体字节数，同时也是 GET 的响应体字节数
+     */
+    @Param({"128", "4096", "65536"})
+    public int bodySize;
+
+    private StubServer _server;
+    private IHttpClient _client;
+    private String _url;
+    private String _getUrl;
+    private String _body;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        _server = new StubServer();
+        _url = ("h2".equals(protocol) ? _server.getHttpsUrl() : _server.getHttpUrl()) + PATH;
+        _getUrl = _url + "?size=" + bodySize;
+        _body = body(bodySize);
+
+        ClientConfig config = ClientConfig.getInstance();
+        config.setMaxRetryTimes(0);
+        config.setMaxConnectionsPerHost(256);
+        config.setMaxConcurrentRequestsPerHost(256);
+        _client = newClient(client, config);
+        if (_client instanceof ApacheHttpClient) {
+            ((ApacheHttpClient) _client).setMaxHostConnection(_url, 256);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (_client instanceof ApacheHttpClient) {
+            ((ApacheHttpClient) _client).close();
+        } else if (_client instanceof NettyHttpClient) {
+            ((NettyHttpClient) _client).close();
+        } else if (_client instanceof Http2Client) {
+            ((Http2Client) _client).close();
+        }
+        _server.close();
+    }
+
+    @Benchmark
+    public ResponseWrapper get() throws Exception {
+        return _client.sendGet(_getUrl);
+    }
+
+    @Benchmark
+    public ResponseWrapper post() throws Exception {
+        return _client.sendPost(_url, _body);
+    }
+
+    @Benchmark
+    public ResponseWrapper put() throws Exception {
+        return _client.sendPut(_url, _body);
+    }
+
+    @Benchmark
+    public ResponseWrapper delete() throws Exception {
+        return _client.sendDelete(_url);
+    }
+
+    private static IHttpClient newClient(String name, ClientConfig config) {
+        if ("native".equals(name)) {
+            return new NativeHttpClient(AUTH_CODE, null, config);
+        } else if ("apache".equals(name)) {
+            return new ApacheHttpClient(AUTH_CODE, null, config);
+        } else if ("netty".equals(name)) {
+            return new NettyHttpClient(AUTH_CODE, null, config);
+        } else if ("http2".equals(name)) {
+            return new Http2Client(AUTH_CODE, null, config);
+        }
+        throw new IllegalArgumentException("Unknown client " + name);
+    }
+
+    /**
+     * 形如 {"platform":"all","pad":"xxx..."} 的 JSON，总长度为 size
+     */
+    private static String body(int size) {
+        String head = "{\"platform\":\"all\",\"pad\":\"";
+        String tail = "\"}";
+        char[] pad = new char[Math.max(0, size - head.length() - tail.length())];
+        Arrays.fill(pad, 'x');
+        return head + new String(pad) + tail;
+    }
+}
@@ -0,0 +1,275 @@
+package cn.jiguang.common.benchmark;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.InboundHttp2ToHttpAdapterBuilder;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 进程内的 HTTP 桩服务，供基准测试使用，不做任何业务处理。
+ * <p>
+ * 明文端口只支持 HTTP/1.1；TLS 端口通过 ALPN 协商 h2，协商不了时退回 HTTP/1.1。
+ * Netty 4.1 的 JDK ALPN 依赖 jetty alpn-boot，没有配置 -Xbootclasspath 时 TLS 端口只能跑 HTTP/1.1。
+ * <p>
+ * 所有请求返回 200 和一段 JSON，请求参数 size 指定响应体字节数，并带上 X-Rate-Limit-* 头。
+ */
+public class StubServer {
+
+    public static final String HOST = "localhost";
+
+    private static final int MAX_CONTENT_LENGTH = 16 * 1024 * 1024;
+    private static final int DEFAULT_RESPONSE_SIZE = 64;
+
+    private final EventLoopGroup _bossGroup = new NioEventLoopGroup(1);
+    private final EventLoopGroup _workerGroup = new NioEventLoopGroup();
+    private final StubHandler _handler = new StubHandler();
+    private final boolean _h2Supported;
+    private Channel _plainChannel;
+    private Channel _tlsChannel;
+
+    public StubServer() throws Exception {
+        final SelfSignedCertificate ssc = new SelfSignedCertificate(HOST);
+        installTrustStore(ssc);
+
+        SslContext sslCtx = newAlpnContext(ssc);
+        _h2Supported = null != sslCtx;
+        if (null == sslCtx) {
+            sslCtx = SslContextBuilder.forServer(ssc.certificate(), ssc.privateKey())
+                    .sslProvider(SslProvider.JDK)
+                    .build();
+        }
+        final SslContext tlsCtx = sslCtx;
+
+        _plainChannel = bind(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                configureHttp1(ch.pipeline());
+            }
+        });
+        _tlsChannel = bind(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                ch.pipeline().addLast(tlsCtx.newHandler(ch.alloc()));
+                if (_h2Supported) {
+                    ch.pipeline().addLast(new ProtocolNegotiationHandler());
+                } else {
+                    configureHttp1(ch.pipeline());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return 明文 HTTP/1.1 地址，如 http://localhost:12345
+     */
+    public String getHttpUrl() {
+        return "http://" + HOST + ":" + ((InetSocketAddress) _plainChannel.localAddress()).getPort();
+    }
+
+    /**
+     * @return TLS 地址，支持 ALPN 时可协商 h2
+     */
+    public String getHttpsUrl() {
+        return "https://" + HOST + ":" + ((InetSocketAddress) _tlsChannel.localAddress()).getPort();
+    }
+
+    public boolean isH2Supported() {
+        return _h2Supported;
+    }
+
+    public void close() {
+        _plainChannel.close().syncUninterruptibly();
+        _tlsChannel.close().syncUninterruptibly();
+        _bossGroup.shutdownGracefully();
+        _workerGroup.shutdownGracefully();
+    }
+
+    private Channel bind(ChannelInitializer<SocketChannel> initializer) throws InterruptedException {
+        return new ServerBootstrap()
+                .group(_bossGroup, _workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(initializer)
+                .bind(HOST, 0).sync().channel();
+    }
+
+    private void configureHttp1(ChannelPipeline pipeline) {
+        pipeline.addLast(new HttpServerCodec(),
+                new HttpObjectAggregator(MAX_CONTENT_LENGTH),
+                _handler);
+    }
+
+    private void configureHttp2(ChannelPipeline pipeline) {
+        DefaultHttp2Connection connection = new DefaultHttp2Connection(true);
+        pipeline.addLast(new HttpToHttp2ConnectionHandlerBuilder()
+                        .connection(connection)
+                        .frameListener(new InboundHttp2ToHttpAdapterBuilder(connection)
+                                .maxContentLength(MAX_CONTENT_LENGTH)
+                                .propagateSettings(false)
+                                .build())
+                        .build(),
+                _handler);
+    }
+
+    /**
+     * @return 支持 h2 的 SslContext，当前环境没有 ALPN 时返回 null
+     */
+    private static SslContext newAlpnContext(SelfSignedCertificate ssc) {
+        try {
+            SslContext sslCtx = SslContextBuilder.forServer(ssc.certificate(), ssc.privateKey())
+                    .sslProvider(SslProvider.JDK)
+                    .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                    .applicationProtocolConfig(new ApplicationProtocolConfig(
+                            ApplicationProtocolConfig.Protocol.ALPN,
+                            ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                            ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                            ApplicationProtocolNames.HTTP_2,
+                            ApplicationProtocolNames.HTTP_1_1))
+                    .build();
+            sslCtx.newEngine(ByteBufAllocator.DEFAULT);
+            return sslCtx;
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            // 没有 jetty alpn-boot
+            return null;
+        }
+    }
+
+    /**
+     * 把自签名证书写入临时 truststore 并设为 JVM 默认，OkHttp 和 Apache HttpClient 使用系统默认的信任库。
+     * 必须在第一次创建 TLS 连接之前调用。
+     */
+    private static void installTrustStore(SelfSignedCertificate ssc) throws Exception {
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry(HOST, ssc.cert());
+        File file = File.createTempFile("jiguang-benchmark", ".jks");
+        file.deleteOnExit();
+        char[] password = "benchmark".toCharArray();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            trustStore.store(out, password);
+        } finally {
+            out.close();
+        }
+        System.setProperty("javax.net.ssl.trustStore", file.getAbsolutePath());
+        System.setProperty("javax.net.ssl.trustStorePassword", new String(password));
+        System.setProperty("javax.net.ssl.trustStoreType", KeyStore.getDefaultType());
+    }
+
+    private class ProtocolNegotiationHandler extends ApplicationProtocolNegotiationHandler {
+
+        ProtocolNegotiationHandler() {
+            super(ApplicationProtocolNames.HTTP_1_1);
+        }
+
+        @Override
+        protected void configurePipeline(ChannelHandlerContext ctx, String protocol) throws Exception {
+            if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                configureHttp2(ctx.pipeline());
+            } else {
+                configureHttp1(ctx.pipeline());
+            }
+        }
+    }
+
+    @Sharable
+    private static class StubHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+        private final ConcurrentMap<Integer, byte[]> _bodies = new ConcurrentHashMap<Integer, byte[]>();
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    Unpooled.wrappedBuffer(body(responseSize(request))));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+            response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+            response.headers().set("X-Rate-Limit-Limit", "600");
+            response.headers().set("X-Rate-Limit-Remaining", "599");
+            response.headers().set("X-Rate-Limit-Reset", "60");
+            String streamId = request.headers().get(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text());
+            if (null != streamId) {
+                response.headers().set(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text(), streamId);
+                ctx.writeAndFlush(response);
+            } else if (HttpUtil.isKeepAlive(request)) {
+                ctx.writeAndFlush(response);
+            } else {
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.close();
+        }
+
+        private static int responseSize(FullHttpRequest request) {
+            List<String> size = new QueryStringDecoder(request.uri()).parameters().get("size");
+            if (null == size || size.isEmpty()) {
+                return DEFAULT_RESPONSE_SIZE;
+            }
+            return Integer.parseInt(size.get(0));
+        }
+
+        /**
+         * 形如 {"sendno":"0","msg_id":"1","pad":"xxx..."} 的 JSON，总长度为 size（不小于固定部分的长度）
+         */
+        private byte[] body(int size) {
+            byte[] body = _bodies.get(size);
+            if (null == body) {
+                byte[] head = "{\"sendno\":\"0\",\"msg_id\":\"1\",\"pad\":\"".getBytes();
+                byte[] tail = "\"}".getBytes();
+                body = new byte[Math.max(size, head.length + tail.length)];
+                Arrays.fill(body, (byte) 'x');
+                System.arraycopy(head, 0, body, 0, head.length);
+                System.arraycopy(tail, 0, body, body.length - tail.length, tail.length);
+                _bodies.putIfAbsent(size, body);
+            }
+            return body;
+        }
+    }
+}
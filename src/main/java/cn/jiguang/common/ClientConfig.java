@@ -1,5 +1,7 @@
 package cn.jiguang.common;
 
+import cn.jiguang.common.connection.RequestListener;
+
 import java.util.HashMap;
 
 public class ClientConfig extends HashMap<String, Object> {
@@ -84,6 +86,76 @@ public class ClientConfig extends HashMap<String, Object> {
     public static final Object MAX_RETRY_TIMES_SCHEMA = Integer.class;
     public static final int DEFULT_MAX_RETRY_TIMES = 3;
 
+    /**
+     * Max wait before the first retry, doubled for each following retry, see RetryPolicy.
+     * Time unit is millisecond. Default value is 100.
+     */
+    public static final String RETRY_BASE_DELAY = "retry.base.delay";
+    public static final Object RETRY_BASE_DELAY_SCHEMA = Integer.class;
+    public static final int DEFAULT_RETRY_BASE_DELAY = 100;
+
+    /**
+     * Upper bound of a single wait between retries. Time unit is millisecond.
+     * A 429 response whose X-Rate-Limit-Reset exceeds it will not be retried.
+     * Default value is 10 seconds.
+     */
+    public static final String RETRY_MAX_DELAY = "retry.max.delay";
+    public static final Object RETRY_MAX_DELAY_SCHEMA = Integer.class;
+    public static final int DEFAULT_RETRY_MAX_DELAY = 10 * 1000;
+
+    /**
+     * Retries of one client are capped to this share of its requests.
+     * Setting to 0, if you don't want to limit it.
+     * Default value is 0.1.
+     */
+    public static final String RETRY_BUDGET_RATIO = "retry.budget.ratio";
+    public static final Object RETRY_BUDGET_RATIO_SCHEMA = Double.class;
+    public static final double DEFAULT_RETRY_BUDGET_RATIO = 0.1;
+
+    /**
+     * Circuit breaker settings of CircuitBreakerHttpClient, applied to each target host.
+     * The breaker opens when the failure rate or slow call rate of the latest window size requests
+     * reaches the threshold, and lets probe requests through after the open duration.
+     * Default values: window size 100, failure rate 50%, slow call duration 10 seconds,
+     * slow call rate 80%, open duration 30 seconds.
+     */
+    public static final String CIRCUIT_BREAKER_WINDOW_SIZE = "circuit.breaker.window.size";
+    public static final Object CIRCUIT_BREAKER_WINDOW_SIZE_SCHEMA = Integer.class;
+    public static final int DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE = 100;
+
+    public static final String CIRCUIT_BREAKER_FAILURE_RATE = "circuit.breaker.failure.rate";
+    public static final Object CIRCUIT_BREAKER_FAILURE_RATE_SCHEMA = Integer.class;
+    public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE = 50;
+
+    public static final String CIRCUIT_BREAKER_SLOW_CALL_DURATION = "circuit.breaker.slow.call.duration";
+    public static final Object CIRCUIT_BREAKER_SLOW_CALL_DURATION_SCHEMA = Integer.class;
+    public static final int DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_DURATION = 10 * 1000;
+
+    public static final String CIRCUIT_BREAKER_SLOW_CALL_RATE = "circuit.breaker.slow.call.rate";
+    public static final Object CIRCUIT_BREAKER_SLOW_CALL_RATE_SCHEMA = Integer.class;
+    public static final int DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE = 80;
+
+    public static final String CIRCUIT_BREAKER_OPEN_DURATION = "circuit.breaker.open.duration";
+    public static final Object CIRCUIT_BREAKER_OPEN_DURATION_SCHEMA = Integer.class;
+    public static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = 30 * 1000;
+
+    /**
+     * Send Accept-Encoding: gzip, deflate and decode compressed responses transparently.
+     * Default value is true.
+     */
+    public static final String RESPONSE_COMPRESSION = "response.compression";
+    public static final Object RESPONSE_COMPRESSION_SCHEMA = Boolean.class;
+    public static final boolean DEFAULT_RESPONSE_COMPRESSION = true;
+
+    /**
+     * Request bodies not smaller than it are sent gzipped with Content-Encoding: gzip. Unit is byte.
+     * Setting to -1, if the server does not accept compressed requests.
+     * Default value is -1.
+     */
+    public static final String REQUEST_COMPRESSION_THRESHOLD = "request.compression.threshold";
+    public static final Object REQUEST_COMPRESSION_THRESHOLD_SCHEMA = Integer.class;
+    public static final int DEFAULT_REQUEST_COMPRESSION_THRESHOLD = -1;
+
     public static final String READ_TIMEOUT = "read.timeout";
     public static final Object READ_TIMEOUT_SCHEMA = Integer.class;
     public static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
@@ -100,6 +172,33 @@ public class ClientConfig extends HashMap<String, Object> {
     public static final Object SOCKET_TIMEOUT_SCHEMA = Integer.class;
     public static final int DEFAULT_SOCKET_TIMEOUT = 10 * 1000;
 
+    public static final String MAX_CONNECTIONS_PER_HOST = "max.connections.per.host";
+    public static final Object MAX_CONNECTIONS_PER_HOST_SCHEMA = Integer.class;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 40;
+
+    public static final String MAX_IDLE_CONNECTIONS = "max.idle.connections";
+    public static final Object MAX_IDLE_CONNECTIONS_SCHEMA = Integer.class;
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 40;
+
+    public static final String CONNECTION_IDLE_TIMEOUT = "connection.idle.timeout";
+    public static final Object CONNECTION_IDLE_TIMEOUT_SCHEMA = Integer.class;
+    public static final int DEFAULT_CONNECTION_IDLE_TIMEOUT = 60 * 1000;
+
+    public static final String MAX_CONCURRENT_REQUESTS = "max.concurrent.requests";
+    public static final Object MAX_CONCURRENT_REQUESTS_SCHEMA = Integer.class;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 256;
+
+    public static final String MAX_CONCURRENT_REQUESTS_PER_HOST = "max.concurrent.requests.per.host";
+    public static final Object MAX_CONCURRENT_REQUESTS_PER_HOST_SCHEMA = Integer.class;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST = 64;
+
+    /**
+     * Listener notified of every request's timing, see RequestListener.
+     * Default value is null, no metrics are collected.
+     */
+    public static final String REQUEST_LISTENER = "request.listener";
+    public static final Object REQUEST_LISTENER_SCHEMA = RequestListener.class;
+
     /**
      * Global APNs environment setting.
      * Setting to -1, if you want to use PushPayload Options.
@@ -169,10 +268,25 @@ public class ClientConfig extends HashMap<String, Object> {
 
         this.put(SSL_VERSION, DEFAULT_SSL_VERSION);
         this.put(MAX_RETRY_TIMES, DEFULT_MAX_RETRY_TIMES);
+        this.put(RETRY_BASE_DELAY, DEFAULT_RETRY_BASE_DELAY);
+        this.put(RETRY_MAX_DELAY, DEFAULT_RETRY_MAX_DELAY);
+        this.put(RETRY_BUDGET_RATIO, DEFAULT_RETRY_BUDGET_RATIO);
+        this.put(CIRCUIT_BREAKER_WINDOW_SIZE, DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE);
+        this.put(CIRCUIT_BREAKER_FAILURE_RATE, DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE);
+        this.put(CIRCUIT_BREAKER_SLOW_CALL_DURATION, DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_DURATION);
+        this.put(CIRCUIT_BREAKER_SLOW_CALL_RATE, DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE);
+        this.put(CIRCUIT_BREAKER_OPEN_DURATION, DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION);
+        this.put(RESPONSE_COMPRESSION, DEFAULT_RESPONSE_COMPRESSION);
+        this.put(REQUEST_COMPRESSION_THRESHOLD, DEFAULT_REQUEST_COMPRESSION_THRESHOLD);
         this.put(READ_TIMEOUT, DEFAULT_READ_TIMEOUT);
         this.put(CONNECTION_REQUEST_TIMEOUT, DEFAULT_CONNECTION_REQUEST_TIMEOUT);
         this.put(CONNECTION_TIMEOUT, DEFAULT_CONNECTION_TIMEOUT);
         this.put(SOCKET_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+        this.put(MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        this.put(MAX_IDLE_CONNECTIONS, DEFAULT_MAX_IDLE_CONNECTIONS);
+        this.put(CONNECTION_IDLE_TIMEOUT, DEFAULT_CONNECTION_IDLE_TIMEOUT);
+        this.put(MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_CONCURRENT_REQUESTS);
+        this.put(MAX_CONCURRENT_REQUESTS_PER_HOST, DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST);
 
         this.put(APNS_PRODUCTION, DEFAULT_APNS_PRODUCTION);
         this.put(TIME_TO_LIVE, DEFAULT_TIME_TO_LIVE);
@@ -220,6 +334,68 @@ public class ClientConfig extends HashMap<String, Object> {
         this.put(MAX_RETRY_TIMES, maxRetryTimes);
     }
 
+    /**
+     * Setup the exponential backoff between retries, see RetryPolicy.
+     * @param baseDelay max wait before the first retry, default is 100 milliseconds
+     * @param maxDelay upper bound of a single wait, default is 10 seconds
+     */
+    public void setRetryDelay(int baseDelay, int maxDelay) {
+        this.put(RETRY_BASE_DELAY, baseDelay);
+        this.put(RETRY_MAX_DELAY, maxDelay);
+    }
+
+    /**
+     * @param ratio max share of retries in all requests of a client, default is 0.1, 0 to disable the limit
+     */
+    public void setRetryBudgetRatio(double ratio) {
+        this.put(RETRY_BUDGET_RATIO, ratio);
+    }
+
+    /**
+     * @param windowSize how many latest requests of a host the circuit breaker counts, default is 100
+     */
+    public void setCircuitBreakerWindowSize(int windowSize) {
+        this.put(CIRCUIT_BREAKER_WINDOW_SIZE, windowSize);
+    }
+
+    /**
+     * @param failureRate percentage of connection errors and 5xx to open the circuit breaker, default is 50
+     */
+    public void setCircuitBreakerFailureRate(int failureRate) {
+        this.put(CIRCUIT_BREAKER_FAILURE_RATE, failureRate);
+    }
+
+    /**
+     * @param duration requests taking longer than it are slow calls, time unit is millisecond, default is 10 seconds
+     * @param slowCallRate percentage of slow calls to open the circuit breaker, default is 80
+     */
+    public void setCircuitBreakerSlowCall(int duration, int slowCallRate) {
+        this.put(CIRCUIT_BREAKER_SLOW_CALL_DURATION, duration);
+        this.put(CIRCUIT_BREAKER_SLOW_CALL_RATE, slowCallRate);
+    }
+
+    /**
+     * @param openDuration how long the circuit breaker fails fast before probing, time unit is millisecond,
+     *                     default is 30 seconds
+     */
+    public void setCircuitBreakerOpenDuration(int openDuration) {
+        this.put(CIRCUIT_BREAKER_OPEN_DURATION, openDuration);
+    }
+
+    /**
+     * @param enabled whether to accept gzip and deflate compressed responses, default is true
+     */
+    public void setResponseCompression(boolean enabled) {
+        this.put(RESPONSE_COMPRESSION, enabled);
+    }
+
+    /**
+     * @param threshold request bodies not smaller than it are gzipped, unit is byte, -1 to disable, default is -1
+     */
+    public void setRequestCompressionThreshold(int threshold) {
+        this.put(REQUEST_COMPRESSION_THRESHOLD, threshold);
+    }
+
     public void setReadTimeout(int readTimeout) {
         this.put(READ_TIMEOUT, readTimeout);
     }
@@ -240,6 +416,56 @@ public class ClientConfig extends HashMap<String, Object> {
         this.put(SOCKET_TIMEOUT, socketTimeout);
     }
 
+    /**
+     * Max pooled keep-alive connections to a single host. Not used by Http2Client, whose pool only limits idle
+     * connections across all hosts, see {@link #setMaxIdleConnections(int)}.
+     * @param count the connection count, default is 40
+     */
+    public void setMaxConnectionsPerHost(int count) {
+        this.put(MAX_CONNECTIONS_PER_HOST, count);
+    }
+
+    /**
+     * Max idle keep-alive connections kept in Http2Client's pool, across all hosts.
+     * @param count the connection count, default is 40
+     */
+    public void setMaxIdleConnections(int count) {
+        this.put(MAX_IDLE_CONNECTIONS, count);
+    }
+
+    /**
+     * Pooled connections idle longer than this will be closed. Time unit is millisecond.
+     * @param idleTimeout the idle timeout, default is 60 seconds
+     */
+    public void setConnectionIdleTimeout(int idleTimeout) {
+        this.put(CONNECTION_IDLE_TIMEOUT, idleTimeout);
+    }
+
+    /**
+     * Max in-flight async requests of one client, used by Http2Client's dispatcher.
+     * @param count the request count, default is 256
+     */
+    public void setMaxConcurrentRequests(int count) {
+        this.put(MAX_CONCURRENT_REQUESTS, count);
+    }
+
+    /**
+     * Max in-flight async requests to a single host, used by Http2Client's dispatcher.
+     * With HTTP/2 these requests share one connection as concurrent streams.
+     * @param count the request count, default is 64
+     */
+    public void setMaxConcurrentRequestsPerHost(int count) {
+        this.put(MAX_CONCURRENT_REQUESTS_PER_HOST, count);
+    }
+
+    /**
+     * Setup a listener to collect timing and traffic of every request, e.g. MetricsRequestListener.
+     * @param listener the listener, null to disable
+     */
+    public void setRequestListener(RequestListener listener) {
+        this.put(REQUEST_LISTENER, listener);
+    }
+
     public String getSSLVersion() {
         return (String) this.get(SSL_VERSION);
     }
@@ -248,6 +474,46 @@ public class ClientConfig extends HashMap<String, Object> {
         return (Integer) this.get(MAX_RETRY_TIMES);
     }
 
+    public Integer getRetryBaseDelay() {
+        return (Integer) this.get(RETRY_BASE_DELAY);
+    }
+
+    public Integer getRetryMaxDelay() {
+        return (Integer) this.get(RETRY_MAX_DELAY);
+    }
+
+    public Double getRetryBudgetRatio() {
+        return (Double) this.get(RETRY_BUDGET_RATIO);
+    }
+
+    public Integer getCircuitBreakerWindowSize() {
+        return (Integer) this.get(CIRCUIT_BREAKER_WINDOW_SIZE);
+    }
+
+    public Integer getCircuitBreakerFailureRate() {
+        return (Integer) this.get(CIRCUIT_BREAKER_FAILURE_RATE);
+    }
+
+    public Integer getCircuitBreakerSlowCallDuration() {
+        return (Integer) this.get(CIRCUIT_BREAKER_SLOW_CALL_DURATION);
+    }
+
+    public Integer getCircuitBreakerSlowCallRate() {
+        return (Integer) this.get(CIRCUIT_BREAKER_SLOW_CALL_RATE);
+    }
+
+    public Integer getCircuitBreakerOpenDuration() {
+        return (Integer) this.get(CIRCUIT_BREAKER_OPEN_DURATION);
+    }
+
+    public Boolean getResponseCompression() {
+        return (Boolean) this.get(RESPONSE_COMPRESSION);
+    }
+
+    public Integer getRequestCompressionThreshold() {
+        return (Integer) this.get(REQUEST_COMPRESSION_THRESHOLD);
+    }
+
     public Integer getReadTimeout() {
         return (Integer) this.get(READ_TIMEOUT);
     }
@@ -264,6 +530,30 @@ public class ClientConfig extends HashMap<String, Object> {
         return (Integer) this.get(SOCKET_TIMEOUT);
     }
 
+    public Integer getMaxConnectionsPerHost() {
+        return (Integer) this.get(MAX_CONNECTIONS_PER_HOST);
+    }
+
+    public Integer getMaxIdleConnections() {
+        return (Integer) this.get(MAX_IDLE_CONNECTIONS);
+    }
+
+    public Integer getConnectionIdleTimeout() {
+        return (Integer) this.get(CONNECTION_IDLE_TIMEOUT);
+    }
+
+    public Integer getMaxConcurrentRequests() {
+        return (Integer) this.get(MAX_CONCURRENT_REQUESTS);
+    }
+
+    public Integer getMaxConcurrentRequestsPerHost() {
+        return (Integer) this.get(MAX_CONCURRENT_REQUESTS_PER_HOST);
+    }
+
+    public RequestListener getRequestListener() {
+        return (RequestListener) this.get(REQUEST_LISTENER);
+    }
+
     public String getEncryptType() {
         return (String) this.get(ENCRYPT_TYPE);
     }
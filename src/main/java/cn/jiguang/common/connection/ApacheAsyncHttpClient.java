@@ -0,0 +1,222 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.ClientConfig;
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.ResponseWrapper;
+import cn.jiguang.common.utils.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.text.MessageFormat;
+import java.util.concurrent.Future;
+
+/**
+ * Apache HttpAsyncClient 实现的版本，基于 NIO，少量 IO 线程即可同时维持大量请求。
+ * <p>
+ * 需要额外引入 org.apache.httpcomponents:httpasyncclient 依赖。同步接口也由异步请求实现，失败时按 RetryPolicy 重试，
+ * 用完后请调用 close 释放 IO 线程和连接。
+ */
+public class ApacheAsyncHttpClient implements IHttpClient, IAsyncHttpClient {
+
+    private static Logger LOG = LoggerFactory.getLogger(ApacheAsyncHttpClient.class);
+
+    // 最大连接数
+    private static final int MAX_CONNECTION_COUNT = 200;
+
+    private final CloseableHttpAsyncClient _httpClient;
+    private final RequestListener _listener;
+    private final RetryPolicy _retryPolicy;
+    private final int _requestCompressionThreshold;
+    // 每个请求相同的请求头，创建时计算一次
+    private final Header[] _headers;
+    private final Header[] _jsonHeaders;
+
+    public ApacheAsyncHttpClient(String authCode, HttpProxy proxy, ClientConfig config) {
+        _listener = config.getRequestListener();
+        _retryPolicy = new RetryPolicy(config);
+        _requestCompressionThreshold = config.getRequestCompressionThreshold();
+        _headers = ApacheHttpClient.buildHeaders(authCode, config.getEncryptType(), config.getResponseCompression(),
+                false);
+        _jsonHeaders = ApacheHttpClient.buildHeaders(authCode, config.getEncryptType(),
+                config.getResponseCompression(), true);
+        int maxConnectionPerRoute = config.getMaxConnectionsPerHost();
+        String message = MessageFormat.format("Created instance with "
+                        + "connectionTimeout {0}, socketTimeout {1}, maxConnectionPerRoute {2}",
+                config.getConnectionTimeout(), config.getSocketTimeout(), maxConnectionPerRoute);
+        LOG.debug(message);
+
+        RequestConfig.Builder requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(config.getConnectionRequestTimeout())
+                .setConnectTimeout(config.getConnectionTimeout())
+                .setSocketTimeout(config.getSocketTimeout());
+        if (proxy != null) {
+            requestConfig.setProxy(new HttpHost(proxy.getHost(), proxy.getPort()));
+        }
+        _httpClient = HttpAsyncClients.custom()
+                .setMaxConnTotal(MAX_CONNECTION_COUNT)
+                .setMaxConnPerRoute(maxConnectionPerRoute)
+                .setDefaultRequestConfig(requestConfig.build())
+                .build();
+        _httpClient.start();
+    }
+
+    @Override
+    public ResponseWrapper sendGet(String url) throws APIConnectionException, APIRequestException {
+        return sendGetAsync(url).getResponse();
+    }
+
+    @Override
+    public ResponseWrapper sendGet(String url, String content) throws APIConnectionException, APIRequestException {
+        return sendGetAsync(url, content).getResponse();
+    }
+
+    @Override
+    public ResponseWrapper sendDelete(String url) throws APIConnectionException, APIRequestException {
+        return sendDeleteAsync(url).getResponse();
+    }
+
+    @Override
+    public ResponseWrapper sendDelete(String url, String content) throws APIConnectionException, APIRequestException {
+        return sendDeleteAsync(url, content).getResponse();
+    }
+
+    @Override
+    public ResponseWrapper sendPost(String url, String content) throws APIConnectionException, APIRequestException {
+        return sendPostAsync(url, content).getResponse();
+    }
+
+    @Override
+    public ResponseWrapper sendPut(String url, String content) throws APIConnectionException, APIRequestException {
+        return sendPutAsync(url, content).getResponse();
+    }
+
+    @Override
+    public ResponseFuture sendGetAsync(String url) {
+        return execute(new HttpGet(url), null);
+    }
+
+    @Override
+    public ResponseFuture sendGetAsync(String url, String content) {
+        return execute(new HttpGet(url), null);
+    }
+
+    @Override
+    public ResponseFuture sendDeleteAsync(String url) {
+        return execute(new HttpDelete(url), null);
+    }
+
+    @Override
+    public ResponseFuture sendDeleteAsync(String url, String content) {
+        return execute(new HttpDeleteWithBody(url), content);
+    }
+
+    @Override
+    public ResponseFuture sendPostAsync(String url, String content) {
+        return execute(new HttpPost(url), content);
+    }
+
+    @Override
+    public ResponseFuture sendPutAsync(String url, String content) {
+        return execute(new HttpPut(url), content);
+    }
+
+    private ResponseFuture execute(final HttpRequestBase request, String content) {
+        LOG.debug("Send request - " + request.getMethod() + " " + request.getURI());
+        if (request instanceof HttpEntityEnclosingRequestBase) {
+            request.setHeaders(_jsonHeaders);
+            ((HttpEntityEnclosingRequestBase) request).setEntity(
+                    new StringEntity(StringUtils.notNull(content), CHARSET));
+        } else {
+            request.setHeaders(_headers);
+        }
+        ApacheHttpClient.encodeRequest(request, _requestCompressionThreshold);
+        // 异步版本只能统计总耗时、响应码和字节数
+        final RequestMetrics metrics = RequestMetrics.start(_listener, request.getMethod(), request.getURI().toString());
+        return _retryPolicy.executeAsync(RetryPolicy.isIdempotent(request.getMethod()), new RetryPolicy.AsyncRequest() {
+            @Override
+            public ResponseFuture send(int retryTimes) {
+                if (retryTimes > 0) {
+                    request.reset();
+                }
+                return executeOnce(request, metrics);
+            }
+        }, metrics);
+    }
+
+    /**
+     * @param metrics 整个调用共用的统计，由 RetryPolicy 在最后一次请求完成时结束，可以为 null
+     */
+    private ResponseFuture executeOnce(HttpRequestBase request, final RequestMetrics metrics) {
+        if (null != metrics && request instanceof HttpEntityEnclosingRequestBase) {
+            metrics.setBytesSent(((HttpEntityEnclosingRequestBase) request).getEntity().getContentLength());
+        }
+        final ResponseFuture responseFuture = new ResponseFuture();
+        final Future<HttpResponse> future = _httpClient.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                ResponseWrapper wrapper = new ResponseWrapper();
+                try {
+                    ApacheHttpClient.handleResponse(response, wrapper, metrics);
+                    responseFuture.complete(wrapper);
+                } catch (APIRequestException e) {
+                    responseFuture.fail(e);
+                } catch (IOException e) {
+                    responseFuture.fail(toConnectionException(e));
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                responseFuture.fail(toConnectionException(e));
+            }
+
+            @Override
+            public void cancelled() {
+                responseFuture.cancel(false);
+            }
+        });
+        responseFuture.setCancelHandler(new Runnable() {
+            @Override
+            public void run() {
+                future.cancel(true);
+            }
+        });
+        return responseFuture;
+    }
+
+    private static APIConnectionException toConnectionException(Exception e) {
+        LOG.debug(IO_ERROR_MESSAGE, e);
+        if (e instanceof ConnectTimeoutException) {
+            return new APIConnectionException(CONNECT_TIMED_OUT_MESSAGE, e);
+        } else if (e instanceof SocketTimeoutException) {
+            return new APIConnectionException(READ_TIMED_OUT_MESSAGE, e, true);
+        }
+        return new APIConnectionException(IO_ERROR_MESSAGE, e);
+    }
+
+    public void close() {
+        try {
+            _httpClient.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
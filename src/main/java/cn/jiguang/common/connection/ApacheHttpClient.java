@@ -7,7 +7,6 @@ import cn.jiguang.common.resp.ResponseWrapper;
 import cn.jiguang.common.utils.StringUtils;
 
 import org.apache.http.*;
-import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.*;
 import org.apache.http.client.protocol.HttpClientContext;
@@ -19,40 +18,45 @@ import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.protocol.HttpContext;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.SSLException;
-import javax.net.ssl.SSLHandshakeException;
 import java.io.*;
 import java.net.URI;
-import java.net.UnknownHostException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Apache HttpClient 实现的版本，提供了连接池来实现高并发网络请求。
+ * <p>
+ * 每个实例有独立的连接池；ClientConfig 中配置的 push、device、report、schedule 主机各自使用目标主机的最大连接数，
+ * 其他主机使用每个路由的最大连接数。连接数的设置在创建后调用也会立即生效。
  */
-public class ApacheHttpClient implements IHttpClient {
+public class ApacheHttpClient implements IHttpClient, IStreamingHttpClient, IBinaryHttpClient, IMultiTenantHttpClient {
 
     private static Logger LOG = LoggerFactory.getLogger(ApacheHttpClient.class);
 
-    private static CloseableHttpClient _httpClient = null;
-    private static PoolingHttpClientConnectionManager _cm;
-    private final static Object syncLock = new Object();
+    private final CloseableHttpClient _httpClient;
+    private final PoolingHttpClientConnectionManager _cm;
+    // ClientConfig 中配置的目标主机
+    private final Set<HttpRoute> _hostRoutes = new LinkedHashSet<HttpRoute>();
     private final int _connectionTimeout;
     private final int _connectionRequestTimeout;
     private final int _socketTimeout;
-    private final int _maxRetryTimes;
-    private String _authCode;
     private HttpHost _proxy;
     // 最大连接数
     private int _maxConnectionCount = 200;
@@ -61,57 +65,80 @@ public class ApacheHttpClient implements IHttpClient {
     // 目标主机的最大连接数
     private int _maxRoute = 100;
 
+    private final RequestListener _listener;
+    private final RetryPolicy _retryPolicy;
+    private final int _requestCompressionThreshold;
+    private final RequestConfig _requestConfig;
+
+    // 每个请求相同的请求头，创建时计算一次；Header 不可变，所有请求共用
+    private final Header[] _headers;
+    private final Header[] _jsonHeaders;
     private final String _encryptType;
+    private final boolean _responseCompression;
+
+    private static final Header JSON_CONTENT_TYPE_HEADER = new BasicHeader(HttpHeaders.CONTENT_TYPE, CONTENT_TYPE_JSON);
+    private static final Header ACCEPT_ENCODING_HEADER = new BasicHeader(HttpHeaders.ACCEPT_ENCODING, Compression.ACCEPT_ENCODING);
 
     public ApacheHttpClient(String authCode, HttpProxy proxy, ClientConfig config) {
-        _maxRetryTimes = config.getMaxRetryTimes();
         _connectionTimeout = config.getConnectionTimeout();
         _connectionRequestTimeout = config.getConnectionRequestTimeout();
         _socketTimeout = config.getSocketTimeout();
-        _authCode = authCode;
-        _encryptType = config.getEncryptType();
+        _listener = config.getRequestListener();
+        _retryPolicy = new RetryPolicy(config);
+        _requestCompressionThreshold = config.getRequestCompressionThreshold();
         if (proxy != null) {
             _proxy = new HttpHost(proxy.getHost(), proxy.getPort());
         }
+        _requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(_connectionRequestTimeout)
+                .setConnectTimeout(_connectionTimeout)
+                .setSocketTimeout(_socketTimeout)
+                .setProxy(_proxy)
+                .build();
+        _encryptType = config.getEncryptType();
+        _responseCompression = config.getResponseCompression();
+        _headers = buildHeaders(authCode, _encryptType, _responseCompression, false);
+        _jsonHeaders = buildHeaders(authCode, _encryptType, _responseCompression, true);
+        String[] hostNames = {ClientConfig.PUSH_HOST_NAME, ClientConfig.DEVICE_HOST_NAME,
+                ClientConfig.REPORT_HOST_NAME, ClientConfig.SCHEDULE_HOST_NAME};
+        for (String hostName : hostNames) {
+            Object host = config.get(hostName);
+            if (host instanceof String && !StringUtils.isEmpty((String) host)) {
+                _hostRoutes.add(toRoute((String) host));
+            }
+        }
+        _cm = createConnectionManager();
+        _httpClient = createHttpClient();
     }
 
     private void configHttpRequest(HttpRequestBase httpRequestBase) {
-        RequestConfig requestConfig;
-        if (_proxy != null) {
-            requestConfig = RequestConfig.custom()
-                    .setConnectionRequestTimeout(_connectionRequestTimeout)
-                    .setConnectTimeout(_connectionTimeout)
-                    .setSocketTimeout(_socketTimeout)
-                    .setProxy(_proxy)
-                    .build();
-        } else {
-            requestConfig = RequestConfig.custom()
-                    .setConnectionRequestTimeout(_connectionRequestTimeout)
-                    .setConnectTimeout(_connectionTimeout)
-                    .setSocketTimeout(_socketTimeout)
-                    .build();
-        }
-
-        httpRequestBase.setConfig(requestConfig);
+        httpRequestBase.setConfig(_requestConfig);
     }
 
-    public CloseableHttpClient getHttpClient(String url) {
-        String hostname = url.split("/")[2];
-        int port = 80;
-        if (hostname.contains(":")) {
-            String[] arr = hostname.split(":");
-            hostname = arr[0];
-            port = Integer.parseInt(arr[1]);
+    /**
+     * 每个请求相同的请求头，同步和异步版本共用。请求体固定为 UTF-8 的 JSON，不发送 Accept-Charset 和 Charset；
+     * Connection 由连接池处理。
+     * @param json 是否有 JSON 请求体
+     */
+    static Header[] buildHeaders(String authCode, String encryptType, boolean responseCompression, boolean json) {
+        List<Header> headers = new ArrayList<Header>(4);
+        if (null != authCode) {
+            headers.add(new BasicHeader(HttpHeaders.AUTHORIZATION, authCode));
         }
-        if (_httpClient == null) {
-            synchronized (syncLock) {
-                if (_httpClient == null) {
-                    _httpClient = createHttpClient(_maxConnectionCount, _maxConnectionPerRoute, _maxRoute, hostname, port);
-                }
-            }
+        if (!StringUtils.isEmpty(encryptType)) {
+            headers.add(new BasicHeader("X-Encrypt-Type", encryptType));
         }
-        return _httpClient;
+        if (json) {
+            headers.add(JSON_CONTENT_TYPE_HEADER);
+        }
+        if (responseCompression) {
+            headers.add(ACCEPT_ENCODING_HEADER);
+        }
+        return headers.toArray(new Header[headers.size()]);
+    }
 
+    public CloseableHttpClient getHttpClient(String url) {
+        return _httpClient;
     }
 
     /**
@@ -120,6 +147,7 @@ public class ApacheHttpClient implements IHttpClient {
      */
     public void setMaxConnectionCount(int count) {
         this._maxConnectionCount = count;
+        _cm.setMaxTotal(count);
     }
 
     /**
@@ -128,250 +156,277 @@ public class ApacheHttpClient implements IHttpClient {
      */
     public void setMaxConnectionPerRoute(int count) {
         this._maxConnectionPerRoute = count;
+        _cm.setDefaultMaxPerRoute(count);
     }
 
     /**
-     * 设置目标主机最大连接数
+     * 设置目标主机最大连接数，对 ClientConfig 中配置的所有主机生效
      * @param count 连接数
      */
     public void setMaxHostConnection(int count) {
         this._maxRoute = count;
+        for (HttpRoute route : _hostRoutes) {
+            _cm.setMaxPerRoute(route, count);
+        }
     }
 
-    public CloseableHttpClient createHttpClient(int maxTotal, int maxPerRoute, int maxRoute,
-                                                String hostname, int port) {
-        ConnectionSocketFactory plainsf = PlainConnectionSocketFactory
-                .getSocketFactory();
-        LayeredConnectionSocketFactory sslsf = SSLConnectionSocketFactory
-                .getSocketFactory();
-        Registry<ConnectionSocketFactory> registry = RegistryBuilder
-                .<ConnectionSocketFactory>create().register("http", plainsf)
-                .register("https", sslsf).build();
-        _cm = new PoolingHttpClientConnectionManager(
-                registry);
+    /**
+     * 单独设置某个主机的最大连接数，用于按业务区分连接池大小
+     * @param host 主机地址，如 https://report.jpush.cn
+     * @param count 连接数
+     */
+    public void setMaxHostConnection(String host, int count) {
+        _cm.setMaxPerRoute(toRoute(host), count);
+    }
+
+    private PoolingHttpClientConnectionManager createConnectionManager() {
+        PoolingHttpClientConnectionManager cm;
+        if (null != _listener) {
+            cm = new PoolingHttpClientConnectionManager(ApacheRequestMetrics.socketFactoryRegistry(),
+                    new ApacheRequestMetrics.TimedDnsResolver());
+        } else {
+            ConnectionSocketFactory plainsf = PlainConnectionSocketFactory
+                    .getSocketFactory();
+            LayeredConnectionSocketFactory sslsf = SSLConnectionSocketFactory
+                    .getSocketFactory();
+            Registry<ConnectionSocketFactory> registry = RegistryBuilder
+                    .<ConnectionSocketFactory>create().register("http", plainsf)
+                    .register("https", sslsf).build();
+            cm = new PoolingHttpClientConnectionManager(registry);
+        }
         // 将最大连接数增加
-        _cm.setMaxTotal(maxTotal);
+        cm.setMaxTotal(_maxConnectionCount);
         // 将每个路由基础的连接增加
-        _cm.setDefaultMaxPerRoute(maxPerRoute);
-        HttpHost httpHost = new HttpHost(hostname, port);
+        cm.setDefaultMaxPerRoute(_maxConnectionPerRoute);
         // 将目标主机的最大连接数增加
-        _cm.setMaxPerRoute(new HttpRoute(httpHost), maxRoute);
-
-        // 请求重试处理
-        HttpRequestRetryHandler httpRequestRetryHandler = new HttpRequestRetryHandler() {
-            public boolean retryRequest(IOException exception,
-                                        int executionCount, HttpContext context) {
-                if (executionCount >= _maxRetryTimes) {
-                    return false;
-                }
-                if (exception instanceof NoHttpResponseException) {// 如果服务器丢掉了连接，那么就重试
-                    return true;
-                }
-                if (exception instanceof SSLHandshakeException) {// 不要重试SSL握手异常
-                    return false;
-                }
-                if (exception instanceof InterruptedIOException) {// 超时
-                    return false;
-                }
-                if (exception instanceof UnknownHostException) {// 目标服务器不可达
-                    return false;
-                }
-                if (exception instanceof ConnectTimeoutException) {// 连接被拒绝
-                    return false;
-                }
-                if (exception instanceof SSLException) {// SSL握手异常
-                    return false;
-                }
+        for (HttpRoute route : _hostRoutes) {
+            cm.setMaxPerRoute(route, _maxRoute);
+        }
+        return cm;
+    }
 
-                HttpClientContext clientContext = HttpClientContext
-                        .adapt(context);
-                HttpRequest request = clientContext.getRequest();
-                // 如果请求是幂等的，就再次尝试
-                if (!(request instanceof HttpEntityEnclosingRequest)) {
-                    return true;
-                }
-                return false;
-            }
-        };
+    /**
+     * 与 HttpClient 的路由规划保持一致：端口补全为默认端口，https 为安全路由，有代理时经过代理。
+     */
+    private HttpRoute toRoute(String host) {
+        URI uri = URI.create(host);
+        String scheme = uri.getScheme() == null ? "http" : uri.getScheme();
+        boolean secure = "https".equalsIgnoreCase(scheme);
+        int port = uri.getPort();
+        if (port == -1) {
+            port = secure ? 443 : 80;
+        }
+        HttpHost target = new HttpHost(uri.getHost(), port, scheme);
+        if (_proxy != null) {
+            return new HttpRoute(target, null, _proxy, secure);
+        }
+        return new HttpRoute(target, null, secure);
+    }
 
-        CloseableHttpClient httpClient = HttpClients.custom()
+    /**
+     * 重试由 RetryPolicy 统一处理，关闭 HttpClient 自带的重试
+     */
+    private CloseableHttpClient createHttpClient() {
+        HttpClientBuilder builder = HttpClients.custom()
                 .setConnectionManager(_cm)
-                .setRetryHandler(httpRequestRetryHandler).build();
-
-        return httpClient;
+                .disableAutomaticRetries()
+                .disableContentCompression();
+        if (null != _listener) {
+            builder.setRequestExecutor(new ApacheRequestMetrics.TimedRequestExecutor());
+        }
+        return builder.build();
 
     }
 
 
     @Override
     public ResponseWrapper sendGet(String url) throws APIConnectionException, APIRequestException {
-        ResponseWrapper wrapper = new ResponseWrapper();
-        CloseableHttpResponse response = null;
         HttpGet httpGet = new HttpGet(url);
-        try {
-            httpGet.setHeader(HttpHeaders.AUTHORIZATION, _authCode);
-            if (!StringUtils.isEmpty(_encryptType)) {
-                httpGet.setHeader("X-Encrypt-Type", _encryptType);
-            }
-            configHttpRequest(httpGet);
-            response = getHttpClient(url).execute(httpGet, HttpClientContext.create());
-            processResponse(response, wrapper);
-        } catch (IOException e) {
-            httpGet.abort();
-            LOG.debug(IO_ERROR_MESSAGE, e);
-            throw new APIConnectionException(READ_TIMED_OUT_MESSAGE, e, true);
-        } finally {
-            try {
-                if (response != null) {
-                    response.close();
-                }
-            } catch (IOException e) {
-            	 e.printStackTrace();
-            }
-        }
-        return wrapper;
-
+        httpGet.setHeaders(_headers);
+        return execute(httpGet);
     }
 
     public ResponseWrapper sendGet(String url, String content)
             throws APIConnectionException, APIRequestException {
-        ResponseWrapper wrapper = new ResponseWrapper();
-        CloseableHttpResponse response = null;
-        HttpGet httpGet = new HttpGet(url);
-        try {
-            httpGet.setHeader(HttpHeaders.AUTHORIZATION, _authCode);
-            if (!StringUtils.isEmpty(_encryptType)) {
-                httpGet.setHeader("X-Encrypt-Type", _encryptType);
-            }
-            httpGet.setHeader("Content-Type", NativeHttpClient.CONTENT_TYPE_JSON);
-            configHttpRequest(httpGet);
-            response = getHttpClient(url).execute(httpGet, HttpClientContext.create());
-            processResponse(response, wrapper);
-        } catch (IOException e) {
-            httpGet.abort();
-            LOG.debug(IO_ERROR_MESSAGE, e);
-            throw new APIConnectionException(READ_TIMED_OUT_MESSAGE, e, true);
-        } finally {
-            try {
-                if (response != null) {
-                    response.close();
-                }
-            } catch (IOException e) {
-            	 e.printStackTrace();
-            }
-        }
-        return wrapper;
+        return sendGet(url);
     }
 
     @Override
     public ResponseWrapper sendDelete(String url) throws APIConnectionException, APIRequestException {
-        ResponseWrapper wrapper = new ResponseWrapper();
-        CloseableHttpResponse response = null;
         HttpDelete httpDelete = new HttpDelete(url);
-        try {
-            httpDelete.setHeader(HttpHeaders.AUTHORIZATION, _authCode);
-            configHttpRequest(httpDelete);
-            response = getHttpClient(url).execute(httpDelete, HttpClientContext.create());
-            processResponse(response, wrapper);
-        } catch (IOException e) {
-            httpDelete.abort();
-            LOG.debug(IO_ERROR_MESSAGE, e);
-            throw new APIConnectionException(READ_TIMED_OUT_MESSAGE, e, true);
-        } finally {
-            try {
-                if (response != null) {
-                    response.close();
-                }
-            } catch (IOException e) {
-            	 e.printStackTrace();
-            }
-        }
-        return wrapper;
+        httpDelete.setHeaders(_headers);
+        return execute(httpDelete);
     }
 
     public ResponseWrapper sendDelete(String url, String content)
             throws APIConnectionException, APIRequestException {
-        ResponseWrapper wrapper = new ResponseWrapper();
-        CloseableHttpResponse response = null;
         HttpDeleteWithBody httpDelete = new HttpDeleteWithBody(url);
-        try {
-            httpDelete.setHeader(HttpHeaders.AUTHORIZATION, _authCode);
-            httpDelete.setHeader("Content-Type", "application/json");
-            configHttpRequest(httpDelete);
-            StringEntity params = new StringEntity(StringUtils.notNull(content), CHARSET);
-            httpDelete.setEntity(params);
-            response = getHttpClient(url).execute(httpDelete, HttpClientContext.create());
-            processResponse(response, wrapper);
-        } catch (IOException e) {
-            httpDelete.abort();
-            LOG.debug(IO_ERROR_MESSAGE, e);
-            throw new APIConnectionException(READ_TIMED_OUT_MESSAGE, e, true);
-        } finally {
-            try {
-                if (response != null) {
-                    response.close();
-                }
-            } catch (IOException e) {
-            	 e.printStackTrace();
-            }
-        }
-        return wrapper;
+        httpDelete.setHeaders(_jsonHeaders);
+        StringEntity params = new StringEntity(StringUtils.notNull(content), CHARSET);
+        httpDelete.setEntity(params);
+        return execute(httpDelete);
     }
 
     @Override
     public ResponseWrapper sendPost(String url, String content) throws APIConnectionException, APIRequestException {
-        ResponseWrapper wrapper = new ResponseWrapper();
-        CloseableHttpResponse response = null;
         HttpPost httpPost = new HttpPost(url);
+        httpPost.setHeaders(_jsonHeaders);
+        StringEntity params = new StringEntity(StringUtils.notNull(content), CHARSET);
+        httpPost.setEntity(params);
+        return execute(httpPost);
+    }
+
+    @Override
+    public ResponseWrapper sendPut(String url, String content) throws APIConnectionException, APIRequestException {
+        HttpPut httpPut = new HttpPut(url);
+        httpPut.setHeaders(_jsonHeaders);
+        StringEntity params = new StringEntity(StringUtils.notNull(content), CHARSET);
+        httpPut.setEntity(params);
+        return execute(httpPut);
+    }
+
+    @Override
+    public <T> T sendStreaming(RequestMethod method, String url, String content, ResponseBodyHandler<T> handler)
+            throws APIConnectionException, APIRequestException {
+        HttpEntity entity = null == content ? null : new StringEntity(content, CHARSET);
+        return execute(newRequest(null, method, url, entity), new ResponseWrapper(), handler);
+    }
+
+    @Override
+    public ResponseWrapper sendBytes(RequestMethod method, String url, ByteBuffer content)
+            throws APIConnectionException, APIRequestException {
+        HttpEntity entity;
+        if (null == content) {
+            entity = null;
+        } else if (content.hasArray()) {
+            entity = new ByteArrayEntity(content.array(), content.arrayOffset() + content.position(),
+                    content.remaining(), ContentType.APPLICATION_JSON);
+        } else {
+            entity = new ByteBufferEntity(content);
+        }
+        return execute(newRequest(null, method, url, entity));
+    }
+
+    @Override
+    public ResponseWrapper send(String authCode, RequestMethod method, String url, String content)
+            throws APIConnectionException, APIRequestException {
+        HttpEntity entity = null == content ? null : new StringEntity(content, CHARSET);
+        return execute(newRequest(authCode, method, url, entity));
+    }
+
+    /**
+     * @param authCode 为 null 时使用创建时的 authCode 和预先创建的请求头
+     */
+    private HttpRequestBase newRequest(String authCode, RequestMethod method, String url, HttpEntity entity) {
+        HttpRequestBase request;
+        switch (method) {
+            case GET:
+                request = new HttpGet(url);
+                break;
+            case DELETE:
+                request = null == entity ? new HttpDelete(url) : new HttpDeleteWithBody(url);
+                break;
+            case PUT:
+                request = new HttpPut(url);
+                break;
+            default:
+                request = new HttpPost(url);
+        }
+        boolean json = null != entity && request instanceof HttpEntityEnclosingRequestBase;
+        if (null == authCode) {
+            request.setHeaders(json ? _jsonHeaders : _headers);
+        } else {
+            request.setHeaders(buildHeaders(authCode, _encryptType, _responseCompression, json));
+        }
+        if (json) {
+            ((HttpEntityEnclosingRequestBase) request).setEntity(entity);
+        }
+        return request;
+    }
+
+    private ResponseWrapper execute(HttpRequestBase request) throws APIConnectionException, APIRequestException {
+        ResponseWrapper wrapper = new ResponseWrapper();
+        execute(request, wrapper, null);
+        return wrapper;
+    }
+
+    /**
+     * 按 RetryPolicy 重试，整个调用共用一个 RequestMetrics。流式请求只在请求没有被处理时重试。
+     * @param handler 为 null 时响应体读成字符串放到 wrapper 中，返回 null
+     */
+    private <T> T execute(HttpRequestBase request, ResponseWrapper wrapper, ResponseBodyHandler<T> handler)
+            throws APIConnectionException, APIRequestException {
+        configHttpRequest(request);
+        encodeRequest(request, _requestCompressionThreshold);
+        boolean idempotent = null == handler && RetryPolicy.isIdempotent(request.getMethod());
+        _retryPolicy.onRequest();
+        RequestMetrics metrics = RequestMetrics.start(_listener, request.getMethod(), request.getURI().toString());
+        T result;
         try {
-            httpPost.setHeader(HttpHeaders.AUTHORIZATION, _authCode);
-            if (!StringUtils.isEmpty(_encryptType)) {
-                httpPost.setHeader("X-Encrypt-Type", _encryptType);
-            }
-            httpPost.setHeader("Content-Type", "application/json");
-            configHttpRequest(httpPost);
-            StringEntity params = new StringEntity(StringUtils.notNull(content), CHARSET);
-            httpPost.setEntity(params);
-            response = getHttpClient(url).execute(httpPost, HttpClientContext.create());
-            processResponse(response, wrapper);
-        } catch (IOException e) {
-            httpPost.abort();
-            LOG.debug(IO_ERROR_MESSAGE, e);
-            throw new APIConnectionException(READ_TIMED_OUT_MESSAGE, e, true);
-        } finally {
-            try {
-                if (response != null) {
-                    response.close();
+            for (int retryTimes = 0; ; retryTimes++) {
+                try {
+                    result = executeOnce(request, wrapper, handler, metrics);
+                    break;
+                } catch (APIConnectionException e) {
+                    if (!_retryPolicy.awaitRetry(idempotent, e, retryTimes, metrics)) {
+                        throw e;
+                    }
+                } catch (APIRequestException e) {
+                    if (!_retryPolicy.awaitRetry(idempotent, e, retryTimes, metrics)) {
+                        throw e;
+                    }
                 }
-            } catch (IOException e) {
-            	 e.printStackTrace();
+                // 出错时请求被 abort 过，重置后才能再次执行
+                request.reset();
+                wrapper.error = null;
+            }
+        } catch (APIConnectionException e) {
+            if (null != metrics) {
+                metrics.end(e);
             }
+            throw e;
+        } catch (APIRequestException e) {
+            if (null != metrics) {
+                metrics.end(e);
+            }
+            throw e;
         }
-        return wrapper;
+        if (null != metrics) {
+            metrics.end(wrapper);
+        }
+        return result;
     }
 
-    @Override
-    public ResponseWrapper sendPut(String url, String content) throws APIConnectionException, APIRequestException {
-//        return doRequest(url, content, RequestMethod.PUT);
-        ResponseWrapper wrapper = new ResponseWrapper();
+    /**
+     * @param metrics 整个调用共用的统计，可以为 null
+     */
+    private <T> T executeOnce(HttpRequestBase request, ResponseWrapper wrapper, ResponseBodyHandler<T> handler,
+                              RequestMetrics metrics) throws APIConnectionException, APIRequestException {
+        HttpClientContext context = HttpClientContext.create();
+        if (null != metrics) {
+            context.setAttribute(ApacheRequestMetrics.REQUEST_METRICS, metrics);
+            if (request instanceof HttpEntityEnclosingRequest) {
+                // 没有请求体的 POST、PUT 不会设置 entity
+                HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                metrics.setBytesSent(null == entity ? 0 : entity.getContentLength());
+            }
+            ApacheRequestMetrics.CURRENT.set(metrics);
+        }
         CloseableHttpResponse response = null;
-        HttpPut httpPut = new HttpPut(url);
+        T result;
         try {
-            httpPut.setHeader(HttpHeaders.AUTHORIZATION, _authCode);
-            if (!StringUtils.isEmpty(_encryptType)) {
-                httpPut.setHeader("X-Encrypt-Type", _encryptType);
-            }
-            httpPut.setHeader("Content-Type", "application/json");
-            configHttpRequest(httpPut);
-            StringEntity params = new StringEntity(StringUtils.notNull(content), CHARSET);
-            httpPut.setEntity(params);
-            response = getHttpClient(url).execute(httpPut, HttpClientContext.create());
-            processResponse(response, wrapper);
+            response = _httpClient.execute(request, context);
+            result = handleResponse(response, wrapper, metrics, handler);
         } catch (IOException e) {
-            httpPut.abort();
+            request.abort();
             LOG.debug(IO_ERROR_MESSAGE, e);
-            throw new APIConnectionException(READ_TIMED_OUT_MESSAGE, e, true);
+            throw e instanceof ConnectTimeoutException
+                    ? new APIConnectionException(CONNECT_TIMED_OUT_MESSAGE, e)
+                    : new APIConnectionException(READ_TIMED_OUT_MESSAGE, e, true);
         } finally {
+            if (null != metrics) {
+                ApacheRequestMetrics.CURRENT.remove();
+            }
             try {
                 if (response != null) {
                     response.close();
@@ -380,7 +435,7 @@ public class ApacheHttpClient implements IHttpClient {
             	 e.printStackTrace();
             }
         }
-        return wrapper;
+        return result;
     }
 
     public ResponseWrapper uploadFile(String url, String path, String fileType) throws APIConnectionException, APIRequestException {
@@ -392,122 +447,135 @@ public class ApacheHttpClient implements IHttpClient {
             wrapper.setErrorObject();
             return wrapper;
         }
-        String boundary = "---------------------------" + new Date().getTime();
-        CloseableHttpResponse response = null;
-        try {
-            HttpPost httpPost = new HttpPost(url);
-            httpPost.setHeader(HttpHeaders.AUTHORIZATION, _authCode);
-            FileInputStream fis = new FileInputStream(file);
-            File tempFile = File.createTempFile(new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date()), null);
-            FileOutputStream fos = new FileOutputStream(tempFile);
-            fos.write((boundary + "\r\n").getBytes());
-            fos.write(("Content-Disposition: form-data; name=\"" + fileType + "\"; filename=\"" + file.getName() + "\"\r\n").getBytes());
-            BufferedInputStream bis = new BufferedInputStream(fis);
-            byte[] buff = new byte[8096];
-            int len = 0;
-            while ((len = bis.read(buff)) != -1) {
-                fos.write(buff, 0, len);
-            }
-            fos.write(("\r\n--" + boundary + "--\r\n").getBytes());
-            FileEntity entity = new FileEntity(tempFile, ContentType.MULTIPART_FORM_DATA);
-            entity.setContentEncoding("UTF-8");
-            httpPost.setEntity(entity);
-            response = getHttpClient(url).execute(httpPost);
-            processResponse(response, wrapper);
-        } catch (IOException e) {
-        	LOG.debug(IO_ERROR_MESSAGE, e);
-            throw new APIConnectionException(READ_TIMED_OUT_MESSAGE, e, true);
-        } finally {
-            try {
-                if (response != null) {
-                    response.close();
-                }
-            } catch (IOException e) {
-            	 e.printStackTrace();
-            }
-        }
+        HttpPost httpPost = new HttpPost(url);
+        httpPost.setHeaders(_headers);
+        httpPost.setEntity(new MultipartFileEntity(fileType, file));
+        execute(httpPost, wrapper, null);
         return wrapper;
     }
 
+    /**
+     * 以 PUT 和 Content-Range 上传文件的一段，供 ResumableFileUploader 使用
+     * @param digest 发送时更新为这一段的校验和，重试时重新计算
+     */
+    ResponseWrapper uploadPart(String url, File file, long offset, long length, MessageDigest digest)
+            throws APIConnectionException, APIRequestException {
+        HttpPut httpPut = new HttpPut(url);
+        httpPut.setHeaders(_headers);
+        httpPut.setHeader(HttpHeaders.CONTENT_RANGE,
+                "bytes " + offset + "-" + (offset + length - 1) + "/" + file.length());
+        httpPut.setEntity(new FilePartEntity(file, offset, length, digest));
+        return execute(httpPut);
+    }
+
     public void processResponse(CloseableHttpResponse response, ResponseWrapper wrapper)
             throws APIConnectionException, APIRequestException, IOException {
+        handleResponse(response, wrapper, null);
+    }
+
+    /**
+     * 读取响应内容和限频信息，非 2xx 时抛出 APIRequestException，同步和异步版本共用。
+     * @param metrics 可以为 null
+     */
+    static void handleResponse(HttpResponse response, ResponseWrapper wrapper, RequestMetrics metrics)
+            throws APIRequestException, IOException {
+        handleResponse(response, wrapper, metrics, null);
+    }
+
+    /**
+     * @param handler 读取 2xx 和 3xx 的响应体；为 null 时读成字符串放到 wrapper 中
+     * @return handler 的返回值
+     */
+    static <T> T handleResponse(HttpResponse response, ResponseWrapper wrapper, RequestMetrics metrics,
+                                ResponseBodyHandler<T> handler) throws APIRequestException, IOException {
         HttpEntity entity = response.getEntity();
-        LOG.debug("Response", response.toString());
-        int status = response.getStatusLine().getStatusCode();
-        String responseContent = "";
-        if(entity != null){
-        	responseContent = EntityUtils.toString(entity, "utf-8");
+        if (null != metrics && null != entity) {
+            metrics.setBytesReceived(entity.getContentLength());
         }
+        LOG.debug("Response {}", response);
+        int status = response.getStatusLine().getStatusCode();
         wrapper.responseCode = status;
-        wrapper.responseContent = responseContent;
         String quota = getFirstHeader(response, RATE_LIMIT_QUOTA);
         String remaining = getFirstHeader(response, RATE_LIMIT_Remaining);
         String reset = getFirstHeader(response, RATE_LIMIT_Reset);
         wrapper.setRateLimit(quota, remaining, reset);
 
-        LOG.debug(wrapper.responseContent);
-        EntityUtils.consume(entity);
-        if (status >= 200 && status < 300) {
-            LOG.debug("Succeed to get response OK - responseCode:" + status);
-            LOG.debug("Response Content - " + responseContent);
-
-        } else if (status >= 300 && status < 400) {
-            LOG.warn("Normal response but unexpected - responseCode:" + status + ", responseContent:" + responseContent);
-
-        } else {
-            LOG.warn("Got error response - responseCode:" + status + ", responseContent:" + responseContent);
+        T result = null;
+        InputStream in = null == entity ? new ByteArrayInputStream(new byte[0])
+                : Compression.decode(getFirstHeader(response, HttpHeaders.CONTENT_ENCODING), entity.getContent());
+        try {
+            if (null != handler && status >= 200 && status < 400) {
+                result = handler.handle(wrapper, in);
+            } else {
+                wrapper.responseContent = readString(in);
+            }
+        } finally {
+            // 关闭解压流归还 Inflater；读完 handler 没读的部分，连接才能复用
+            in.close();
+            EntityUtils.consume(entity);
+        }
+        ResponseClassifier.classify(LOG, wrapper);
+        if (status >= 400) {
+            throw new APIRequestException(wrapper);
+        }
+        return result;
+    }
 
-            switch (status) {
-                case 400:
-                    LOG.warn("Your request params is invalid. Please check them according to error message.");
-                    wrapper.setErrorObject();
-                    break;
-                case 401:
-                    LOG.warn("Authentication failed! Please check authentication params according to docs.");
-                    wrapper.setErrorObject();
-                    break;
-                case 403:
-                    LOG.warn("Request is forbidden! Maybe your appkey is listed in blacklist or your params is invalid.");
-                    wrapper.setErrorObject();
-                    break;
-                case 404:
-                    LOG.warn("Request page is not found! Maybe your params is invalid.");
-                    wrapper.setErrorObject();
-                    break;
-                case 410:
-                    LOG.warn("Request resource is no longer in service. Please according to notice on official website.");
-                    wrapper.setErrorObject();
-                case 429:
-                    LOG.warn("Too many requests! Please review your appkey's request quota.");
-                    wrapper.setErrorObject();
-                    break;
-                case 500:
-                case 502:
-                case 503:
-                case 504:
-                    LOG.warn("Seems encountered server error. Maybe JPush is in maintenance? Please retry later.");
-                    break;
-                default:
-                    LOG.warn("Unexpected response.");
+    /**
+     * 请求体达到 threshold 时整体 gzip，文件等流式的请求体不压缩
+     * @param threshold 小于 0 时不压缩请求体
+     */
+    static void encodeRequest(HttpRequestBase request, int threshold) {
+        if (threshold < 0 || !(request instanceof HttpEntityEnclosingRequest)) {
+            return;
+        }
+        HttpEntityEnclosingRequest enclosingRequest = (HttpEntityEnclosingRequest) request;
+        HttpEntity entity = enclosingRequest.getEntity();
+        if (null == entity || entity.isStreaming() || null != entity.getContentEncoding()
+                || entity.getContentLength() < threshold) {
+            return;
+        }
+        ByteBuffer content;
+        if (entity instanceof ByteBufferEntity) {
+            content = ((ByteBufferEntity) entity).getByteBuffer();
+        } else if (entity instanceof StringEntity || entity instanceof ByteArrayEntity) {
+            try {
+                content = ByteBuffer.wrap(EntityUtils.toByteArray(entity));
+            } catch (IOException e) {
+                // 内存中的请求体不会出错
+                throw new IllegalStateException(e);
             }
+        } else {
+            return;
+        }
+        ByteBuffer gzipped = Compression.gzip(content);
+        ByteArrayEntity gzippedEntity = new ByteArrayEntity(gzipped.array(), gzipped.arrayOffset() + gzipped.position(),
+                gzipped.remaining());
+        gzippedEntity.setContentType(entity.getContentType());
+        gzippedEntity.setContentEncoding(Compression.GZIP);
+        enclosingRequest.setEntity(gzippedEntity);
+    }
 
-            throw new APIRequestException(wrapper);
+    private static String readString(InputStream in) throws IOException {
+        Reader reader = new InputStreamReader(in, CHARSET);
+        StringBuilder builder = new StringBuilder();
+        char[] buffer = new char[4096];
+        int len;
+        while ((len = reader.read(buffer)) != -1) {
+            builder.append(buffer, 0, len);
         }
+        return builder.toString();
     }
 
-    private static String getFirstHeader(CloseableHttpResponse response, String name) {
+    private static String getFirstHeader(HttpResponse response, String name) {
         Header header = response.getFirstHeader(name);
         return header == null ? null : header.getValue();
     }
 
     public void close() {
         try {
-            if (_httpClient != null) {
-                _httpClient.close();
-            }
-            if (_cm != null) {
-                _cm.close();
-            }
+            _httpClient.close();
+            _cm.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -515,15 +583,38 @@ public class ApacheHttpClient implements IHttpClient {
 }
 
 
-class HttpDeleteWithBody extends HttpEntityEnclosingRequestBase {
-    public static final String METHOD_NAME = "DELETE";
+/**
+ * direct ByteBuffer 的请求体，可重复发送
+ */
+class ByteBufferEntity extends AbstractHttpEntity {
+    private final ByteBuffer _content;
+
+    public ByteBufferEntity(ByteBuffer content) {
+        this._content = content;
+        setContentType(ContentType.APPLICATION_JSON.toString());
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return _content.remaining();
+    }
+
+    ByteBuffer getByteBuffer() {
+        return _content;
+    }
+
+    public InputStream getContent() {
+        return ByteBuffers.newInputStream(_content);
+    }
 
-    public String getMethod() {
-        return METHOD_NAME;
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffers.writeTo(_content, out);
     }
 
-    public HttpDeleteWithBody(final String uri) {
-        super();
-        setURI(URI.create(uri));
+    public boolean isStreaming() {
+        return false;
     }
 }
@@ -0,0 +1,163 @@
+package cn.jiguang.common.connection;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.apache.http.ssl.SSLContexts;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+/**
+ * ApacheHttpClient 采集 RequestMetrics 用到的钩子，只在配置了 RequestListener 时装配。
+ * <p>
+ * 连接和 TLS 耗时由 socket factory 记录，首字节由 HttpRequestExecutor 记录，RequestMetrics 通过 HttpContext 传递；
+ * DnsResolver 拿不到 HttpContext，借助发起请求线程上的 ThreadLocal。
+ */
+final class ApacheRequestMetrics {
+
+    static final String REQUEST_METRICS = "jiguang.request.metrics";
+    private static final String TLS_NANOS = "jiguang.request.tls.nanos";
+
+    // 同步请求在调用线程上完成解析和建连
+    static final ThreadLocal<RequestMetrics> CURRENT = new ThreadLocal<RequestMetrics>();
+
+    private ApacheRequestMetrics() {
+    }
+
+    static RequestMetrics metricsOf(HttpContext context) {
+        return null == context ? null : (RequestMetrics) context.getAttribute(REQUEST_METRICS);
+    }
+
+    static Registry<ConnectionSocketFactory> socketFactoryRegistry() {
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", new TimedPlainSocketFactory())
+                .register("https", new TimedSSLSocketFactory())
+                .build();
+    }
+
+    static class TimedDnsResolver implements DnsResolver {
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            long start = System.nanoTime();
+            try {
+                return SystemDefaultDnsResolver.INSTANCE.resolve(host);
+            } finally {
+                RequestMetrics metrics = CURRENT.get();
+                if (null != metrics) {
+                    metrics.addDnsNanos(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    static class TimedPlainSocketFactory extends PlainConnectionSocketFactory {
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            } finally {
+                RequestMetrics metrics = metricsOf(context);
+                if (null != metrics) {
+                    metrics.addConnectNanos(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * 与 SSLConnectionSocketFactory.getSocketFactory() 相同的配置；connectSocket 内部调用 createLayeredSocket 完成握手，
+     * 两者相减得到 TCP 连接耗时。
+     */
+    static class TimedSSLSocketFactory extends SSLConnectionSocketFactory {
+
+        TimedSSLSocketFactory() {
+            super(SSLContexts.createDefault(), getDefaultHostnameVerifier());
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            } finally {
+                RequestMetrics metrics = metricsOf(context);
+                if (null != metrics) {
+                    Long tlsNanos = (Long) context.removeAttribute(TLS_NANOS);
+                    metrics.addConnectNanos(System.nanoTime() - start - (null == tlsNanos ? 0 : tlsNanos));
+                }
+            }
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+                throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.createLayeredSocket(socket, target, port, context);
+            } finally {
+                RequestMetrics metrics = metricsOf(context);
+                if (null != metrics) {
+                    long tlsNanos = System.nanoTime() - start;
+                    metrics.addTlsNanos(tlsNanos);
+                    context.setAttribute(TLS_NANOS, tlsNanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * 执行到这里时已经拿到并建立好连接：此前扣除 DNS、连接和 TLS 的时间即为连接池等待时间（只统计第一次尝试）。
+     * 读完响应头即为首字节时间。
+     */
+    static class TimedRequestExecutor extends HttpRequestExecutor {
+        @Override
+        public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws IOException, HttpException {
+            RequestMetrics metrics = metricsOf(context);
+            if (null != metrics && metrics.getPoolWaitNanos() < 0) {
+                metrics.addPoolWaitNanos(metrics.elapsedNanos() - known(metrics.getDnsNanos())
+                        - known(metrics.getConnectNanos()) - known(metrics.getTlsNanos()));
+                if (metrics.getConnectNanos() < 0) {
+                    // 复用了连接池中的连接
+                    metrics.addDnsNanos(0);
+                    metrics.addConnectNanos(0);
+                    metrics.addTlsNanos(0);
+                }
+            }
+            return super.execute(request, conn, context);
+        }
+
+        @Override
+        protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws HttpException, IOException {
+            HttpResponse response = super.doReceiveResponse(request, conn, context);
+            RequestMetrics metrics = metricsOf(context);
+            if (null != metrics) {
+                metrics.markFirstByte();
+            }
+            return response;
+        }
+
+        private static long known(long nanos) {
+            return nanos < 0 ? 0 : nanos;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.ResponseWrapper;
+import cn.jiguang.common.utils.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 用 ApacheHttpClient 的连接池并发上传多个文件，例如批量更新 V3_FILES_PATH 的文件，吞吐量不再受单个请求往返时间限制。
+ * <p>
+ * 同时进行的上传不超过 parallelism 个，ApacheHttpClient 每个路由的最大连接数应不小于 parallelism。
+ * 每个文件只按 ApacheHttpClient 的 RetryPolicy 重试：上传是 POST，只在连接失败和 429 时重新上传，
+ * 读超时和 5xx 时服务端可能已经保存了文件，不会重复上传。结果按文件汇总，一个文件失败不影响其他文件。
+ * 用完后请调用 close。
+ */
+public class BulkFileUploader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkFileUploader.class);
+
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    private static final AtomicInteger THREAD_INDEX = new AtomicInteger();
+
+    private final ApacheHttpClient _client;
+    private final ExecutorService _executor;
+
+    public BulkFileUploader(ApacheHttpClient client) {
+        this(client, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param parallelism 同时上传的文件数
+     */
+    public BulkFileUploader(ApacheHttpClient client, int parallelism) {
+        Preconditions.checkArgument(null != client, "client should not be null");
+        Preconditions.checkArgument(parallelism > 0, "parallelism should be positive");
+        _client = client;
+        _executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jiguang-file-uploader-" + THREAD_INDEX.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 上传全部文件，等所有文件完成后返回
+     * @param fileType 表单中文件字段的名字，与 ApacheHttpClient.uploadFile 相同
+     * @param paths 文件路径，重复的路径只上传一次
+     * @throws InterruptedException 等待时被中断，尚未开始的上传被取消
+     */
+    public Result upload(final String url, final Collection<String> paths, final String fileType)
+            throws InterruptedException {
+        Preconditions.checkArgument(null != url, "url should not be null");
+        Preconditions.checkArgument(null != paths, "paths should not be null");
+        Map<String, Future<ResponseWrapper>> futures = new LinkedHashMap<String, Future<ResponseWrapper>>();
+        for (final String path : paths) {
+            if (futures.containsKey(path)) {
+                continue;
+            }
+            futures.put(path, _executor.submit(new Callable<ResponseWrapper>() {
+                @Override
+                public ResponseWrapper call() throws Exception {
+                    return uploadOne(url, path, fileType);
+                }
+            }));
+        }
+        Result result = new Result();
+        try {
+            for (Map.Entry<String, Future<ResponseWrapper>> entry : futures.entrySet()) {
+                try {
+                    result._succeeded.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    result._failed.put(entry.getKey(), cause instanceof Exception ? (Exception) cause : e);
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<ResponseWrapper> future : futures.values()) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+        LOG.info("Uploaded " + result._succeeded.size() + " files, " + result._failed.size() + " failed");
+        return result;
+    }
+
+    /**
+     * 重试由 ApacheHttpClient.execute 按 RetryPolicy 处理，这里不再重试
+     */
+    private ResponseWrapper uploadOne(String url, String path, String fileType)
+            throws APIConnectionException, APIRequestException {
+        ResponseWrapper wrapper = _client.uploadFile(url, path, fileType);
+        if (wrapper.responseCode < 0) {
+            // 文件不存在
+            throw new APIRequestException(wrapper);
+        }
+        return wrapper;
+    }
+
+    /**
+     * 停止接受新的上传，正在进行的上传会继续完成
+     */
+    public void close() {
+        _executor.shutdown();
+    }
+
+    /**
+     * 按文件汇总的上传结果，顺序与传入的路径一致
+     */
+    public static class Result {
+
+        private final Map<String, ResponseWrapper> _succeeded = new LinkedHashMap<String, ResponseWrapper>();
+        private final Map<String, Exception> _failed = new LinkedHashMap<String, Exception>();
+
+        public boolean isAllSucceeded() {
+            return _failed.isEmpty();
+        }
+
+        /**
+         * @return 文件路径到响应的映射
+         */
+        public Map<String, ResponseWrapper> getSucceeded() {
+            return Collections.unmodifiableMap(_succeeded);
+        }
+
+        /**
+         * @return 文件路径到最后一次失败的映射，APIConnectionException 或 APIRequestException；
+         * 文件不存在时为响应码 -1 的 APIRequestException
+         */
+        public Map<String, Exception> getFailed() {
+            return Collections.unmodifiableMap(_failed);
+        }
+
+        public List<String> getFailedPaths() {
+            return new ArrayList<String>(_failed.keySet());
+        }
+
+        @Override
+        public String toString() {
+            return "succeeded:" + _succeeded.size() + ", failed:" + _failed.keySet();
+        }
+    }
+}
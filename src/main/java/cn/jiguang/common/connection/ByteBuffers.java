@@ -0,0 +1,69 @@
+package cn.jiguang.common.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * IBinaryHttpClient 各实现共用的 ByteBuffer 读写，都不改变原 buffer 的 position。
+ */
+final class ByteBuffers {
+
+    static final Charset UTF_8 = Charset.forName(IHttpClient.CHARSET);
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private ByteBuffers() {
+    }
+
+    /**
+     * @return content 为 null 时返回 null
+     */
+    static ByteBuffer encode(String content) {
+        return null == content ? null : ByteBuffer.wrap(content.getBytes(UTF_8));
+    }
+
+    /**
+     * 堆内 buffer 直接写出底层数组，direct buffer 分块拷贝
+     */
+    static void writeTo(ByteBuffer content, OutputStream out) throws IOException {
+        ByteBuffer buffer = content.duplicate();
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, buffer.remaining())];
+        while (buffer.hasRemaining()) {
+            int len = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, len);
+            out.write(chunk, 0, len);
+        }
+    }
+
+    static InputStream newInputStream(ByteBuffer content) {
+        final ByteBuffer buffer = content.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                len = Math.min(len, buffer.remaining());
+                buffer.get(b, off, len);
+                return len;
+            }
+
+            @Override
+            public int available() {
+                return buffer.remaining();
+            }
+        };
+    }
+}
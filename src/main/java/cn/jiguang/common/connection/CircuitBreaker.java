@@ -0,0 +1,215 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.ClientConfig;
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.CircuitBreakerOpenException;
+import cn.jiguang.common.utils.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个目标主机的熔断器，由 CircuitBreakerHttpClient 按主机创建。
+ * <p>
+ * 统计最近 windowSize 个请求的结果：连接错误和 5xx 算失败，耗时超过 slowCallDuration 的算慢请求。
+ * 请求数不少于 MIN_CALLS 且失败率或慢请求率达到阈值时打开（OPEN），此后的请求直接抛出 CircuitBreakerOpenException，
+ * 不再等待连接和读超时；openDuration 之后进入半开（HALF_OPEN），放行 HALF_OPEN_CALLS 个探测请求，
+ * 全部成功则关闭（CLOSED）并清空统计，任何一个失败则重新打开。
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    // 窗口内的请求数达到后才判断是否打开
+    private static final int MIN_CALLS = 20;
+    // 半开时放行的探测请求数
+    private static final int HALF_OPEN_CALLS = 5;
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String _host;
+    private final int _failureRate;
+    private final long _slowCallNanos;
+    private final int _slowCallRate;
+    private final long _openNanos;
+
+    // 最近 windowSize 个请求的结果，FAILED 和 SLOW 的组合
+    private final byte[] _window;
+    private int _index;
+    private int _calls;
+    private int _failures;
+    private int _slowCalls;
+
+    private State _state = State.CLOSED;
+    private long _openUntilNanos;
+    private int _probes;
+    private int _probeSuccesses;
+
+    public CircuitBreaker(String host, ClientConfig config) {
+        this(host, config.getCircuitBreakerWindowSize(), config.getCircuitBreakerFailureRate(),
+                config.getCircuitBreakerSlowCallDuration(), config.getCircuitBreakerSlowCallRate(),
+                config.getCircuitBreakerOpenDuration());
+    }
+
+    /**
+     * @param windowSize 统计最近多少个请求
+     * @param failureRate 打开的失败率阈值，百分比
+     * @param slowCallDurationMillis 耗时超过这个值的请求算慢请求
+     * @param slowCallRate 打开的慢请求率阈值，百分比
+     * @param openDurationMillis 打开后多久进入半开
+     */
+    public CircuitBreaker(String host, int windowSize, int failureRate, long slowCallDurationMillis,
+                          int slowCallRate, long openDurationMillis) {
+        Preconditions.checkArgument(windowSize > 0, "windowSize should be positive");
+        Preconditions.checkArgument(failureRate > 0 && failureRate <= 100, "failureRate should be in (0, 100]");
+        Preconditions.checkArgument(slowCallDurationMillis > 0, "slowCallDurationMillis should be positive");
+        Preconditions.checkArgument(slowCallRate > 0 && slowCallRate <= 100, "slowCallRate should be in (0, 100]");
+        Preconditions.checkArgument(openDurationMillis > 0, "openDurationMillis should be positive");
+        this._host = host;
+        this._window = new byte[windowSize];
+        this._failureRate = failureRate;
+        this._slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallDurationMillis);
+        this._slowCallRate = slowCallRate;
+        this._openNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMillis);
+    }
+
+    public String getHost() {
+        return _host;
+    }
+
+    /**
+     * 打开状态到期后，下一次 acquire 才会转为半开，这里返回的仍是 OPEN
+     */
+    public synchronized State getState() {
+        return _state;
+    }
+
+    /**
+     * @return 窗口内的失败率，百分比
+     */
+    public synchronized float getFailureRate() {
+        return _calls == 0 ? 0 : _failures * 100f / _calls;
+    }
+
+    /**
+     * @return 窗口内的慢请求率，百分比
+     */
+    public synchronized float getSlowCallRate() {
+        return _calls == 0 ? 0 : _slowCalls * 100f / _calls;
+    }
+
+    /**
+     * 发送请求前调用，放行后须调用一次 onComplete
+     * @throws CircuitBreakerOpenException 熔断器打开，或半开时探测请求已经发满
+     */
+    public synchronized void acquire() throws CircuitBreakerOpenException {
+        long now = System.nanoTime();
+        if (_state == State.OPEN) {
+            if (now - _openUntilNanos < 0) {
+                throw new CircuitBreakerOpenException(_host, TimeUnit.NANOSECONDS.toMillis(_openUntilNanos - now));
+            }
+            LOG.info("Circuit breaker of " + _host + " is half open");
+            _state = State.HALF_OPEN;
+            _probes = 0;
+            _probeSuccesses = 0;
+        }
+        if (_state == State.HALF_OPEN) {
+            if (_probes >= HALF_OPEN_CALLS) {
+                throw new CircuitBreakerOpenException(_host, 0);
+            }
+            _probes++;
+        }
+    }
+
+    /**
+     * @param durationNanos 请求耗时
+     * @param e 请求的异常，成功时为 null；取消、中断等与服务端无关的异常不计入统计
+     */
+    public synchronized void onComplete(long durationNanos, Exception e) {
+        byte outcome;
+        if (null == e) {
+            outcome = 0;
+        } else if (e instanceof APIRequestException) {
+            outcome = ((APIRequestException) e).getStatus() >= 500 ? FAILED : 0;
+        } else if (e instanceof APIConnectionException && !(e instanceof CircuitBreakerOpenException)
+                && !(e.getCause() instanceof InterruptedException)) {
+            outcome = FAILED;
+        } else {
+            if (_state == State.HALF_OPEN && _probes > 0) {
+                _probes--;
+            }
+            return;
+        }
+        if (durationNanos >= _slowCallNanos) {
+            outcome |= SLOW;
+        }
+        switch (_state) {
+            case CLOSED:
+                record(outcome);
+                if (_calls >= Math.min(MIN_CALLS, _window.length)
+                        && (_failures * 100 >= _failureRate * _calls || _slowCalls * 100 >= _slowCallRate * _calls)) {
+                    open();
+                }
+                break;
+            case HALF_OPEN:
+                if (outcome != 0) {
+                    open();
+                } else if (++_probeSuccesses >= HALF_OPEN_CALLS) {
+                    LOG.info("Circuit breaker of " + _host + " is closed");
+                    _state = State.CLOSED;
+                    reset();
+                }
+                break;
+            default:
+                // 打开前发出的请求，不再统计
+        }
+    }
+
+    private void record(byte outcome) {
+        if (_calls == _window.length) {
+            byte old = _window[_index];
+            if ((old & FAILED) != 0) {
+                _failures--;
+            }
+            if ((old & SLOW) != 0) {
+                _slowCalls--;
+            }
+        } else {
+            _calls++;
+        }
+        _window[_index] = outcome;
+        _index = (_index + 1) % _window.length;
+        if ((outcome & FAILED) != 0) {
+            _failures++;
+        }
+        if ((outcome & SLOW) != 0) {
+            _slowCalls++;
+        }
+    }
+
+    private void open() {
+        LOG.warn("Circuit breaker of " + _host + " is open - failureRate:" + getFailureRate()
+                + "%, slowCallRate:" + getSlowCallRate() + "%");
+        _state = State.OPEN;
+        _openUntilNanos = System.nanoTime() + _openNanos;
+    }
+
+    private void reset() {
+        _index = 0;
+        _calls = 0;
+        _failures = 0;
+        _slowCalls = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return _host + " " + _state + " failureRate=" + getFailureRate() + "% slowCallRate=" + getSlowCallRate() + "%";
+    }
+}
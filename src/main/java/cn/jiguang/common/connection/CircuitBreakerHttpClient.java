@@ -0,0 +1,246 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.ClientConfig;
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.CircuitBreakerOpenException;
+import cn.jiguang.common.resp.ResponseWrapper;
+import cn.jiguang.common.utils.Preconditions;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 在任意 IHttpClient 前按目标主机加上 CircuitBreaker：某个主机的失败率或慢请求率过高时熔断，
+ * 请求直接抛出 CircuitBreakerOpenException，不再占用线程等待连接和读超时；一段时间后放行少量请求探测是否恢复。
+ * <p>
+ * 各主机的熔断状态可以通过 getState 读取，用于在上游提前限流。熔断参数见 ClientConfig 的 CIRCUIT_BREAKER_* 配置。
+ * <p>
+ * 被包装的 client 没有实现 IAsyncHttpClient、IStreamingHttpClient 或 IBinaryHttpClient 时，对应的请求改用它的同步接口发送。
+ * 包装 IMultiTenantHttpClient 并需要保留多租户接口时使用 MultiTenantCircuitBreakerHttpClient。
+ * 与 RetryPolicy 一起使用时，熔断器统计的是包含重试的整个调用。
+ */
+public class CircuitBreakerHttpClient implements IHttpClient, IAsyncHttpClient, IStreamingHttpClient,
+        IBinaryHttpClient {
+
+    private final IHttpClient _delegate;
+    private final ClientConfig _config;
+    private final ConcurrentMap<String, CircuitBreaker> _breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    public CircuitBreakerHttpClient(IHttpClient delegate, ClientConfig config) {
+        Preconditions.checkArgument(null != delegate, "delegate should not be null");
+        Preconditions.checkArgument(null != config, "config should not be null");
+        this._delegate = delegate;
+        this._config = config;
+    }
+
+    /**
+     * @param host 主机名，端口不是默认端口时带上端口，如 api.jpush.cn
+     * @return 还没有请求过这个主机时为 CLOSED
+     */
+    public CircuitBreaker.State getState(String host) {
+        CircuitBreaker breaker = _breakers.get(host);
+        return null == breaker ? CircuitBreaker.State.CLOSED : breaker.getState();
+    }
+
+    /**
+     * @return 主机到熔断器的只读视图
+     */
+    public Map<String, CircuitBreaker> getCircuitBreakers() {
+        return Collections.unmodifiableMap(_breakers);
+    }
+
+    @Override
+    public ResponseWrapper sendGet(String url) throws APIConnectionException, APIRequestException {
+        return forward(null, null, RequestMethod.GET, url, null);
+    }
+
+    @Override
+    public ResponseWrapper sendGet(String url, String content) throws APIConnectionException, APIRequestException {
+        return forward(null, null, RequestMethod.GET, url, content);
+    }
+
+    @Override
+    public ResponseWrapper sendDelete(String url) throws APIConnectionException, APIRequestException {
+        return forward(null, null, RequestMethod.DELETE, url, null);
+    }
+
+    @Override
+    public ResponseWrapper sendDelete(String url, String content) throws APIConnectionException, APIRequestException {
+        return forward(null, null, RequestMethod.DELETE, url, content);
+    }
+
+    @Override
+    public ResponseWrapper sendPost(String url, String content) throws APIConnectionException, APIRequestException {
+        return forward(null, null, RequestMethod.POST, url, content);
+    }
+
+    @Override
+    public ResponseWrapper sendPut(String url, String content) throws APIConnectionException, APIRequestException {
+        return forward(null, null, RequestMethod.PUT, url, content);
+    }
+
+    @Override
+    public <T> T sendStreaming(RequestMethod method, String url, String content, ResponseBodyHandler<T> handler)
+            throws APIConnectionException, APIRequestException {
+        CircuitBreaker breaker = acquire(url);
+        long start = System.nanoTime();
+        Exception error = null;
+        try {
+            return ClientDelegates.sendStreaming(_delegate, method, url, content, handler);
+        } catch (APIConnectionException e) {
+            error = e;
+            throw e;
+        } catch (APIRequestException e) {
+            error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            breaker.onComplete(System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public ResponseWrapper sendBytes(RequestMethod method, String url, ByteBuffer content)
+            throws APIConnectionException, APIRequestException {
+        CircuitBreaker breaker = acquire(url);
+        long start = System.nanoTime();
+        Exception error = null;
+        try {
+            return ClientDelegates.sendBytes(_delegate, method, url, content);
+        } catch (APIConnectionException e) {
+            error = e;
+            throw e;
+        } catch (APIRequestException e) {
+            error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            breaker.onComplete(System.nanoTime() - start, error);
+        }
+    }
+
+    /**
+     * @param tenantClient 多租户请求时为被包装的 client，此时使用 authCode
+     */
+    ResponseWrapper forward(IMultiTenantHttpClient tenantClient, String authCode, RequestMethod method,
+                                    String url, String content) throws APIConnectionException, APIRequestException {
+        CircuitBreaker breaker = acquire(url);
+        long start = System.nanoTime();
+        Exception error = null;
+        try {
+            ResponseWrapper wrapper = null != tenantClient
+                    ? tenantClient.send(authCode, method, url, content)
+                    : ClientDelegates.send(_delegate, method, url, content);
+            if (wrapper.responseCode >= 500) {
+                // Http2Client 的旧接口遇到错误响应时不抛出异常
+                error = new APIRequestException(wrapper);
+            }
+            return wrapper;
+        } catch (APIConnectionException e) {
+            error = e;
+            throw e;
+        } catch (APIRequestException e) {
+            error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            breaker.onComplete(System.nanoTime() - start, error);
+        }
+    }
+
+    @Override
+    public ResponseFuture sendGetAsync(String url) {
+        return sendAsync(RequestMethod.GET, url, null);
+    }
+
+    @Override
+    public ResponseFuture sendGetAsync(String url, String content) {
+        return sendAsync(RequestMethod.GET, url, content);
+    }
+
+    @Override
+    public ResponseFuture sendDeleteAsync(String url) {
+        return sendAsync(RequestMethod.DELETE, url, null);
+    }
+
+    @Override
+    public ResponseFuture sendDeleteAsync(String url, String content) {
+        return sendAsync(RequestMethod.DELETE, url, content);
+    }
+
+    @Override
+    public ResponseFuture sendPostAsync(String url, String content) {
+        return sendAsync(RequestMethod.POST, url, content);
+    }
+
+    @Override
+    public ResponseFuture sendPutAsync(String url, String content) {
+        return sendAsync(RequestMethod.PUT, url, content);
+    }
+
+    private ResponseFuture sendAsync(RequestMethod method, String url, String content) {
+        final CircuitBreaker breaker;
+        try {
+            breaker = acquire(url);
+        } catch (CircuitBreakerOpenException e) {
+            ResponseFuture future = new ResponseFuture();
+            future.fail(e);
+            return future;
+        }
+        final long start = System.nanoTime();
+        ResponseFuture future = ClientDelegates.sendAsync(_delegate, method, url, content);
+        future.addCallback(new ResponseCallback() {
+            @Override
+            public void onSucceed(ResponseWrapper wrapper) {
+                breaker.onComplete(System.nanoTime() - start, null);
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                // 取消的请求由 CircuitBreaker 忽略
+                breaker.onComplete(System.nanoTime() - start, e);
+            }
+        });
+        return future;
+    }
+
+    private CircuitBreaker acquire(String url) throws CircuitBreakerOpenException {
+        String host = hostOf(url);
+        CircuitBreaker breaker = _breakers.get(host);
+        if (null == breaker) {
+            CircuitBreaker created = new CircuitBreaker(host, _config);
+            breaker = _breakers.putIfAbsent(host, created);
+            if (null == breaker) {
+                breaker = created;
+            }
+        }
+        breaker.acquire();
+        return breaker;
+    }
+
+    /**
+     * 主机名，端口不是默认端口时带上端口；解析不了的 url 原样返回
+     */
+    static String hostOf(String url) {
+        try {
+            URI uri = URI.create(url);
+            if (null == uri.getHost()) {
+                return url;
+            }
+            return uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
+}
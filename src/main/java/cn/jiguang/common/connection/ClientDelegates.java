@@ -0,0 +1,127 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.connection.IHttpClient.RequestMethod;
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.ResponseWrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RateLimitedHttpClient、CircuitBreakerHttpClient 等包装类转发请求时共用的方法。
+ * <p>
+ * 被包装的 client 实现了对应的接口时直接调用；没有实现时退回到同步接口：异步请求在内部的守护线程池上同步发送，
+ * 流式请求先读成字符串再交给 handler，二进制请求体按 UTF-8 解码后发送。
+ */
+final class ClientDelegates {
+
+    private ClientDelegates() {
+    }
+
+    static ResponseWrapper send(IHttpClient client, RequestMethod method, String url, String content)
+            throws APIConnectionException, APIRequestException {
+        switch (method) {
+            case GET:
+                return null == content ? client.sendGet(url) : client.sendGet(url, content);
+            case DELETE:
+                return null == content ? client.sendDelete(url) : client.sendDelete(url, content);
+            case PUT:
+                return client.sendPut(url, content);
+            default:
+                return client.sendPost(url, content);
+        }
+    }
+
+    static <T> T sendStreaming(IHttpClient client, RequestMethod method, String url, String content,
+                               ResponseBodyHandler<T> handler) throws APIConnectionException, APIRequestException {
+        if (client instanceof IStreamingHttpClient) {
+            return ((IStreamingHttpClient) client).sendStreaming(method, url, content, handler);
+        }
+        ResponseWrapper wrapper = send(client, method, url, content);
+        byte[] body = null == wrapper.responseContent ? new byte[0] : wrapper.responseContent.getBytes(ByteBuffers.UTF_8);
+        wrapper.responseContent = null;
+        try {
+            return handler.handle(wrapper, new ByteArrayInputStream(body));
+        } catch (IOException e) {
+            throw new APIConnectionException(IHttpClient.IO_ERROR_MESSAGE, e);
+        }
+    }
+
+    static ResponseWrapper sendBytes(IHttpClient client, RequestMethod method, String url, ByteBuffer content)
+            throws APIConnectionException, APIRequestException {
+        if (client instanceof IBinaryHttpClient) {
+            return ((IBinaryHttpClient) client).sendBytes(method, url, content);
+        }
+        String decoded = null == content ? null : ByteBuffers.UTF_8.decode(content.duplicate()).toString();
+        return send(client, method, url, decoded);
+    }
+
+    static ResponseFuture sendAsync(final IHttpClient client, final RequestMethod method, final String url,
+                                    final String content) {
+        if (client instanceof IAsyncHttpClient) {
+            IAsyncHttpClient asyncClient = (IAsyncHttpClient) client;
+            switch (method) {
+                case GET:
+                    return null == content ? asyncClient.sendGetAsync(url) : asyncClient.sendGetAsync(url, content);
+                case DELETE:
+                    return null == content ? asyncClient.sendDeleteAsync(url) : asyncClient.sendDeleteAsync(url, content);
+                case PUT:
+                    return asyncClient.sendPutAsync(url, content);
+                default:
+                    return asyncClient.sendPostAsync(url, content);
+            }
+        }
+        final ResponseFuture future = new ResponseFuture();
+        final Future<?> task = SyncExecutor.INSTANCE.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    future.complete(send(client, method, url, content));
+                } catch (Exception e) {
+                    future.fail(e);
+                }
+            }
+        });
+        future.setCancelHandler(new Runnable() {
+            @Override
+            public void run() {
+                task.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 被包装的 client 不支持异步时，异步请求在这里同步发送；空闲一分钟的线程会退出
+     */
+    private static class SyncExecutor {
+        static final ThreadPoolExecutor INSTANCE;
+
+        static {
+            int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+            INSTANCE = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger _index = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jiguang-sync-sender-" + _index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            INSTANCE.allowCoreThreadTimeOut(true);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package cn.jiguang.common.connection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * 各 client 共用的 gzip/deflate 编解码。响应体边读边解压，请求体整体压缩。
+ * <p>
+ * Inflater 和 Deflater 占用的本地内存不小，创建和释放都有开销，这里放在池中复用，解压流关闭时归还。
+ */
+final class Compression {
+
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+    static final String GZIP = "gzip";
+
+    private static final int POOL_SIZE = 32;
+    private static final int BUFFER_SIZE = 8192;
+
+    // gzip 和原始 deflate 都是 nowrap 的
+    private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+    private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private Compression() {
+    }
+
+    /**
+     * @param contentEncoding 响应的 Content-Encoding，为 null 或 identity 时原样返回
+     * @return 解压后的响应体，关闭时同时关闭 in
+     */
+    static InputStream decode(String contentEncoding, InputStream in) throws IOException {
+        if (null == in || null == contentEncoding) {
+            return in;
+        }
+        String encoding = contentEncoding.trim();
+        boolean gzip = GZIP.equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding);
+        if (!gzip && !"deflate".equalsIgnoreCase(encoding)) {
+            return in;
+        }
+        // 先看前两个字节：空响应体（如 204）不解压
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        int b0 = pushback.read();
+        if (b0 < 0) {
+            return pushback;
+        }
+        int b1 = pushback.read();
+        if (b1 >= 0) {
+            pushback.unread(b1);
+        }
+        pushback.unread(b0);
+        if (gzip) {
+            return new GzipInputStream(pushback);
+        }
+        // deflate 按规范是 zlib 格式，但有服务端发送原始 deflate
+        boolean zlib = b1 >= 0 && (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0;
+        if (zlib) {
+            return new InflaterInputStream(pushback, new Inflater(false), BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inf.end();
+                }
+            };
+        }
+        return new PooledInflaterInputStream(pushback);
+    }
+
+    /**
+     * @return gzip 压缩后的 content，不改变 content 的 position
+     */
+    static ByteBuffer gzip(ByteBuffer content) {
+        ByteBuffer source = content.duplicate();
+        byte[] input;
+        int offset;
+        int length = source.remaining();
+        if (source.hasArray()) {
+            input = source.array();
+            offset = source.arrayOffset() + source.position();
+        } else {
+            input = new byte[length];
+            source.get(input);
+            offset = 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(input, offset, length);
+
+        Deflater deflater = DEFLATERS.poll();
+        if (null == deflater) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            // 10 字节头，压缩数据一般小于原文，8 字节尾
+            byte[] output = new byte[10 + Math.max(64, length / 2) + 8];
+            output[0] = (byte) GZIP_MAGIC;
+            output[1] = (byte) (GZIP_MAGIC >> 8);
+            output[2] = Deflater.DEFLATED;
+            int position = 10;
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (position == output.length - 8) {
+                    byte[] grown = new byte[output.length << 1];
+                    System.arraycopy(output, 0, grown, 0, position);
+                    output = grown;
+                }
+                position += deflater.deflate(output, position, output.length - 8 - position);
+            }
+            writeInt(output, position, (int) crc.getValue());
+            writeInt(output, position + 4, length);
+            return ByteBuffer.wrap(output, 0, position + 8);
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    private static void writeInt(byte[] output, int offset, int value) {
+        output[offset] = (byte) value;
+        output[offset + 1] = (byte) (value >> 8);
+        output[offset + 2] = (byte) (value >> 16);
+        output[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static Inflater obtainInflater() {
+        Inflater inflater = INFLATERS.poll();
+        return null == inflater ? new Inflater(true) : inflater;
+    }
+
+    private static void recycle(Inflater inflater) {
+        inflater.reset();
+        if (!INFLATERS.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 使用池中 Inflater 的原始 deflate 流，关闭时归还
+     */
+    private static class PooledInflaterInputStream extends InflaterInputStream {
+
+        private boolean _closed;
+
+        PooledInflaterInputStream(InputStream in) {
+            super(in, obtainInflater(), BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!_closed) {
+                _closed = true;
+                try {
+                    super.close();
+                } finally {
+                    recycle(inf);
+                }
+            }
+        }
+    }
+
+    /**
+     * 与 GZIPInputStream 相同，但使用池中的 Inflater。只读取第一个 member，校验 CRC 和长度。
+     */
+    private static class GzipInputStream extends PooledInflaterInputStream {
+
+        private final CRC32 _crc = new CRC32();
+        private boolean _eos;
+
+        GzipInputStream(InputStream in) throws IOException {
+            super(in);
+            try {
+                readHeader();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (_eos) {
+                return -1;
+            }
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                _crc.update(b, off, n);
+            }
+            if (inf.finished()) {
+                readTrailer();
+                _eos = true;
+                return n > 0 ? n : -1;
+            }
+            return n;
+        }
+
+        private void readHeader() throws IOException {
+            if (readUShort(in) != GZIP_MAGIC) {
+                throw new ZipException("Not in GZIP format");
+            }
+            if (readUByte(in) != Deflater.DEFLATED) {
+                throw new ZipException("Unsupported compression method");
+            }
+            int flags = readUByte(in);
+            skipBytes(in, 6);
+            if ((flags & FEXTRA) != 0) {
+                skipBytes(in, readUShort(in));
+            }
+            if ((flags & FNAME) != 0) {
+                while (readUByte(in) != 0) {
+                    // 跳过文件名
+                }
+            }
+            if ((flags & FCOMMENT) != 0) {
+                while (readUByte(in) != 0) {
+                    // 跳过注释
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                skipBytes(in, 2);
+            }
+        }
+
+        private void readTrailer() throws IOException {
+            // 尾部可能有一部分已经读进了 buf
+            byte[] trailer = new byte[8];
+            int remaining = Math.min(inf.getRemaining(), 8);
+            System.arraycopy(buf, len - inf.getRemaining(), trailer, 0, remaining);
+            for (int i = remaining; i < 8; i++) {
+                trailer[i] = (byte) readUByte(in);
+            }
+            long crc = (trailer[0] & 0xff) | ((trailer[1] & 0xff) << 8) | ((trailer[2] & 0xff) << 16)
+                    | ((long) (trailer[3] & 0xff) << 24);
+            long size = (trailer[4] & 0xff) | ((trailer[5] & 0xff) << 8) | ((trailer[6] & 0xff) << 16)
+                    | ((long) (trailer[7] & 0xff) << 24);
+            if (crc != _crc.getValue() || size != (inf.getBytesWritten() & 0xffffffffL)) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+        }
+
+        private static int readUShort(InputStream in) throws IOException {
+            int b = readUByte(in);
+            return (readUByte(in) << 8) | b;
+        }
+
+        private static int readUByte(InputStream in) throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            return b;
+        }
+
+        private static void skipBytes(InputStream in, int n) throws IOException {
+            while (n > 0) {
+                readUByte(in);
+                n--;
+            }
+        }
+    }
+}
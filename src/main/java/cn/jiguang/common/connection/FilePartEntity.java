@@ -0,0 +1,113 @@
+package cn.jiguang.common.connection;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * 文件中 offset 开始 length 字节的请求体，发送时从 FileChannel 读取，同时更新 digest，不需要为校验和再读一遍文件。
+ * 可以重复发送，每次发送前重置 digest。
+ */
+class FilePartEntity extends AbstractHttpEntity {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File _file;
+    private final long _offset;
+    private final long _length;
+    private final MessageDigest _digest;
+
+    FilePartEntity(File file, long offset, long length, MessageDigest digest) {
+        this._file = file;
+        this._offset = offset;
+        this._length = length;
+        this._digest = digest;
+        setContentType("application/octet-stream");
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return _length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(_file, "r");
+        file.seek(_offset);
+        return new InputStream() {
+            private long _remaining = _length;
+
+            @Override
+            public int read() throws IOException {
+                if (_remaining <= 0) {
+                    return -1;
+                }
+                int b = file.read();
+                if (b >= 0) {
+                    _remaining--;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (_remaining <= 0) {
+                    return -1;
+                }
+                int read = file.read(b, off, (int) Math.min(len, _remaining));
+                if (read > 0) {
+                    _remaining -= read;
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                file.close();
+            }
+        };
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        _digest.reset();
+        RandomAccessFile file = new RandomAccessFile(_file, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(1, _length)));
+            long position = _offset;
+            long end = _offset + _length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int len = channel.read(buffer, position);
+                if (len < 0) {
+                    throw new IOException("File " + _file + " is truncated during upload");
+                }
+                _digest.update(buffer.array(), 0, len);
+                out.write(buffer.array(), 0, len);
+                position += len;
+            }
+        } finally {
+            file.close();
+        }
+        out.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
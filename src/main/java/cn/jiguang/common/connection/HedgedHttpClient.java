@@ -0,0 +1,288 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.ResponseWrapper;
+import cn.jiguang.common.utils.LatencyHistogram;
+import cn.jiguang.common.utils.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 对幂等的 GET 请求做对冲（hedged request）：请求发出后一段时间内还没有响应，就再发一个相同的请求（连接池会分配另一个连接），
+ * 先返回的结果生效，另一个被取消。用于报表查询等 GET 接口，避免个别慢连接拖到读超时。
+ * <p>
+ * 等待时间取最近 GET 响应耗时的分位数（默认 p95），样本不足时使用初始延迟，正常情况下只有约 5% 的请求会多发一次；
+ * 对冲请求数还受 maxHedgeRatio 限制（默认不超过总请求数的 10%），服务端整体变慢时不会成倍放大压力。
+ * <p>
+ * 只对 GET 生效，其他方法直接交给被包装的 client。被包装的 client 须实现 IAsyncHttpClient，如 NettyHttpClient、Http2Client。
+ */
+public class HedgedHttpClient implements IHttpClient, IAsyncHttpClient {
+
+    public static final double DEFAULT_PERCENTILE = 95;
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 1000;
+    public static final double DEFAULT_MAX_HEDGE_RATIO = 0.1;
+
+    // 样本数达到后才按分位数计算延迟
+    private static final int MIN_SAMPLES = 100;
+    // 每积累这么多样本换一个新的直方图，使延迟跟随最近的响应耗时
+    private static final int WINDOW_SIZE = 10000;
+    // 每记录这么多样本重新计算一次延迟
+    private static final int REFRESH_INTERVAL = 64;
+
+    private final IAsyncHttpClient _delegate;
+    private final double _percentile;
+    private final long _initialDelayNanos;
+    private final double _maxHedgeRatio;
+
+    private volatile LatencyHistogram _current = new LatencyHistogram();
+    private volatile LatencyHistogram _previous;
+    private volatile long _delayNanos;
+    private final AtomicLong _requests = new AtomicLong();
+    private final AtomicLong _hedges = new AtomicLong();
+
+    public HedgedHttpClient(IAsyncHttpClient delegate) {
+        this(delegate, DEFAULT_PERCENTILE, DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_HEDGE_RATIO);
+    }
+
+    /**
+     * @param percentile 对冲延迟取 GET 响应耗时的分位数，如 95
+     * @param initialDelayMillis 样本不足时的对冲延迟
+     * @param maxHedgeRatio 对冲请求数占总请求数的上限，0 表示不对冲
+     */
+    public HedgedHttpClient(IAsyncHttpClient delegate, double percentile, long initialDelayMillis,
+                            double maxHedgeRatio) {
+        Preconditions.checkArgument(null != delegate, "delegate should not be null");
+        Preconditions.checkArgument(percentile > 0 && percentile <= 100, "percentile should be in (0, 100]");
+        Preconditions.checkArgument(initialDelayMillis > 0, "initialDelayMillis should be positive");
+        Preconditions.checkArgument(maxHedgeRatio >= 0 && maxHedgeRatio <= 1, "maxHedgeRatio should be in [0, 1]");
+        this._delegate = delegate;
+        this._percentile = percentile;
+        this._initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(initialDelayMillis);
+        this._maxHedgeRatio = maxHedgeRatio;
+        this._delayNanos = _initialDelayNanos;
+    }
+
+    /**
+     * @return 当前的对冲延迟，纳秒
+     */
+    public long getHedgeDelayNanos() {
+        return _delayNanos;
+    }
+
+    public long getRequestCount() {
+        return _requests.get();
+    }
+
+    /**
+     * @return 实际发出的对冲请求数
+     */
+    public long getHedgeCount() {
+        return _hedges.get();
+    }
+
+    @Override
+    public ResponseWrapper sendGet(String url) throws APIConnectionException, APIRequestException {
+        return sendGetAsync(url).getResponse();
+    }
+
+    @Override
+    public ResponseWrapper sendGet(String url, String content) throws APIConnectionException, APIRequestException {
+        return sendGetAsync(url, content).getResponse();
+    }
+
+    @Override
+    public ResponseWrapper sendDelete(String url) throws APIConnectionException, APIRequestException {
+        return _delegate.sendDeleteAsync(url).getResponse();
+    }
+
+    @Override
+    public ResponseWrapper sendDelete(String url, String content) throws APIConnectionException, APIRequestException {
+        return _delegate.sendDeleteAsync(url, content).getResponse();
+    }
+
+    @Override
+    public ResponseWrapper sendPost(String url, String content) throws APIConnectionException, APIRequestException {
+        return _delegate.sendPostAsync(url, content).getResponse();
+    }
+
+    @Override
+    public ResponseWrapper sendPut(String url, String content) throws APIConnectionException, APIRequestException {
+        return _delegate.sendPutAsync(url, content).getResponse();
+    }
+
+    @Override
+    public ResponseFuture sendGetAsync(String url) {
+        return new HedgedCall(url, null).start();
+    }
+
+    @Override
+    public ResponseFuture sendGetAsync(String url, String content) {
+        return new HedgedCall(url, content).start();
+    }
+
+    @Override
+    public ResponseFuture sendDeleteAsync(String url) {
+        return _delegate.sendDeleteAsync(url);
+    }
+
+    @Override
+    public ResponseFuture sendDeleteAsync(String url, String content) {
+        return _delegate.sendDeleteAsync(url, content);
+    }
+
+    @Override
+    public ResponseFuture sendPostAsync(String url, String content) {
+        return _delegate.sendPostAsync(url, content);
+    }
+
+    @Override
+    public ResponseFuture sendPutAsync(String url, String content) {
+        return _delegate.sendPutAsync(url, content);
+    }
+
+    private boolean tryAcquireHedge() {
+        if (_hedges.get() >= _requests.get() * _maxHedgeRatio) {
+            return false;
+        }
+        _hedges.incrementAndGet();
+        return true;
+    }
+
+    private void record(long nanos) {
+        LatencyHistogram current = _current;
+        current.record(nanos);
+        long count = current.getCount();
+        if (count >= WINDOW_SIZE) {
+            synchronized (this) {
+                if (current == _current) {
+                    _previous = current;
+                    _current = new LatencyHistogram();
+                }
+            }
+        }
+        if (count % REFRESH_INTERVAL == 0) {
+            LatencyHistogram histogram = count >= MIN_SAMPLES ? current : _previous;
+            if (null != histogram) {
+                _delayNanos = Math.max(histogram.getValueAtPercentile(_percentile), 1);
+            }
+        }
+    }
+
+    /**
+     * 一次 GET 调用，包含最初的请求和可能的对冲请求
+     */
+    private class HedgedCall {
+        private final String _url;
+        private final String _content;
+        private final ResponseFuture _future = new ResponseFuture();
+        private final List<ResponseFuture> _attempts = new ArrayList<ResponseFuture>(2);
+        private final AtomicInteger _pending = new AtomicInteger();
+        private volatile ScheduledFuture<?> _timer;
+
+        HedgedCall(String url, String content) {
+            this._url = url;
+            this._content = content;
+        }
+
+        ResponseFuture start() {
+            _requests.incrementAndGet();
+            _future.setCancelHandler(new Runnable() {
+                @Override
+                public void run() {
+                    cancelAll(null);
+                }
+            });
+            send();
+            if (_maxHedgeRatio > 0 && !_future.isDone()) {
+                _timer = Scheduler.INSTANCE.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!_future.isDone() && tryAcquireHedge()) {
+                            send();
+                        }
+                    }
+                }, _delayNanos, TimeUnit.NANOSECONDS);
+                if (_future.isDone()) {
+                    _timer.cancel(false);
+                }
+            }
+            return _future;
+        }
+
+        private void send() {
+            _pending.incrementAndGet();
+            final long start = System.nanoTime();
+            final ResponseFuture attempt = null == _content ? _delegate.sendGetAsync(_url)
+                    : _delegate.sendGetAsync(_url, _content);
+            synchronized (_attempts) {
+                _attempts.add(attempt);
+            }
+            attempt.addCallback(new ResponseCallback() {
+                @Override
+                public void onSucceed(ResponseWrapper wrapper) {
+                    record(System.nanoTime() - start);
+                    if (_future.complete(wrapper)) {
+                        cancelAll(attempt);
+                    }
+                }
+
+                @Override
+                public void onFailed(Exception e) {
+                    if (e instanceof CancellationException) {
+                        return;
+                    }
+                    // 服务端的错误响应直接生效；连接错误时如果另一个请求还在进行，等它的结果
+                    if (e instanceof APIRequestException || _pending.decrementAndGet() == 0) {
+                        if (_future.fail(e)) {
+                            cancelAll(attempt);
+                        }
+                    }
+                }
+            });
+            if (_future.isDone() && !attempt.isDone()) {
+                attempt.cancel(true);
+            }
+        }
+
+        private void cancelAll(ResponseFuture winner) {
+            ScheduledFuture<?> timer = _timer;
+            if (null != timer) {
+                timer.cancel(false);
+            }
+            List<ResponseFuture> attempts;
+            synchronized (_attempts) {
+                attempts = new ArrayList<ResponseFuture>(_attempts);
+            }
+            for (ResponseFuture attempt : attempts) {
+                if (attempt != winner) {
+                    attempt.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * 对冲请求的定时共用一个守护线程
+     */
+    private static class Scheduler {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "jiguang-hedged-request");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+}
@@ -5,21 +5,39 @@ import cn.jiguang.common.resp.APIConnectionException;
 import cn.jiguang.common.resp.APIRequestException;
 import cn.jiguang.common.resp.ResponseWrapper;
 import cn.jiguang.common.utils.StringUtils;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Headers;
+import okhttp3.Interceptor;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.Authenticator;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.text.MessageFormat;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
-
-public class Http2Client implements IHttpClient {
+/**
+ * OkHttp 实现的版本。每个实例持有一个长期复用的 OkHttpClient，连接池和 Dispatcher 在所有请求间共享；
+ * 运行环境支持 ALPN 时与服务端协商 HTTP/2，同一主机的并发请求复用一条 TLS 连接，否则退回 HTTP/1.1 keep-alive 连接池。
+ * <p>
+ * 用完后请调用 close 释放 Dispatcher 线程和连接。
+ */
+public class Http2Client implements IHttpClient, IAsyncHttpClient, IStreamingHttpClient, IBinaryHttpClient,
+        IMultiTenantHttpClient {
 
     private static final Logger LOG = LoggerFactory.getLogger(Http2Client.class);
     private static final String KEYWORDS_CONNECT_TIMED_OUT = "connect timed out";
@@ -33,8 +51,12 @@ public class Http2Client implements IHttpClient {
 
     private String _authCode;
     private HttpProxy _proxy;
+    private final OkHttpClient _client;
 
-    private final String _encryptType;
+    // 每个请求相同的请求头，创建时计算一次；Headers 不可变，所有请求共用
+    private final Headers _headers;
+    private final RequestListener _listener;
+    private final RetryPolicy _retryPolicy;
 
     public Http2Client(String authCode, HttpProxy proxy, ClientConfig config) {
         _maxRetryTimes = config.getMaxRetryTimes();
@@ -44,7 +66,9 @@ public class Http2Client implements IHttpClient {
 
         _authCode = authCode;
         _proxy = proxy;
-        _encryptType = config.getEncryptType();
+        _headers = buildHeaders(authCode, config.getEncryptType(), config.getResponseCompression());
+        _listener = config.getRequestListener();
+        _retryPolicy = new RetryPolicy(config);
         String message = MessageFormat.format("Created instance with "
                         + "connectionTimeout {0}, readTimeout {1}, maxRetryTimes {2}, SSL Version {3}",
                 _connectionTimeout, _readTimeout, _maxRetryTimes, _sslVer);
@@ -54,6 +78,28 @@ public class Http2Client implements IHttpClient {
             Authenticator.setDefault(new NativeHttpClient.SimpleProxyAuthenticator(
                     _proxy.getUsername(), _proxy.getPassword()));
         }
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(config.getMaxConcurrentRequests());
+        dispatcher.setMaxRequestsPerHost(config.getMaxConcurrentRequestsPerHost());
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectTimeout(_connectionTimeout, TimeUnit.MILLISECONDS)
+                .readTimeout(_readTimeout, TimeUnit.MILLISECONDS)
+                .connectionPool(new ConnectionPool(config.getMaxIdleConnections(),
+                        config.getConnectionIdleTimeout(), TimeUnit.MILLISECONDS))
+                .dispatcher(dispatcher)
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        if (null != _proxy) {
+            builder.proxy(_proxy.getNetProxy());
+        }
+        int requestCompressionThreshold = config.getRequestCompressionThreshold();
+        if (requestCompressionThreshold >= 0) {
+            builder.addInterceptor(new CompressionInterceptor(requestCompressionThreshold));
+        }
+        if (null != _listener) {
+            OkHttpRequestMetrics.install(builder);
+        }
+        _client = builder.build();
     }
 
     @Override
@@ -69,22 +115,8 @@ public class Http2Client implements IHttpClient {
         }
 
         try {
-            Request.Builder requestBuilder = new Request.Builder().url(url)
-                    .header("User-Agent", JPUSH_USER_AGENT)
-                    .addHeader("Accept-Charset", CHARSET)
-                    .addHeader("Charset", CHARSET)
-                    .addHeader("Connection", "Keep-Alive")
-                    .addHeader("Authorization", _authCode)
-                    .addHeader("Content-Type", CONTENT_TYPE_JSON);
-            if (!StringUtils.isEmpty(_encryptType)) {
-                requestBuilder.addHeader("X-Encrypt-Type", _encryptType);
-            }
-            Request request = requestBuilder.build();
-            if (null != content) {
-                byte[] data = content.getBytes(CHARSET);
-                request.newBuilder().header("Content-Length", String.valueOf(data.length));
-            }
-            handleResponse(wrapper, request);
+            Request.Builder requestBuilder = newRequestBuilder(_authCode, url);
+            handleResponse(wrapper, requestBuilder.build());
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
         } catch (IOException e) {
@@ -93,72 +125,66 @@ public class Http2Client implements IHttpClient {
         return wrapper;
     }
 
+    /**
+     * 按 RetryPolicy 重试，整个调用共用一个 RequestMetrics；最后一次的响应放到 wrapper 中。
+     */
     public void handleResponse(ResponseWrapper wrapper, Request request) throws IOException {
-        OkHttpClient client = new OkHttpClient.Builder()
-                .connectTimeout(_connectionTimeout, TimeUnit.MILLISECONDS)
-                .readTimeout(_readTimeout, TimeUnit.MILLISECONDS)
-                .build();
-        okhttp3.Response response = client.newCall(request).execute();
+        boolean idempotent = RetryPolicy.isIdempotent(request.method());
+        _retryPolicy.onRequest();
+        RequestMetrics metrics = RequestMetrics.start(_listener, request.method(), request.url().toString());
+        if (null != metrics) {
+            request = request.newBuilder().tag(metrics).build();
+        }
+        for (int retryTimes = 0; ; retryTimes++) {
+            try {
+                readResponse(wrapper, _client.newCall(request).execute());
+            } catch (IOException e) {
+                APIConnectionException exception = toConnectionException(e);
+                if (!_retryPolicy.awaitRetry(idempotent, exception, retryTimes, metrics)) {
+                    if (null != metrics) {
+                        metrics.end(exception);
+                    }
+                    throw e;
+                }
+                continue;
+            }
+            if (!_retryPolicy.awaitRetry(idempotent, wrapper, retryTimes, metrics)) {
+                if (null != metrics) {
+                    end(metrics, wrapper);
+                }
+                return;
+            }
+            wrapper.error = null;
+        }
+    }
+
+    /**
+     * 非 2xx 的响应按 APIRequestException 统计
+     */
+    private static void end(RequestMetrics metrics, ResponseWrapper wrapper) {
+        if (wrapper.responseCode >= 200 && wrapper.responseCode < 300) {
+            metrics.end(wrapper);
+        } else {
+            metrics.end(new APIRequestException(wrapper));
+        }
+    }
+
+    /**
+     * 非 2xx 的响应都会读取错误信息
+     */
+    private void readResponse(ResponseWrapper wrapper, okhttp3.Response response) throws IOException {
+        wrapper.setRateLimit(response.header(RATE_LIMIT_QUOTA), response.header(RATE_LIMIT_Remaining),
+                response.header(RATE_LIMIT_Reset));
+        wrapper.responseContent = response.body().string();
         if (response.isSuccessful()) {
             wrapper.responseCode = 200;
-            wrapper.responseContent = response.body().string();
-            LOG.debug("Succeed to get response OK - response body: " + wrapper.responseContent);
-//            InputStream in = response.body().byteStream();
-//            StringBuffer sb = new StringBuffer();
-//            if (null != in) {
-//                InputStreamReader reader = new InputStreamReader(in, CHARSET);
-//                char[] buff = new char[1024];
-//                int len;
-//                while ((len = reader.read(buff)) > 0) {
-//                    sb.append(buff, 0, len);
-//                }
-//            }
+            ResponseClassifier.classify(LOG, wrapper);
         } else {
-            int status = response.code();
-            wrapper.responseCode = status;
-            wrapper.responseContent = response.body().string();
-            if (status >= 300 && status < 400) {
-                LOG.warn("Normal response but unexpected - responseCode:" + status + ", responseContent:" + wrapper.responseContent);
-
-            } else {
-                LOG.warn("Got error response - responseCode:" + status + ", responseContent:" + wrapper.responseContent);
-
-                switch (status) {
-                    case 400:
-                        LOG.warn("Your request params is invalid. Please check them according to error message.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 401:
-                        LOG.warn("Authentication failed! Please check authentication params according to docs.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 403:
-                        LOG.warn("Request is forbidden! Maybe your appkey is listed in blacklist or your params is invalid.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 404:
-                        LOG.warn("Request page is not found! Maybe your params is invalid.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 410:
-                        LOG.warn("Request resource is no longer in service. Please according to notice on official website.");
-                        wrapper.setErrorObject();
-                    case 429:
-                        LOG.warn("Too many requests! Please review your appkey's request quota.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 500:
-                    case 502:
-                    case 503:
-                    case 504:
-                        LOG.warn("Seems encountered server error. Maybe JPush is in maintenance? Please retry later.");
-                        break;
-                    default:
-                        LOG.warn("Unexpected response.");
-                }
+            wrapper.responseCode = response.code();
+            ResponseClassifier.classify(LOG, wrapper);
+            if (null == wrapper.error) {
+                wrapper.setErrorObject();
             }
-            LOG.warn("Got error response - response: " + response.body().string());
-            wrapper.setErrorObject();
         }
     }
 
@@ -168,17 +194,7 @@ public class Http2Client implements IHttpClient {
         LOG.debug("Send request - Delete url:" + " " + url);
         Request request;
         try {
-            Request.Builder requestBuilder = new Request.Builder().url(url)
-                    .header("User-Agent", JPUSH_USER_AGENT)
-                    .addHeader("Accept-Charset", CHARSET)
-                    .addHeader("Charset", CHARSET)
-                    .addHeader("Connection", "Keep-Alive")
-                    .addHeader("Authorization", _authCode)
-                    .addHeader("Content-Type", CONTENT_TYPE_JSON)
-                    .delete();
-            if (!StringUtils.isEmpty(_encryptType)) {
-                requestBuilder.addHeader("X-Encrypt-Type", _encryptType);
-            }
+            Request.Builder requestBuilder = newRequestBuilder(_authCode, url).delete();
             request = requestBuilder.build();
             handleResponse(wrapper, request);
         } catch (UnsupportedEncodingException e) {
@@ -196,17 +212,7 @@ public class Http2Client implements IHttpClient {
         Request request;
         try {
             RequestBody body = RequestBody.create(JSON, content);
-            Request.Builder requestBuilder = new Request.Builder().url(url)
-                    .header("User-Agent", JPUSH_USER_AGENT)
-                    .addHeader("Accept-Charset", CHARSET)
-                    .addHeader("Charset", CHARSET)
-                    .addHeader("Connection", "Keep-Alive")
-                    .addHeader("Authorization", _authCode)
-                    .addHeader("Content-Type", CONTENT_TYPE_JSON)
-                    .delete(body);
-            if (!StringUtils.isEmpty(_encryptType)) {
-                requestBuilder.addHeader("X-Encrypt-Type", _encryptType);
-            }
+            Request.Builder requestBuilder = newRequestBuilder(_authCode, url).delete(body);
             request = requestBuilder.build();
             handleResponse(wrapper, request);
         } catch (UnsupportedEncodingException e) {
@@ -223,17 +229,7 @@ public class Http2Client implements IHttpClient {
         ResponseWrapper wrapper = new ResponseWrapper();
         try {
             RequestBody body = RequestBody.create(JSON, content);
-            Request.Builder requestBuilder = new Request.Builder().url(url)
-                    .header("User-Agent", JPUSH_USER_AGENT)
-                    .addHeader("Accept-Charset", CHARSET)
-                    .addHeader("Charset", CHARSET)
-                    .addHeader("Connection", "Keep-Alive")
-                    .addHeader("Authorization", _authCode)
-                    .addHeader("Content-Type", CONTENT_TYPE_JSON)
-                    .post(body);
-            if (!StringUtils.isEmpty(_encryptType)) {
-                requestBuilder.addHeader("X-Encrypt-Type", _encryptType);
-            }
+            Request.Builder requestBuilder = newRequestBuilder(_authCode, url).post(body);
             Request request = requestBuilder.build();
             handleResponse(wrapper, request);
         } catch (UnsupportedEncodingException e) {
@@ -250,17 +246,7 @@ public class Http2Client implements IHttpClient {
         ResponseWrapper wrapper = new ResponseWrapper();
         try {
             RequestBody body = RequestBody.create(JSON, content);
-            Request.Builder requestBuilder = new Request.Builder().url(url)
-                    .header("User-Agent", JPUSH_USER_AGENT)
-                    .addHeader("Accept-Charset", CHARSET)
-                    .addHeader("Charset", CHARSET)
-                    .addHeader("Connection", "Keep-Alive")
-                    .addHeader("Authorization", _authCode)
-                    .addHeader("Content-Type", CONTENT_TYPE_JSON)
-                    .put(body);
-            if (!StringUtils.isEmpty(_encryptType)) {
-                requestBuilder.addHeader("X-Encrypt-Type", _encryptType);
-            }
+            Request.Builder requestBuilder = newRequestBuilder(_authCode, url).put(body);
             Request request = requestBuilder.build();
             handleResponse(wrapper, request);
         } catch (UnsupportedEncodingException e) {
@@ -270,4 +256,310 @@ public class Http2Client implements IHttpClient {
         }
         return wrapper;
     }
+
+    /**
+     * handler 可能已经读了部分响应体，只在请求没有被处理时重试
+     */
+    @Override
+    public <T> T sendStreaming(RequestMethod method, String url, String content, ResponseBodyHandler<T> handler)
+            throws APIConnectionException, APIRequestException {
+        LOG.debug("Send streaming request - " + method + " " + url);
+        Request request = newRequest(_authCode, method, url, null == content ? null : RequestBody.create(JSON, content));
+        _retryPolicy.onRequest();
+        RequestMetrics metrics = RequestMetrics.start(_listener, request.method(), request.url().toString());
+        if (null != metrics) {
+            request = request.newBuilder().tag(metrics).build();
+        }
+        for (int retryTimes = 0; ; retryTimes++) {
+            try {
+                ResponseWrapper wrapper = new ResponseWrapper();
+                T result = sendStreaming(request, wrapper, handler);
+                if (null != metrics) {
+                    metrics.end(wrapper);
+                }
+                return result;
+            } catch (APIConnectionException e) {
+                if (!_retryPolicy.awaitRetry(false, e, retryTimes, metrics)) {
+                    if (null != metrics) {
+                        metrics.end(e);
+                    }
+                    throw e;
+                }
+            } catch (APIRequestException e) {
+                if (!_retryPolicy.awaitRetry(false, e, retryTimes, metrics)) {
+                    if (null != metrics) {
+                        metrics.end(e);
+                    }
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private <T> T sendStreaming(Request request, ResponseWrapper wrapper, ResponseBodyHandler<T> handler)
+            throws APIConnectionException, APIRequestException {
+        okhttp3.Response response = null;
+        try {
+            response = _client.newCall(request).execute();
+            return readResponse(wrapper, response, handler);
+        } catch (IOException e) {
+            throw toConnectionException(e);
+        } finally {
+            if (null != response) {
+                response.body().close();
+            }
+        }
+    }
+
+    @Override
+    public ResponseWrapper sendBytes(RequestMethod method, String url, final ByteBuffer content)
+            throws APIConnectionException, APIRequestException {
+        LOG.debug("Send request - " + method + " " + url);
+        RequestBody body;
+        if (null == content) {
+            body = null;
+        } else if (content.hasArray()) {
+            body = RequestBody.create(JSON, content.array(), content.arrayOffset() + content.position(),
+                    content.remaining());
+        } else {
+            body = new RequestBody() {
+                @Override
+                public MediaType contentType() {
+                    return JSON;
+                }
+
+                @Override
+                public long contentLength() {
+                    return content.remaining();
+                }
+
+                @Override
+                public void writeTo(BufferedSink sink) throws IOException {
+                    ByteBuffers.writeTo(content, sink.outputStream());
+                }
+            };
+        }
+        return execute(newRequest(_authCode, method, url, body));
+    }
+
+    @Override
+    public ResponseWrapper send(String authCode, RequestMethod method, String url, String content)
+            throws APIConnectionException, APIRequestException {
+        LOG.debug("Send request - " + method + " " + url);
+        return execute(newRequest(authCode, method, url, null == content ? null : RequestBody.create(JSON, content)));
+    }
+
+    /**
+     * 与 sendBytes 等新增接口一致，非 2xx 的响应抛出 APIRequestException
+     */
+    private ResponseWrapper execute(Request request) throws APIConnectionException, APIRequestException {
+        ResponseWrapper wrapper = new ResponseWrapper();
+        try {
+            handleResponse(wrapper, request);
+        } catch (IOException e) {
+            throw toConnectionException(e);
+        }
+        if (wrapper.responseCode < 200 || wrapper.responseCode >= 300) {
+            throw new APIRequestException(wrapper);
+        }
+        return wrapper;
+    }
+
+    /**
+     * @param body 没有请求体时为 null；PUT 和 POST 此时发送空的请求体
+     */
+    private Request newRequest(String authCode, RequestMethod method, String url, RequestBody body) {
+        Request.Builder builder = newRequestBuilder(authCode, url);
+        switch (method) {
+            case GET:
+                break;
+            case DELETE:
+                if (null == body) {
+                    builder.delete();
+                } else {
+                    builder.delete(body);
+                }
+                break;
+            case PUT:
+                builder.put(null == body ? RequestBody.create(JSON, "") : body);
+                break;
+            default:
+                builder.post(null == body ? RequestBody.create(JSON, "") : body);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 2xx 和 3xx 的响应体交给 handler，其他响应读成字符串后抛出 APIRequestException
+     */
+    private <T> T readResponse(ResponseWrapper wrapper, okhttp3.Response response, ResponseBodyHandler<T> handler)
+            throws IOException, APIRequestException {
+        int status = response.code();
+        if (status >= 200 && status < 400) {
+            wrapper.responseCode = status;
+            wrapper.setRateLimit(response.header(RATE_LIMIT_QUOTA), response.header(RATE_LIMIT_Remaining),
+                    response.header(RATE_LIMIT_Reset));
+            return handler.handle(wrapper, response.body().byteStream());
+        }
+        readResponse(wrapper, response);
+        throw new APIRequestException(wrapper);
+    }
+
+    @Override
+    public ResponseFuture sendGetAsync(String url) {
+        return sendGetAsync(url, null);
+    }
+
+    @Override
+    public ResponseFuture sendGetAsync(String url, String content) {
+        LOG.debug("Send async request - Get" + " " + url);
+        return enqueue(newRequestBuilder(_authCode, url).build());
+    }
+
+    @Override
+    public ResponseFuture sendDeleteAsync(String url) {
+        LOG.debug("Send async request - Delete url:" + " " + url);
+        return enqueue(newRequestBuilder(_authCode, url).delete().build());
+    }
+
+    @Override
+    public ResponseFuture sendDeleteAsync(String url, String content) {
+        LOG.debug("Send async request - Delete url:" + " " + url + " content: " + content);
+        return enqueue(newRequestBuilder(_authCode, url).delete(RequestBody.create(JSON, content)).build());
+    }
+
+    @Override
+    public ResponseFuture sendPostAsync(String url, String content) {
+        LOG.debug("Send async request - Post url:" + " " + url + " content: " + content);
+        return enqueue(newRequestBuilder(_authCode, url).post(RequestBody.create(JSON, content)).build());
+    }
+
+    @Override
+    public ResponseFuture sendPutAsync(String url, String content) {
+        LOG.debug("Send async request - Put url:" + " " + url + " content: " + content);
+        return enqueue(newRequestBuilder(_authCode, url).put(RequestBody.create(JSON, content)).build());
+    }
+
+    private Request.Builder newRequestBuilder(String authCode, String url) {
+        Headers headers = null == authCode || authCode.equals(_authCode) ? _headers
+                : _headers.newBuilder().set("Authorization", authCode).build();
+        return new Request.Builder().url(url).headers(headers);
+    }
+
+    /**
+     * Content-Type 由 RequestBody 设置；Connection 由 OkHttp 管理，HTTP/2 不允许发送；请求体固定为 UTF-8，
+     * 不发送 Accept-Charset 和 Charset。OkHttp 自己会请求并透明解压 gzip 的响应，关闭响应压缩时改为 identity。
+     */
+    private static Headers buildHeaders(String authCode, String encryptType, boolean responseCompression) {
+        Headers.Builder builder = new Headers.Builder().add("User-Agent", JPUSH_USER_AGENT);
+        if (null != authCode) {
+            builder.add("Authorization", authCode);
+        }
+        if (!StringUtils.isEmpty(encryptType)) {
+            builder.add("X-Encrypt-Type", encryptType);
+        }
+        if (!responseCompression) {
+            builder.add("Accept-Encoding", "identity");
+        }
+        return builder.build();
+    }
+
+    /**
+     * 异步请求交给 OkHttp 的 Dispatcher 执行，回调在 Dispatcher 的线程上完成 ResponseFuture，失败时按 RetryPolicy 重试。
+     */
+    private ResponseFuture enqueue(Request request) {
+        RequestMetrics metrics = RequestMetrics.start(_listener, request.method(), request.url().toString());
+        final Request tagged = null == metrics ? request : request.newBuilder().tag(metrics).build();
+        return _retryPolicy.executeAsync(RetryPolicy.isIdempotent(request.method()), new RetryPolicy.AsyncRequest() {
+            @Override
+            public ResponseFuture send(int retryTimes) {
+                return enqueueOnce(tagged);
+            }
+        }, metrics);
+    }
+
+    /**
+     * request 带有整个调用共用的 RequestMetrics 时，由 RetryPolicy 在最后一次请求完成时结束统计
+     */
+    private ResponseFuture enqueueOnce(Request request) {
+        final ResponseFuture responseFuture = new ResponseFuture();
+        final Call call = _client.newCall(request);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                fail(toConnectionException(e));
+            }
+
+            @Override
+            public void onResponse(Call call, okhttp3.Response response) {
+                ResponseWrapper wrapper = new ResponseWrapper();
+                try {
+                    readResponse(wrapper, response);
+                } catch (IOException e) {
+                    fail(toConnectionException(e));
+                    return;
+                }
+                if (wrapper.responseCode >= 200 && wrapper.responseCode < 300) {
+                    responseFuture.complete(wrapper);
+                } else {
+                    fail(new APIRequestException(wrapper));
+                }
+            }
+
+            private void fail(Exception e) {
+                responseFuture.fail(e);
+            }
+        });
+        responseFuture.setCancelHandler(new Runnable() {
+            @Override
+            public void run() {
+                call.cancel();
+            }
+        });
+        return responseFuture;
+    }
+
+    private static APIConnectionException toConnectionException(IOException e) {
+        LOG.debug(IO_ERROR_MESSAGE, e);
+        if (e instanceof SocketTimeoutException) {
+            if (null != e.getMessage() && e.getMessage().contains(KEYWORDS_CONNECT_TIMED_OUT)) {
+                return new APIConnectionException(CONNECT_TIMED_OUT_MESSAGE, e);
+            }
+            return new APIConnectionException(READ_TIMED_OUT_MESSAGE, e, true);
+        }
+        return new APIConnectionException(IO_ERROR_MESSAGE, e);
+    }
+
+    public void close() {
+        _client.dispatcher().executorService().shutdown();
+        _client.connectionPool().evictAll();
+    }
+
+    /**
+     * 请求体达到阈值时 gzip 后发送，长度未知的流式请求体不压缩
+     */
+    private static class CompressionInterceptor implements Interceptor {
+        private final int _threshold;
+
+        CompressionInterceptor(int threshold) {
+            this._threshold = threshold;
+        }
+
+        @Override
+        public okhttp3.Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            RequestBody body = request.body();
+            if (null == body || null != request.header("Content-Encoding") || body.contentLength() < _threshold) {
+                return chain.proceed(request);
+            }
+            Buffer buffer = new Buffer();
+            body.writeTo(buffer);
+            ByteBuffer gzipped = Compression.gzip(ByteBuffer.wrap(buffer.readByteArray()));
+            return chain.proceed(request.newBuilder()
+                    .header("Content-Encoding", Compression.GZIP)
+                    .method(request.method(), RequestBody.create(body.contentType(), gzipped.array(),
+                            gzipped.arrayOffset() + gzipped.position(), gzipped.remaining()))
+                    .build());
+        }
+    }
 }
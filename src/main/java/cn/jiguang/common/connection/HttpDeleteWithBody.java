@@ -0,0 +1,21 @@
+package cn.jiguang.common.connection;
+
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+
+import java.net.URI;
+
+/**
+ * 带请求体的 DELETE，HttpClient 自带的 HttpDelete 不能设置 entity。ApacheHttpClient 和 ApacheAsyncHttpClient 共用。
+ */
+class HttpDeleteWithBody extends HttpEntityEnclosingRequestBase {
+    public static final String METHOD_NAME = "DELETE";
+
+    public String getMethod() {
+        return METHOD_NAME;
+    }
+
+    public HttpDeleteWithBody(final String uri) {
+        super();
+        setURI(URI.create(uri));
+    }
+}
@@ -5,73 +5,88 @@ import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.AttributeKey;
 import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Promise;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.CountDownLatch;
-
+import java.nio.channels.ClosedChannelException;
 
+/**
+ * 所有连接共享的响应处理器。每个连接同一时刻只有一个请求，请求对应的 Promise 挂在连接的属性上，
+ * 收到完整响应后完成该 Promise；连接保持复用，除非服务端要求关闭或连接空闲超时。
+ */
 @ChannelHandler.Sharable
-public class HttpResponseHandler extends SimpleChannelInboundHandler<HttpObject> {
+public class HttpResponseHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
 
     private static final Logger LOG = LoggerFactory.getLogger(HttpResponseHandler.class);
-    private int status;
-    private NettyHttpClient.BaseCallback _callback;
-    private CountDownLatch _latch;
-    private ResponseWrapper _wrapper = new ResponseWrapper();
 
-    public HttpResponseHandler(NettyHttpClient.BaseCallback callback, CountDownLatch latch) {
-        this._callback = callback;
-        this._latch = latch;
-    }
+    public static final AttributeKey<Promise<ResponseWrapper>> RESPONSE_PROMISE =
+            AttributeKey.valueOf("jiguang.responsePromise");
 
+    // 配置了 RequestListener 时，当前请求的统计
+    public static final AttributeKey<RequestMetrics> REQUEST_METRICS =
+            AttributeKey.valueOf("jiguang.requestMetrics");
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
-        if (msg instanceof HttpResponse) {
-            HttpResponse response = (HttpResponse) msg;
-            status = response.status().code();
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) throws Exception {
+        ResponseWrapper wrapper = new ResponseWrapper();
+        wrapper.responseCode = response.status().code();
+        wrapper.responseContent = response.content().toString(CharsetUtil.UTF_8);
+        HttpHeaders headers = response.headers();
+        wrapper.setRateLimit(headers.get(IHttpClient.RATE_LIMIT_QUOTA),
+                headers.get(IHttpClient.RATE_LIMIT_Remaining),
+                headers.get(IHttpClient.RATE_LIMIT_Reset));
+        RequestMetrics metrics = ctx.channel().attr(REQUEST_METRICS).getAndSet(null);
+        if (null != metrics) {
+            metrics.setBytesReceived(response.content().readableBytes());
+        }
+
+        if (!HttpUtil.isKeepAlive(response)) {
+            LOG.debug("closing connection");
+            ctx.close();
+        }
+        Promise<ResponseWrapper> promise = ctx.channel().attr(RESPONSE_PROMISE).getAndSet(null);
+        if (null != promise) {
+            promise.trySuccess(wrapper);
+        } else {
+            LOG.warn("Got response without pending request - responseCode:" + wrapper.responseCode);
         }
-        if (msg instanceof HttpContent) {
-            HttpContent content = (HttpContent) msg;
-            LOG.info(content.content().toString());
-            
-            String responseContent = content.content().toString(CharsetUtil.UTF_8);
-            _wrapper.responseCode = status;
-            _wrapper.responseContent = responseContent;
-            if (null != _latch) {
-                _latch.countDown();
-            }
-            if (null != _callback) {
-                _callback.onSucceed(_wrapper);
-            }
-            
-            if (content instanceof LastHttpContent) {
-                LOG.info("closing connection");
-                ctx.close();
-            }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            LOG.debug("closing idle connection");
+            ctx.close();
+        } else {
+            super.userEventTriggered(ctx, evt);
         }
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        failPending(ctx, new ClosedChannelException());
+        super.channelInactive(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         LOG.error("error:", cause);
+        failPending(ctx, cause);
         try {
             ctx.close();
-            if (null != _latch) {
-                _latch.countDown();
-            }
         } catch (Exception ex) {
             LOG.error("close error:", ex);
         }
     }
 
-    public void resetLatch(CountDownLatch latch) {
-        this._latch = latch;
-    }
-
-    public ResponseWrapper getResponse() {
-        return _wrapper;
+    private static void failPending(ChannelHandlerContext ctx, Throwable cause) {
+        Promise<ResponseWrapper> promise = ctx.channel().attr(RESPONSE_PROMISE).getAndSet(null);
+        if (null != promise) {
+            promise.tryFailure(cause);
+        }
     }
 }
@@ -0,0 +1,22 @@
+package cn.jiguang.common.connection;
+
+/**
+ * 异步版本的 IHttpClient，所有方法立即返回，不阻塞调用线程。
+ * <p>
+ * 返回的 ResponseFuture 与同步接口的语义一致：非 2xx 的响应以 APIRequestException 失败，
+ * 连接、超时等错误以 APIConnectionException 失败。
+ */
+public interface IAsyncHttpClient {
+
+    public ResponseFuture sendGetAsync(String url);
+
+    public ResponseFuture sendGetAsync(String url, String content);
+
+    public ResponseFuture sendDeleteAsync(String url);
+
+    public ResponseFuture sendDeleteAsync(String url, String content);
+
+    public ResponseFuture sendPostAsync(String url, String content);
+
+    public ResponseFuture sendPutAsync(String url, String content);
+}
@@ -0,0 +1,23 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.connection.IHttpClient.RequestMethod;
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.ResponseWrapper;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 直接发送已序列化好的 UTF-8 请求体的 IHttpClient，省去 String 到字节的重新编码和拷贝。
+ * byte[] 可以用 ByteBuffer.wrap 包装，不会拷贝。
+ * <p>
+ * 发送的是 content 从 position 到 limit 的内容，调用不会改变 content 的 position；请求完成前不要修改 content。
+ */
+public interface IBinaryHttpClient {
+
+    /**
+     * @param content 请求体，没有时为 null
+     */
+    public ResponseWrapper sendBytes(RequestMethod method, String url, ByteBuffer content)
+            throws APIConnectionException, APIRequestException;
+}
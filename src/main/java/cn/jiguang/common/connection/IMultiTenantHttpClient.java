@@ -0,0 +1,20 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.connection.IHttpClient.RequestMethod;
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.ResponseWrapper;
+
+/**
+ * 每个请求单独指定 Authorization 的 IHttpClient，多个应用可以共用同一个实例的连接池、IO 线程和 TLS 上下文。
+ * 一般通过 TenantHttpClientRegistry 使用，创建实例时的 authCode 可以为 null。
+ */
+public interface IMultiTenantHttpClient {
+
+    /**
+     * @param authCode 本次请求的 Authorization，见 ServiceHelper.getBasicAuthorization
+     * @param content 请求体，没有时为 null
+     */
+    public ResponseWrapper send(String authCode, RequestMethod method, String url, String content)
+            throws APIConnectionException, APIRequestException;
+}
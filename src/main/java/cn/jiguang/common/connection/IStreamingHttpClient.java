@@ -0,0 +1,24 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.connection.IHttpClient.RequestMethod;
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+
+/**
+ * 支持流式读取响应体的 IHttpClient，例如用 Gson 的 JsonReader 边读边解析：
+ * <pre>
+ * DeviceResult result = client.sendStreaming(RequestMethod.GET, url, null,
+ *         BaseResult.bodyHandler(DeviceResult.class));
+ * </pre>
+ * 请求的发送、重试和错误处理与同步接口相同。
+ */
+public interface IStreamingHttpClient {
+
+    /**
+     * @param content 请求体，没有时为 null
+     * @param handler 读取 2xx 和 3xx 的响应体
+     * @return handler 的返回值
+     */
+    public <T> T sendStreaming(RequestMethod method, String url, String content, ResponseBodyHandler<T> handler)
+            throws APIConnectionException, APIRequestException;
+}
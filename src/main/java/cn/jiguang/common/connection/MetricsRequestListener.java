@@ -0,0 +1,159 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.ClientConfig;
+import cn.jiguang.common.utils.LatencyHistogram;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 默认的 RequestListener 实现，按接口（push、report、device、schedule）分别统计总耗时和首字节耗时的直方图、
+ * 请求数、失败数和流量，可定期导出 p99 等指标：
+ * <pre>
+ * MetricsRequestListener metrics = new MetricsRequestListener(config);
+ * config.setRequestListener(metrics);
+ * ...
+ * long p99 = metrics.getEndpointMetrics("push").getLatency().getValueAtPercentile(99);
+ * </pre>
+ * 接口按 ClientConfig 中配置的主机名区分（push 与 schedule 主机相同时记为 push），其他主机以主机名本身为键。
+ */
+public class MetricsRequestListener implements RequestListener {
+
+    public static final String ENDPOINT_PUSH = "push";
+    public static final String ENDPOINT_REPORT = "report";
+    public static final String ENDPOINT_DEVICE = "device";
+    public static final String ENDPOINT_SCHEDULE = "schedule";
+
+    private final Map<String, String> _hostEndpoints = new HashMap<String, String>();
+    private final ConcurrentMap<String, EndpointMetrics> _endpoints = new ConcurrentHashMap<String, EndpointMetrics>();
+
+    public MetricsRequestListener(ClientConfig config) {
+        addHost(config.get(ClientConfig.PUSH_HOST_NAME), ENDPOINT_PUSH);
+        addHost(config.get(ClientConfig.REPORT_HOST_NAME), ENDPOINT_REPORT);
+        addHost(config.get(ClientConfig.DEVICE_HOST_NAME), ENDPOINT_DEVICE);
+        addHost(config.get(ClientConfig.SCHEDULE_HOST_NAME), ENDPOINT_SCHEDULE);
+    }
+
+    private void addHost(Object hostName, String endpoint) {
+        if (hostName instanceof String) {
+            String host = hostOf((String) hostName);
+            if (!_hostEndpoints.containsKey(host)) {
+                _hostEndpoints.put(host, endpoint);
+            }
+        }
+    }
+
+    @Override
+    public void onRequestStart(RequestMetrics metrics) {
+    }
+
+    @Override
+    public void onRequestEnd(RequestMetrics metrics) {
+        String endpoint = endpointOf(metrics.getUrl());
+        EndpointMetrics endpointMetrics = _endpoints.get(endpoint);
+        if (null == endpointMetrics) {
+            EndpointMetrics created = new EndpointMetrics();
+            endpointMetrics = _endpoints.putIfAbsent(endpoint, created);
+            if (null == endpointMetrics) {
+                endpointMetrics = created;
+            }
+        }
+        endpointMetrics.record(metrics);
+    }
+
+    /**
+     * @return 已有统计的接口名
+     */
+    public Set<String> getEndpoints() {
+        return _endpoints.keySet();
+    }
+
+    /**
+     * @param endpoint 接口名，如 ENDPOINT_PUSH
+     * @return 该接口的统计，还没有请求时为 null
+     */
+    public EndpointMetrics getEndpointMetrics(String endpoint) {
+        return _endpoints.get(endpoint);
+    }
+
+    /**
+     * 把请求地址映射为接口名，子类可覆盖以细分到路径
+     */
+    protected String endpointOf(String url) {
+        String host = hostOf(url);
+        String endpoint = _hostEndpoints.get(host);
+        return null == endpoint ? host : endpoint;
+    }
+
+    private static String hostOf(String url) {
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        while (end < url.length()) {
+            char c = url.charAt(end);
+            if (c == '/' || c == ':' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        return url.substring(start, end).toLowerCase();
+    }
+
+    public static class EndpointMetrics {
+        private final LatencyHistogram _latency = new LatencyHistogram();
+        private final LatencyHistogram _firstByteLatency = new LatencyHistogram();
+        private final AtomicLong _requests = new AtomicLong();
+        private final AtomicLong _errors = new AtomicLong();
+        private final AtomicLong _bytesSent = new AtomicLong();
+        private final AtomicLong _bytesReceived = new AtomicLong();
+
+        void record(RequestMetrics metrics) {
+            _requests.incrementAndGet();
+            if (!metrics.isSuccess()) {
+                _errors.incrementAndGet();
+            }
+            _latency.record(metrics.getTotalNanos());
+            _firstByteLatency.record(metrics.getFirstByteNanos());
+            if (metrics.getBytesSent() > 0) {
+                _bytesSent.addAndGet(metrics.getBytesSent());
+            }
+            if (metrics.getBytesReceived() > 0) {
+                _bytesReceived.addAndGet(metrics.getBytesReceived());
+            }
+        }
+
+        /**
+         * @return 总耗时直方图，包括失败的请求
+         */
+        public LatencyHistogram getLatency() {
+            return _latency;
+        }
+
+        public LatencyHistogram getFirstByteLatency() {
+            return _firstByteLatency;
+        }
+
+        public long getRequestCount() {
+            return _requests.get();
+        }
+
+        /**
+         * @return 失败数，包括连接错误和非 2xx 响应
+         */
+        public long getErrorCount() {
+            return _errors.get();
+        }
+
+        public long getBytesSent() {
+            return _bytesSent.get();
+        }
+
+        public long getBytesReceived() {
+            return _bytesReceived.get();
+        }
+    }
+}
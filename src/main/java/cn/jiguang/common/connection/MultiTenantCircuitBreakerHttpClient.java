@@ -0,0 +1,31 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.ClientConfig;
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.ResponseWrapper;
+
+/**
+ * 保留多租户接口的 CircuitBreakerHttpClient，可以作为 TenantHttpClientRegistry 的 transport，各应用共用按主机划分的熔断器：
+ * <pre>
+ * NettyHttpClient transport = new NettyHttpClient(null, null, clientConfig);
+ * TenantHttpClientRegistry registry = new TenantHttpClientRegistry(
+ *         new MultiTenantCircuitBreakerHttpClient(transport, clientConfig));
+ * </pre>
+ */
+public class MultiTenantCircuitBreakerHttpClient extends CircuitBreakerHttpClient implements IMultiTenantHttpClient {
+
+    private final IMultiTenantHttpClient _tenantDelegate;
+
+    public <C extends IHttpClient & IMultiTenantHttpClient> MultiTenantCircuitBreakerHttpClient(C delegate,
+                                                                                             ClientConfig config) {
+        super(delegate, config);
+        this._tenantDelegate = delegate;
+    }
+
+    @Override
+    public ResponseWrapper send(String authCode, RequestMethod method, String url, String content)
+            throws APIConnectionException, APIRequestException {
+        return forward(_tenantDelegate, authCode, method, url, content);
+    }
+}
@@ -0,0 +1,81 @@
+package cn.jiguang.common.connection;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 只有一个文件字段的 multipart/form-data 请求体，发送时直接从 FileChannel 读取文件写到连接上，不生成临时文件。
+ * <p>
+ * 长度在创建时确定，以 Content-Length 发送；可以重复发送，重试时重新读取文件。
+ */
+class MultipartFileEntity extends AbstractHttpEntity {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File _file;
+    private final byte[] _head;
+    private final byte[] _tail;
+
+    /**
+     * @param name 表单字段名
+     */
+    MultipartFileEntity(String name, File file) {
+        this._file = file;
+        String boundary = "----JiguangFormBoundary" + Long.toHexString(System.nanoTime());
+        this._head = ("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + file.getName() + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(ByteBuffers.UTF_8);
+        this._tail = ("\r\n--" + boundary + "--\r\n").getBytes(ByteBuffers.UTF_8);
+        setContentType("multipart/form-data; boundary=" + boundary);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return _head.length + _file.length() + _tail.length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new SequenceInputStream(new SequenceInputStream(
+                new ByteArrayInputStream(_head), new FileInputStream(_file)),
+                new ByteArrayInputStream(_tail));
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(_head);
+        RandomAccessFile file = new RandomAccessFile(_file, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(1, channel.size())));
+            while (channel.read(buffer) > 0) {
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        } finally {
+            file.close();
+        }
+        out.write(_tail);
+        out.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -12,10 +12,12 @@ import javax.activation.MimetypesFileTypeMap;
 import javax.net.ssl.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.text.MessageFormat;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -23,20 +25,37 @@ import java.util.Map;
  * <p>
  * 本实现没有连接池机制，基于 Java 原始的 HTTP 连接实现。
  * <p>
- * 遇到连接超时，会自动重连指定的次数（默认为 3）；如果是读取超时，则不会自动重连。
+ * 失败时按 RetryPolicy 重试：连接失败和 429 自动重连指定的次数（默认为 3）；读取超时和 5xx 只对 GET、PUT、DELETE 重试，不会重复推送。
  * <p>
  * 可选支持 HTTP 代理，同时支持 2 种方式：1) HTTP 头上加上 Proxy-Authorization 信息；2）全局配置 Authenticator.setDefault；
  */
-public class NativeHttpClient implements IHttpClient {
+public class NativeHttpClient implements IHttpClient, IStreamingHttpClient, IBinaryHttpClient {
     private static final Logger LOG = LoggerFactory.getLogger(NativeHttpClient.class);
-    private static final String KEYWORDS_CONNECT_TIMED_OUT = "connect timed out";
-    private static final String KEYWORDS_READ_TIMED_OUT = "Read timed out";
+
+    // 非流式请求把响应体读成字符串放到 responseContent
+    private static final ResponseBodyHandler<ResponseWrapper> STRING_BODY = new ResponseBodyHandler<ResponseWrapper>() {
+        @Override
+        public ResponseWrapper handle(ResponseWrapper wrapper, InputStream body) throws IOException {
+            wrapper.responseContent = readContent(body);
+            return wrapper;
+        }
+    };
+
+    // formUpload 读文件和 chunked 模式的块大小
+    private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+    // 读取 mime.types 的开销较大，所有上传共用一个
+    private static final MimetypesFileTypeMap MIME_TYPES = new MimetypesFileTypeMap();
 
     private final int _connectionTimeout;
     private final int _readTimeout;
     private final int _maxRetryTimes;
     private final String _sslVer;
-    private final String _encryptType;
+    private final int _requestCompressionThreshold;
+    // 每个请求相同的请求头，名称和值交替存放，创建时计算一次
+    private final String[] _headers;
+
+    private final RequestListener _listener;
+    private final RetryPolicy _retryPolicy;
 
     private String _authCode;
     private HttpProxy _proxy;
@@ -46,9 +65,12 @@ public class NativeHttpClient implements IHttpClient {
         _connectionTimeout = config.getConnectionTimeout();
         _readTimeout = config.getReadTimeout();
         _sslVer = config.getSSLVersion();
-        _encryptType = config.getEncryptType();
+        _requestCompressionThreshold = config.getRequestCompressionThreshold();
+        _listener = config.getRequestListener();
+        _retryPolicy = new RetryPolicy(config);
         _authCode = authCode;
         _proxy = proxy;
+        _headers = buildHeaders(authCode, config);
 
         String message = MessageFormat.format("Created instance with "
                         + "connectionTimeout {0}, readTimeout {1}, maxRetryTimes {2}, SSL Version {3}",
@@ -62,6 +84,31 @@ public class NativeHttpClient implements IHttpClient {
         initSSL(_sslVer);
     }
 
+    /**
+     * HttpURLConnection 默认保持连接，不需要 Connection 头；请求体固定为 UTF-8，不发送 Accept-Charset 和 Charset
+     */
+    private static String[] buildHeaders(String authCode, ClientConfig config) {
+        List<String> headers = new ArrayList<String>();
+        headers.add("User-Agent");
+        headers.add(JPUSH_USER_AGENT);
+        if (null != authCode) {
+            headers.add("Authorization");
+            headers.add(authCode);
+        }
+        headers.add("Content-Type");
+        headers.add(CONTENT_TYPE_JSON);
+        String encryptType = config.getEncryptType();
+        if (!StringUtils.isEmpty(encryptType)) {
+            headers.add("X-Encrypt-Type");
+            headers.add(encryptType);
+        }
+        if (config.getResponseCompression()) {
+            headers.add("Accept-Encoding");
+            headers.add(Compression.ACCEPT_ENCODING);
+        }
+        return headers.toArray(new String[headers.size()]);
+    }
+
     public ResponseWrapper sendGet(String url)
             throws APIConnectionException, APIRequestException {
         return sendGet(url, null);
@@ -94,41 +141,93 @@ public class NativeHttpClient implements IHttpClient {
 
     public ResponseWrapper doRequest(String url, String content,
                                      RequestMethod method) throws APIConnectionException, APIRequestException {
-        ResponseWrapper response = null;
-        for (int retryTimes = 0; ; retryTimes++) {
-            try {
-                response = _doRequest(url, content, method);
-                break;
-            } catch (SocketTimeoutException e) {
-                if (KEYWORDS_READ_TIMED_OUT.equals(e.getMessage())) {
-                    // Read timed out.  For push, maybe should not re-send.
-                    throw new APIConnectionException(READ_TIMED_OUT_MESSAGE, e, true);
-                } else {    // connect timed out
-                    if (retryTimes >= _maxRetryTimes) {
-                        throw new APIConnectionException(CONNECT_TIMED_OUT_MESSAGE, e, retryTimes);
-                    } else {
-                        LOG.debug("connect timed out - retry again - " + (retryTimes + 1));
+        logContent(content);
+        return doRequest(url, ByteBuffers.encode(content), method, STRING_BODY);
+    }
+
+    @Override
+    public <T> T sendStreaming(RequestMethod method, String url, String content, ResponseBodyHandler<T> handler)
+            throws APIConnectionException, APIRequestException {
+        logContent(content);
+        return doRequest(url, ByteBuffers.encode(content), method, handler);
+    }
+
+    @Override
+    public ResponseWrapper sendBytes(RequestMethod method, String url, ByteBuffer content)
+            throws APIConnectionException, APIRequestException {
+        return doRequest(url, content, method, STRING_BODY);
+    }
+
+    private static void logContent(String content) {
+        if (null != content) {
+            LOG.debug("Request Content - " + content);
+        }
+    }
+
+    /**
+     * 按 RetryPolicy 重试。流式请求的 handler 可能已经读了部分响应体，只在请求没有被处理时重试。
+     */
+    private <T> T doRequest(String url, ByteBuffer content, RequestMethod method, ResponseBodyHandler<T> handler)
+            throws APIConnectionException, APIRequestException {
+        RequestMetrics metrics = RequestMetrics.start(_listener, method.name(), url);
+        boolean idempotent = handler == STRING_BODY && RetryPolicy.isIdempotent(method.name());
+        _retryPolicy.onRequest();
+        // 只压缩一次，重试时复用
+        boolean gzipped = null != content && _requestCompressionThreshold >= 0
+                && content.remaining() >= _requestCompressionThreshold;
+        if (gzipped) {
+            content = Compression.gzip(content);
+        }
+        ResponseWrapper wrapper;
+        T result;
+        try {
+            for (int retryTimes = 0; ; retryTimes++) {
+                wrapper = new ResponseWrapper();
+                try {
+                    result = _doRequest(url, content, gzipped, method, wrapper, handler, metrics);
+                    break;
+                } catch (APIConnectionException e) {
+                    if (!_retryPolicy.awaitRetry(idempotent, e, retryTimes, metrics)) {
+                        if (retryTimes > 0 && !e.isReadTimedout()) {
+                            throw new APIConnectionException(e.getMessage(), e.getCause(), retryTimes);
+                        }
+                        throw e;
+                    }
+                } catch (APIRequestException e) {
+                    if (!_retryPolicy.awaitRetry(idempotent, e, retryTimes, metrics)) {
+                        throw e;
                     }
                 }
             }
+        } catch (APIConnectionException e) {
+            if (null != metrics) {
+                metrics.end(e);
+            }
+            throw e;
+        } catch (APIRequestException e) {
+            if (null != metrics) {
+                metrics.end(e);
+            }
+            throw e;
+        }
+        if (null != metrics) {
+            metrics.end(wrapper);
         }
-        return response;
+        return result;
     }
 
-    private ResponseWrapper _doRequest(String url, String content,
-                                       RequestMethod method) throws APIConnectionException, APIRequestException,
-            SocketTimeoutException {
+    /**
+     * @param gzipped content 是否已经 gzip 压缩
+     */
+    private <T> T _doRequest(String url, ByteBuffer content, boolean gzipped, RequestMethod method,
+                             ResponseWrapper wrapper, ResponseBodyHandler<T> handler, RequestMetrics metrics)
+            throws APIConnectionException, APIRequestException {
 
         LOG.debug("Send request - " + method.toString() + " " + url);
-        if (null != content) {
-            LOG.debug("Request Content - " + content);
-        }
         HttpURLConnection conn = null;
         OutputStream out = null;
         InputStream in = null;
-        InputStreamReader reader = null;
-        StringBuffer sb = new StringBuffer();
-        ResponseWrapper wrapper = new ResponseWrapper();
+        T result = null;
 
         try {
             URL aUrl = new URL(url);
@@ -139,107 +238,68 @@ public class NativeHttpClient implements IHttpClient {
             conn.setReadTimeout(_readTimeout);
             conn.setUseCaches(false);
             conn.setRequestMethod(method.name());
-            if (!StringUtils.isEmpty(_encryptType)) {
-                conn.setRequestProperty("X-Encrypt-Type", _encryptType);
+            for (int i = 0; i < _headers.length; i += 2) {
+                conn.setRequestProperty(_headers[i], _headers[i + 1]);
+            }
+            if (gzipped) {
+                conn.setRequestProperty("Content-Encoding", Compression.GZIP);
             }
-            conn.setRequestProperty("User-Agent", JPUSH_USER_AGENT);
-            conn.setRequestProperty("Connection", "Keep-Alive");
-            conn.setRequestProperty("Accept-Charset", CHARSET);
-            conn.setRequestProperty("Charset", CHARSET);
-            conn.setRequestProperty("Authorization", _authCode);
-            conn.setRequestProperty("Content-Type", CONTENT_TYPE_JSON);
 
-            if (null == content) {
-                conn.setDoOutput(false);
-            } else {
+            if (null != content) {
+                // Content-Length 由 HttpURLConnection 自己设置
                 conn.setDoOutput(true);
-                byte[] data = content.getBytes(CHARSET);
-                conn.setRequestProperty("Content-Length", String.valueOf(data.length));
+            }
+            try {
+                conn.connect();
+            } catch (SocketTimeoutException e) {
+                // 连接阶段（含 TLS 握手）超时，请求还没有发出
+                LOG.debug(CONNECT_TIMED_OUT_MESSAGE, e);
+                throw new APIConnectionException(CONNECT_TIMED_OUT_MESSAGE, e);
+            }
+
+            if (null != content) {
+                int length = content.remaining();
                 out = conn.getOutputStream();
-                out.write(data);
+                ByteBuffers.writeTo(content, out);
                 out.flush();
+                if (null != metrics) {
+                    metrics.setBytesSent(length);
+                }
             }
 
             int status = conn.getResponseCode();
+            if (null != metrics) {
+                // HttpURLConnection 拿不到 DNS、连接和 TLS 的耗时，也没有连接池
+                metrics.markFirstByte();
+                metrics.setBytesReceived(conn.getContentLength());
+            }
             if (status / 100 == 2) {
                 in = conn.getInputStream();
             } else {
                 in = conn.getErrorStream();
             }
+            in = Compression.decode(conn.getContentEncoding(), in);
 
-            if (null != in) {
-                reader = new InputStreamReader(in, CHARSET);
-                char[] buff = new char[1024];
-                int len;
-                while ((len = reader.read(buff)) > 0) {
-                    sb.append(buff, 0, len);
-                }
-            }
-
-            String responseContent = sb.toString();
             wrapper.responseCode = status;
-            wrapper.responseContent = responseContent;
 
             String quota = conn.getHeaderField(RATE_LIMIT_QUOTA);
             String remaining = conn.getHeaderField(RATE_LIMIT_Remaining);
             String reset = conn.getHeaderField(RATE_LIMIT_Reset);
             wrapper.setRateLimit(quota, remaining, reset);
 
-            if (status >= 200 && status < 300) {
-                LOG.debug("Succeed to get response OK - responseCode:" + status);
-                LOG.debug("Response Content - " + responseContent);
-
-            } else if (status >= 300 && status < 400) {
-                LOG.warn("Normal response but unexpected - responseCode:" + status + ", responseContent:" + responseContent);
-
+            if (status >= 200 && status < 400) {
+                result = handler.handle(wrapper, null == in ? new ByteArrayInputStream(new byte[0]) : in);
+                ResponseClassifier.classify(LOG, wrapper);
             } else {
-                LOG.warn("Got error response - responseCode:" + status + ", responseContent:" + responseContent);
-
-                switch (status) {
-                    case 400:
-                        LOG.warn("Your request params is invalid. Please check them according to error message.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 401:
-                        LOG.warn("Authentication failed! Please check authentication params according to docs.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 403:
-                        LOG.warn("Request is forbidden! Maybe your appkey is listed in blacklist or your params is invalid.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 404:
-                        LOG.warn("Request page is not found! Maybe your params is invalid.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 410:
-                        LOG.warn("Request resource is no longer in service. Please according to notice on official website.");
-                        wrapper.setErrorObject();
-                    case 429:
-                        LOG.warn("Too many requests! Please review your appkey's request quota.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 500:
-                    case 502:
-                    case 503:
-                    case 504:
-                        LOG.warn("Seems encountered server error. Maybe JPush is in maintenance? Please retry later.");
-                        break;
-                    default:
-                        LOG.warn("Unexpected response.");
-                }
-
+                wrapper.responseContent = readContent(in);
+                ResponseClassifier.classify(LOG, wrapper);
                 throw new APIRequestException(wrapper);
             }
 
         } catch (SocketTimeoutException e) {
-            if (e.getMessage().contains(KEYWORDS_CONNECT_TIMED_OUT)) {
-                throw e;
-            } else if (e.getMessage().contains(KEYWORDS_READ_TIMED_OUT)) {
-                throw new SocketTimeoutException(KEYWORDS_READ_TIMED_OUT);
-            }
-            LOG.debug(IO_ERROR_MESSAGE, e);
-            throw new APIConnectionException(IO_ERROR_MESSAGE, e);
+            // Read timed out. For push, maybe should not re-send.
+            LOG.debug(READ_TIMED_OUT_MESSAGE, e);
+            throw new APIConnectionException(READ_TIMED_OUT_MESSAGE, e, true);
 
         } catch (IOException e) {
             LOG.debug(IO_ERROR_MESSAGE, e);
@@ -263,16 +323,22 @@ public class NativeHttpClient implements IHttpClient {
                     e.printStackTrace();
                 }
             }
-            if (null != reader) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
 
-        return wrapper;
+        return result;
+    }
+
+    private static String readContent(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        if (null != in) {
+            InputStreamReader reader = new InputStreamReader(in, CHARSET);
+            char[] buff = new char[1024];
+            int len;
+            while ((len = reader.read(buff)) > 0) {
+                sb.append(buff, 0, len);
+            }
+        }
+        return sb.toString();
     }
 
     protected void initSSL(String sslVer) {
@@ -292,21 +358,77 @@ public class NativeHttpClient implements IHttpClient {
 
     public String formUploadByPut(String urlStr, Map<String, String> textMap,
                                   Map<String, String> fileMap, String contentType) {
-        return formUpload(urlStr, textMap, fileMap, contentType, "PUT");
+        return formUpload(urlStr, textMap, fileMap, "PUT", null);
     }
 
     public String formUploadByPost(String urlStr, Map<String, String> textMap,
                                    Map<String, String> fileMap, String contentType) {
-        return formUpload(urlStr, textMap, fileMap, contentType, "POST");
+        return formUpload(urlStr, textMap, fileMap, "POST", null);
     }
 
-    private String formUpload(String urlStr, Map<String, String> textMap,
-                              Map<String, String> fileMap, String contentType, String requestMethod) {
+    /**
+     * 与 formUploadByPut 相同，上传过程中回调 listener
+     */
+    public String formUploadByPut(String urlStr, Map<String, String> textMap,
+                                  Map<String, String> fileMap, UploadProgressListener listener) {
+        return formUpload(urlStr, textMap, fileMap, "PUT", listener);
+    }
+
+    /**
+     * 与 formUploadByPost 相同，上传过程中回调 listener
+     */
+    public String formUploadByPost(String urlStr, Map<String, String> textMap,
+                                   Map<String, String> fileMap, UploadProgressListener listener) {
+        return formUpload(urlStr, textMap, fileMap, "POST", listener);
+    }
+
+    /**
+     * 先算出请求体的长度，以 fixed-length 流式模式边读文件边发送，内存占用与文件大小无关；
+     * 超过 2G 时用 chunked 模式。文件的 Content-Type 按文件名判断。
+     */
+    private String formUpload(String urlStr, Map<String, String> textMap, Map<String, String> fileMap,
+                              String requestMethod, UploadProgressListener listener) {
         String res = "";
         HttpURLConnection conn = null;
         // boundary就是request头和上传文件内容的分隔符
         String BOUNDARY = "---------------------------" + System.currentTimeMillis();
         try {
+            // text 字段和每个文件的头部，文件内容在发送时读取
+            ByteArrayOutputStream textPart = new ByteArrayOutputStream();
+            if (textMap != null) {
+                for (Map.Entry<String, String> entry : textMap.entrySet()) {
+                    if (entry.getValue() == null) {
+                        continue;
+                    }
+                    textPart.write(("\r\n--" + BOUNDARY + "\r\n"
+                            + "Content-Disposition: form-data; name=\"" + entry.getKey() + "\"\r\n\r\n"
+                            + entry.getValue()).getBytes(CHARSET));
+                }
+            }
+            List<File> files = new ArrayList<File>();
+            List<byte[]> fileHeads = new ArrayList<byte[]>();
+            if (fileMap != null) {
+                for (Map.Entry<String, String> entry : fileMap.entrySet()) {
+                    if (entry.getValue() == null) {
+                        continue;
+                    }
+                    File file = new File(entry.getValue());
+                    if (!file.isFile()) {
+                        throw new FileNotFoundException(entry.getValue());
+                    }
+                    files.add(file);
+                    fileHeads.add(("\r\n--" + BOUNDARY + "\r\n"
+                            + "Content-Disposition: form-data; name=\"" + entry.getKey() + "\"; filename=\""
+                            + file.getName() + "\"\r\n"
+                            + "Content-Type:" + getFileContentType(file.getName()) + "\r\n\r\n").getBytes(CHARSET));
+                }
+            }
+            byte[] endData = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(CHARSET);
+            long totalBytes = textPart.size() + endData.length;
+            for (int i = 0; i < files.size(); i++) {
+                totalBytes += fileHeads.get(i).length + files.get(i).length();
+            }
+
             URL url = new URL(urlStr);
             conn = getConnectionByUrl(url);
             conn.setConnectTimeout(5000);
@@ -318,76 +440,50 @@ public class NativeHttpClient implements IHttpClient {
             conn.setRequestProperty("Connection", "Keep-Alive");
             conn.setRequestProperty("Authorization", _authCode);
             conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
-            OutputStream out = new DataOutputStream(conn.getOutputStream());
-            // text
-            if (textMap != null) {
-                StringBuffer strBuf = new StringBuffer();
-                Iterator iter = textMap.entrySet().iterator();
-                while (iter.hasNext()) {
-                    Map.Entry entry = (Map.Entry) iter.next();
-                    String inputName = (String) entry.getKey();
-                    String inputValue = (String) entry.getValue();
-                    if (inputValue == null) {
-                        continue;
-                    }
-                    strBuf.append("\r\n").append("--").append(BOUNDARY).append("\r\n");
-                    strBuf.append("Content-Disposition: form-data; name=\"" + inputName + "\"\r\n\r\n");
-                    strBuf.append(inputValue);
-                }
-                out.write(strBuf.toString().getBytes());
+            if (totalBytes <= Integer.MAX_VALUE) {
+                conn.setFixedLengthStreamingMode((int) totalBytes);
+            } else {
+                conn.setChunkedStreamingMode(UPLOAD_BUFFER_SIZE);
             }
-            // file
-            if (fileMap != null) {
-                Iterator iter = fileMap.entrySet().iterator();
-                while (iter.hasNext()) {
-                    Map.Entry entry = (Map.Entry) iter.next();
-                    String inputName = (String) entry.getKey();
-                    String inputValue = (String) entry.getValue();
-                    if (inputValue == null) {
-                        continue;
+            OutputStream out = conn.getOutputStream();
+            byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+            long written = 0;
+            try {
+                textPart.writeTo(out);
+                written += textPart.size();
+                for (int i = 0; i < files.size(); i++) {
+                    byte[] head = fileHeads.get(i);
+                    out.write(head);
+                    written += head.length;
+                    if (null != listener) {
+                        listener.onProgress(written, totalBytes);
                     }
-                    File file = new File(inputValue);
-                    String filename = file.getName();
-
-                    //没有传入文件类型，同时根据文件获取不到类型，默认采用application/octet-stream
-                    contentType = new MimetypesFileTypeMap().getContentType(file);
-                    //contentType非空采用filename匹配默认的图片类型
-                    if (!"".equals(contentType)) {
-                        if (filename.endsWith(".png")) {
-                            contentType = "image/png";
-                        } else if (filename.endsWith(".jpg") || filename.endsWith(".jpeg") || filename.endsWith(".jpe")) {
-                            contentType = "image/jpeg";
-                        } else if (filename.endsWith(".gif")) {
-                            contentType = "image/gif";
-                        } else if (filename.endsWith(".ico")) {
-                            contentType = "image/image/x-icon";
+                    FileInputStream in = new FileInputStream(files.get(i));
+                    try {
+                        int len;
+                        while ((len = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, len);
+                            written += len;
+                            if (null != listener) {
+                                listener.onProgress(written, totalBytes);
+                            }
                         }
+                    } finally {
+                        in.close();
                     }
-                    if (contentType == null || "".equals(contentType)) {
-                        contentType = "application/octet-stream";
-                    }
-                    StringBuffer strBuf = new StringBuffer();
-                    strBuf.append("\r\n").append("--").append(BOUNDARY).append("\r\n");
-                    strBuf.append("Content-Disposition: form-data; name=\"" + inputName + "\"; filename=\"" + filename + "\"\r\n");
-                    strBuf.append("Content-Type:" + contentType + "\r\n\r\n");
-                    out.write(strBuf.toString().getBytes());
-                    DataInputStream in = new DataInputStream(new FileInputStream(file));
-                    int bytes = 0;
-                    byte[] bufferOut = new byte[1024];
-                    while ((bytes = in.read(bufferOut)) != -1) {
-                        out.write(bufferOut, 0, bytes);
-                    }
-                    in.close();
                 }
+                out.write(endData);
+                written += endData.length;
+                out.flush();
+            } finally {
+                out.close();
+            }
+            if (null != listener) {
+                listener.onProgress(written, totalBytes);
             }
-            byte[] endData = ("\r\n--" + BOUNDARY + "--\r\n").getBytes();
-            out.write(endData);
-            out.flush();
-            out.close();
             // 读取返回数据
             StringBuffer strBuf = new StringBuffer();
 
-            InputStream is = null;
             int responseCode = conn.getResponseCode();
             BufferedReader reader;
             if (responseCode == 200) {
@@ -416,6 +512,26 @@ public class NativeHttpClient implements IHttpClient {
         return res;
     }
 
+    /**
+     * 常见图片按扩展名，其他按 MIME_TYPES，获取不到时为 application/octet-stream
+     */
+    static String getFileContentType(String filename) {
+        if (filename.endsWith(".png")) {
+            return "image/png";
+        } else if (filename.endsWith(".jpg") || filename.endsWith(".jpeg") || filename.endsWith(".jpe")) {
+            return "image/jpeg";
+        } else if (filename.endsWith(".gif")) {
+            return "image/gif";
+        } else if (filename.endsWith(".ico")) {
+            return "image/image/x-icon";
+        }
+        String contentType = MIME_TYPES.getContentType(filename);
+        if (contentType == null || "".equals(contentType)) {
+            contentType = "application/octet-stream";
+        }
+        return contentType;
+    }
+
     public HttpURLConnection getConnectionByUrl(URL url) throws IOException {
         HttpURLConnection conn;
         if (null != _proxy) {
@@ -1,37 +1,112 @@
 package cn.jiguang.common.connection;
 
-import cn.jiguang.common.resp.ResponseWrapper;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
 import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContentDecompressor;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
-public class NettyClientInitializer extends ChannelInitializer<SocketChannel> {
+/**
+ * 连接池中每个连接的初始化器：新建连接时装配 SSL、HTTP 编解码、空闲检测和响应处理器。
+ * <p>
+ * 一个实例对应一个目标主机（scheme + host + port），http 连接不会装配 SSL。
+ */
+public class NettyClientInitializer extends AbstractChannelPoolHandler {
+
+    // 聚合后响应体的最大长度
+    public static final int MAX_CONTENT_LENGTH = 16 * 1024 * 1024;
+
+    // 新建连接开始连接的时间，第一次从连接池取出时用于计算连接耗时
+    static final AttributeKey<Long> CONNECT_START_NANOS = AttributeKey.valueOf("jiguang.connectStartNanos");
+
+    private static final FirstByteHandler FIRST_BYTE_HANDLER = new FirstByteHandler();
 
     private SslContext _sslCtx;
-    private NettyHttpClient.BaseCallback _callback;
-    private CountDownLatch _latch;
+    private String _host;
+    private int _port;
+    private int _idleTimeout;
     private HttpResponseHandler _handler;
+    private boolean _collectMetrics;
+    private boolean _decompress;
+
+    public NettyClientInitializer(SslContext sslContext, String host, int port, int idleTimeout,
+                                  HttpResponseHandler handler) {
+        this(sslContext, host, port, idleTimeout, handler, false);
+    }
+
+    /**
+     * @param collectMetrics 是否记录连接耗时和首字节时间，配置了 RequestListener 时为 true
+     */
+    public NettyClientInitializer(SslContext sslContext, String host, int port, int idleTimeout,
+                                  HttpResponseHandler handler, boolean collectMetrics) {
+        this(sslContext, host, port, idleTimeout, handler, collectMetrics, false);
+    }
 
-    public NettyClientInitializer(SslContext sslContext, NettyHttpClient.BaseCallback callback, CountDownLatch latch) {
+    /**
+     * @param decompress 是否在聚合之前解压 gzip/deflate 的响应体，请求带 Accept-Encoding 时为 true
+     */
+    public NettyClientInitializer(SslContext sslContext, String host, int port, int idleTimeout,
+                                  HttpResponseHandler handler, boolean collectMetrics, boolean decompress) {
         this._sslCtx = sslContext;
-        this._callback = callback;
-        this._latch = latch;
+        this._host = host;
+        this._port = port;
+        this._idleTimeout = idleTimeout;
+        this._handler = handler;
+        this._collectMetrics = collectMetrics;
+        this._decompress = decompress;
     }
 
     @Override
-    protected void initChannel(SocketChannel socketChannel) throws Exception {
-        this._handler = new HttpResponseHandler(_callback, _latch);
-        socketChannel.pipeline().addLast(_sslCtx.newHandler(socketChannel.alloc()), new HttpClientCodec(), _handler);
+    public void channelCreated(Channel channel) throws Exception {
+        ChannelPipeline pipeline = channel.pipeline();
+        if (_collectMetrics) {
+            channel.attr(CONNECT_START_NANOS).set(System.nanoTime());
+        }
+        if (null != _sslCtx) {
+            pipeline.addLast(_sslCtx.newHandler(channel.alloc(), _host, _port));
+        }
+        pipeline.addLast(new HttpClientCodec());
+        if (_collectMetrics) {
+            pipeline.addLast(FIRST_BYTE_HANDLER);
+        }
+        if (_decompress) {
+            pipeline.addLast(new HttpContentDecompressor());
+        }
+        pipeline.addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+        pipeline.addLast(new IdleStateHandler(0, 0, _idleTimeout, TimeUnit.MILLISECONDS));
+        pipeline.addLast(_handler);
     }
 
-    public void resetLatch(CountDownLatch latch) {
-        _handler.resetLatch(latch);
+    @Override
+    public void channelReleased(Channel channel) throws Exception {
+        channel.attr(HttpResponseHandler.RESPONSE_PROMISE).set(null);
+        channel.attr(HttpResponseHandler.REQUEST_METRICS).set(null);
     }
 
-    public ResponseWrapper getResponse() {
-        return _handler.getResponse();
+    /**
+     * 在聚合之前看到响应头，记录首字节时间
+     */
+    @ChannelHandler.Sharable
+    private static class FirstByteHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpResponse) {
+                RequestMetrics metrics = ctx.channel().attr(HttpResponseHandler.REQUEST_METRICS).get();
+                if (null != metrics) {
+                    metrics.markFirstByte();
+                }
+            }
+            super.channelRead(ctx, msg);
+        }
     }
 }
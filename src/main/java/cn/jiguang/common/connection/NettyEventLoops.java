@@ -0,0 +1,77 @@
+package cn.jiguang.common.connection;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * NettyHttpClient 使用的 EventLoopGroup。Linux 上 native epoll 可用时使用 Epoll 传输，否则使用 NIO。
+ * <p>
+ * 多个 NettyHttpClient（例如每个 appKey 一个）可以共用一个 group，避免每个实例各自创建 CPU 核数 * 2 个 IO 线程：
+ * <pre>
+ * EventLoopGroup group = NettyEventLoops.newEventLoopGroup(4);
+ * NettyHttpClient client = new NettyHttpClient(authCode, null, config, group);
+ * ...
+ * client.close();              // 不会关闭传入的 group
+ * group.shutdownGracefully();
+ * </pre>
+ * 也可以直接使用进程内共享的 shared()。
+ */
+public final class NettyEventLoops {
+
+    private static final String THREAD_NAME_PREFIX = "jiguang-netty";
+
+    private static volatile EventLoopGroup _shared;
+
+    private NettyEventLoops() {
+    }
+
+    /**
+     * @param threads IO 线程数，0 表示使用 Netty 的默认值（CPU 核数 * 2）
+     * @return 新建的 group，由调用方负责 shutdownGracefully
+     */
+    public static EventLoopGroup newEventLoopGroup(int threads) {
+        return newEventLoopGroup(threads, false);
+    }
+
+    /**
+     * 进程内共享的 group，第一次调用时创建，线程为 daemon 线程，不需要也不应该关闭。
+     */
+    public static EventLoopGroup shared() {
+        EventLoopGroup group = _shared;
+        if (null == group) {
+            synchronized (NettyEventLoops.class) {
+                group = _shared;
+                if (null == group) {
+                    group = newEventLoopGroup(0, true);
+                    _shared = group;
+                }
+            }
+        }
+        return group;
+    }
+
+    public static boolean isEpollAvailable() {
+        return Epoll.isAvailable();
+    }
+
+    /**
+     * @return 与 group 对应的 SocketChannel 类型
+     */
+    static Class<? extends SocketChannel> socketChannelClass(EventLoopGroup group) {
+        return group instanceof EpollEventLoopGroup ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    private static EventLoopGroup newEventLoopGroup(int threads, boolean daemon) {
+        DefaultThreadFactory threadFactory = new DefaultThreadFactory(THREAD_NAME_PREFIX, daemon);
+        if (isEpollAvailable()) {
+            return new EpollEventLoopGroup(threads, threadFactory);
+        }
+        return new NioEventLoopGroup(threads, threadFactory);
+    }
+}
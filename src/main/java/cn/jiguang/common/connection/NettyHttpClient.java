@@ -7,105 +7,149 @@ import cn.jiguang.common.resp.ResponseWrapper;
 import cn.jiguang.common.utils.StringUtils;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.ConnectTimeoutException;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.pool.AbstractChannelPoolMap;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.channel.pool.FixedChannelPool;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
-import io.netty.util.CharsetUtil;
+import io.netty.handler.timeout.ReadTimeoutException;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLException;
+import java.io.Closeable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.text.MessageFormat;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
-
-public class NettyHttpClient implements IHttpClient {
+/**
+ * Netty 实现的版本。每个目标主机维护一个有上限的 keep-alive 连接池，请求结束后连接归还复用，
+ * 空闲超时的连接会被关闭，取用时会检查连接是否可用。失败的请求按 RetryPolicy 重试。
+ * <p>
+ * 默认每个实例创建自己的 EventLoopGroup；也可以传入共享的 group（见 NettyEventLoops），此时 close 不会关闭它。
+ * 用完后请调用 close 释放连接池。
+ */
+public class NettyHttpClient implements IHttpClient, IAsyncHttpClient, IBinaryHttpClient, IMultiTenantHttpClient,
+        Closeable {
 
     private static Logger LOG = LoggerFactory.getLogger(NettyHttpClient.class);
 
     private String _authCode;
     private int _maxRetryTimes;
     private int _readTimeout;
-    private Channel _channel;
+    private final int _connectionRequestTimeout;
+    private final int _maxConnectionsPerHost;
+    private final int _idleTimeout;
     private Bootstrap b;
-    private EventLoopGroup _workerGroup;
+    private final EventLoopGroup _workerGroup;
+    private final boolean _ownsWorkerGroup;
+    private final AtomicBoolean _closed = new AtomicBoolean();
     private SslContext _sslCtx;
+    private final AbstractChannelPoolMap<URI, FixedChannelPool> _poolMap;
+    private final HttpResponseHandler _handler = new HttpResponseHandler();
 
-    private final String _encryptType;
+    // 每个请求相同的请求头，创建时以 AsciiString 编码一次，发送时整体复制到请求中
+    private final HttpHeaders _headers;
+    private final RequestListener _listener;
+    private final RetryPolicy _retryPolicy;
+    private final boolean _responseCompression;
+    private final int _requestCompressionThreshold;
 
+    private static final AsciiString ENCRYPT_TYPE = new AsciiString("X-Encrypt-Type");
+    private static final AsciiString CONTENT_TYPE_JSON_UTF8 = new AsciiString("application/json;charset=utf-8");
+    private static final AsciiString ACCEPT_ENCODING = new AsciiString(Compression.ACCEPT_ENCODING);
 
     public NettyHttpClient(String authCode, HttpProxy proxy, ClientConfig config) {
+        this(authCode, proxy, config, null);
+    }
+
+    /**
+     * @param workerGroup 共享的 EventLoopGroup，由调用方负责关闭；为 null 时创建实例自己的 group
+     */
+    public NettyHttpClient(String authCode, HttpProxy proxy, ClientConfig config, EventLoopGroup workerGroup) {
         _maxRetryTimes = config.getMaxRetryTimes();
         _readTimeout = config.getReadTimeout();
+        _connectionRequestTimeout = config.getConnectionRequestTimeout();
+        _maxConnectionsPerHost = config.getMaxConnectionsPerHost();
+        _idleTimeout = config.getConnectionIdleTimeout();
         String message = MessageFormat.format("Created instance with "
-                        + "connectionTimeout {0}, readTimeout {1}, maxRetryTimes {2}, SSL Version {3}",
-                config.getConnectionTimeout(), _readTimeout, _maxRetryTimes, config.getSSLVersion());
+                        + "connectionTimeout {0}, readTimeout {1}, maxRetryTimes {2}, SSL Version {3}, "
+                        + "maxConnectionsPerHost {4}",
+                config.getConnectionTimeout(), _readTimeout, _maxRetryTimes, config.getSSLVersion(),
+                _maxConnectionsPerHost);
         LOG.debug(message);
         _authCode = authCode;
-        _encryptType = config.getEncryptType();
+        _listener = config.getRequestListener();
+        _retryPolicy = new RetryPolicy(config);
+        _responseCompression = config.getResponseCompression();
+        _requestCompressionThreshold = config.getRequestCompressionThreshold();
+        _headers = buildHeaders(authCode, config.getEncryptType(), _responseCompression);
         try {
             _sslCtx = SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE).build();
-            _workerGroup = new NioEventLoopGroup();
-            b = new Bootstrap(); // (1)
-            b.group(_workerGroup); // (2)
-            b.channel(NioSocketChannel.class); // (3)
-            b.option(ChannelOption.SO_KEEPALIVE, true); // (4)
         } catch (SSLException e) {
             e.printStackTrace();
         }
-    }
-
-    public void sendRequest(HttpMethod method, String content, URI uri, BaseCallback callback) {
-        FullHttpRequest request;
+        _ownsWorkerGroup = null == workerGroup;
+        _workerGroup = _ownsWorkerGroup ? NettyEventLoops.newEventLoopGroup(0) : workerGroup;
         b = new Bootstrap();
-        if (b.group() == null) {
-            b.group(_workerGroup);
-        }
-        b.channel(NioSocketChannel.class);
+        b.group(_workerGroup);
+        b.channel(NettyEventLoops.socketChannelClass(_workerGroup));
         b.option(ChannelOption.SO_KEEPALIVE, true);
-        b.handler(new NettyClientInitializer(_sslCtx, callback, null));
-        String scheme = uri.getScheme() == null ? "http" : uri.getScheme();
-        int port = uri.getPort();
-        if (port == -1) {
-            if ("http".equalsIgnoreCase(scheme)) {
-                port = 80;
-            } else if ("https".equalsIgnoreCase(scheme)) {
-                port = 443;
+        b.option(ChannelOption.TCP_NODELAY, true);
+        b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, config.getConnectionTimeout());
+        _poolMap = new AbstractChannelPoolMap<URI, FixedChannelPool>() {
+            @Override
+            protected FixedChannelPool newPool(URI key) {
+                SslContext sslCtx = "https".equalsIgnoreCase(key.getScheme()) ? _sslCtx : null;
+                NettyClientInitializer initializer = new NettyClientInitializer(sslCtx, key.getHost(), key.getPort(),
+                        _idleTimeout, _handler, null != _listener, _responseCompression);
+                return new FixedChannelPool(b.clone().remoteAddress(key.getHost(), key.getPort()), initializer,
+                        ChannelHealthChecker.ACTIVE, FixedChannelPool.AcquireTimeoutAction.FAIL,
+                        _connectionRequestTimeout, _maxConnectionsPerHost, Integer.MAX_VALUE, true);
             }
-        }
-        _channel = b.connect(uri.getHost(), port).syncUninterruptibly().channel();
-        if (null != content) {
-            ByteBuf byteBuf = Unpooled.copiedBuffer(content.getBytes(CharsetUtil.UTF_8));
-            request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, uri.getRawPath(), byteBuf);
-            request.headers().set(HttpHeaderNames.CONTENT_LENGTH, (long) byteBuf.readableBytes());
-        } else {
-            request = new DefaultFullHttpRequest(HTTP_1_1, method, uri.getRawPath());
-        }
-        if (!StringUtils.isEmpty(_encryptType)) {
-            request.headers().set("X-Encrypt-Type", _encryptType);
-        }
-        request.headers().set(HttpHeaderNames.HOST, uri.getHost());
-        request.headers().set(HttpHeaderNames.AUTHORIZATION, _authCode);
-        request.headers().set("Content-Type", "application/json;charset=utf-8");
+        };
+    }
 
-        LOG.info("Sending request. " + request);
+    public void sendRequest(HttpMethod method, String content, URI uri, final BaseCallback callback) {
+        ByteBuf body = encode(content);
         LOG.info("Send body: " + content);
-        _channel.writeAndFlush(request);
+        Promise<ResponseWrapper> promise = execute(_authCode, method, uri, body, false, null);
+        promise.addListener(new FutureListener<ResponseWrapper>() {
+            @Override
+            public void operationComplete(Future<ResponseWrapper> future) throws Exception {
+                if (!future.isSuccess()) {
+                    LOG.error("error:", future.cause());
+                } else if (null != callback) {
+                    callback.onSucceed(future.getNow());
+                }
+            }
+        });
         try {
-            _channel.closeFuture().sync();
-            _workerGroup.shutdownGracefully();
+            promise.await();
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -144,107 +188,326 @@ public class NettyHttpClient implements IHttpClient {
 
     private ResponseWrapper sendHttpRequest(HttpMethod method, String url, String body) throws APIConnectionException,
             APIRequestException{
-        CountDownLatch latch = new CountDownLatch(1);
-        NettyClientInitializer initializer = new NettyClientInitializer(_sslCtx, null, latch);
-        b.handler(initializer);
-        ResponseWrapper wrapper = new ResponseWrapper();
-        URI uri = null;
+        return sendHttpRequestAsync(method, url, body).getResponse();
+    }
+
+    @Override
+    public ResponseFuture sendGetAsync(String url) {
+        return sendGetAsync(url, null);
+    }
+
+    @Override
+    public ResponseFuture sendGetAsync(String url, String content) {
+        return sendHttpRequestAsync(HttpMethod.GET, url, content);
+    }
+
+    @Override
+    public ResponseFuture sendDeleteAsync(String url) {
+        return sendDeleteAsync(url, null);
+    }
+
+    @Override
+    public ResponseFuture sendDeleteAsync(String url, String content) {
+        return sendHttpRequestAsync(HttpMethod.DELETE, url, content);
+    }
+
+    @Override
+    public ResponseFuture sendPostAsync(String url, String content) {
+        return sendHttpRequestAsync(HttpMethod.POST, url, content);
+    }
+
+    @Override
+    public ResponseFuture sendPutAsync(String url, String content) {
+        return sendHttpRequestAsync(HttpMethod.PUT, url, content);
+    }
+
+    @Override
+    public ResponseWrapper sendBytes(RequestMethod method, String url, ByteBuffer content)
+            throws APIConnectionException, APIRequestException {
+        ByteBuf body = null == content ? null : Unpooled.wrappedBuffer(content);
+        return sendHttpRequestAsync(_authCode, HttpMethod.valueOf(method.name()), url, body).getResponse();
+    }
+
+    /**
+     * 直接编码到池化的（通常是 direct）buffer，写出时不需要再拷贝
+     */
+    private static ByteBuf encode(String content) {
+        return null == content ? null : ByteBufUtil.writeUtf8(ByteBufAllocator.DEFAULT, content);
+    }
+
+    @Override
+    public ResponseWrapper send(String authCode, RequestMethod method, String url, String content)
+            throws APIConnectionException, APIRequestException {
+        return sendHttpRequestAsync(authCode, HttpMethod.valueOf(method.name()), url, encode(content)).getResponse();
+    }
+
+    private ResponseFuture sendHttpRequestAsync(HttpMethod method, String url, String body) {
+        LOG.info("Send body: " + body);
+        return sendHttpRequestAsync(_authCode, method, url, encode(body));
+    }
+
+    /**
+     * 按 RetryPolicy 重试，每次请求发送 body 的一个副本，整个调用结束后释放 body。
+     * body 达到压缩阈值时在重试之前压缩一次。
+     */
+    private ResponseFuture sendHttpRequestAsync(final String authCode, final HttpMethod method, final String url,
+                                                ByteBuf content) {
+        final URI uri;
 		try {
 			uri = new URI(url);
 		} catch (URISyntaxException e1) {
-			// TODO Auto-generated catch block
 			LOG.debug(IO_ERROR_MESSAGE, e1);
-            throw new APIConnectionException(READ_TIMED_OUT_MESSAGE, e1, true);
+            ReferenceCountUtil.release(content);
+            ResponseFuture responseFuture = new ResponseFuture();
+            fail(responseFuture, RequestMetrics.start(_listener, method.name(), url),
+                    new APIConnectionException(READ_TIMED_OUT_MESSAGE, e1, true));
+            return responseFuture;
 		}
-        String scheme = uri.getScheme() == null ? "http" : uri.getScheme();
-        String host = uri.getHost() == null ? "127.0.0.1" : uri.getHost();
-        int port = uri.getPort();
-        if (port == -1) {
-            if ("http".equalsIgnoreCase(scheme)) {
-                port = 80;
-            } else if ("https".equalsIgnoreCase(scheme)) {
-                port = 443;
+        final boolean gzipped = null != content && _requestCompressionThreshold >= 0
+                && content.readableBytes() >= _requestCompressionThreshold;
+        final ByteBuf body;
+        if (gzipped) {
+            body = Unpooled.wrappedBuffer(Compression.gzip(content.nioBuffer()));
+            content.release();
+        } else {
+            body = content;
+        }
+
+        final RequestMetrics metrics = RequestMetrics.start(_listener, method.name(), url);
+        ResponseFuture responseFuture = _retryPolicy.executeAsync(RetryPolicy.isIdempotent(method.name()),
+                new RetryPolicy.AsyncRequest() {
+                    @Override
+                    public ResponseFuture send(int retryTimes) {
+                        return sendOnce(authCode, method, uri, null == body ? null : body.retainedDuplicate(),
+                                gzipped, metrics);
+                    }
+                }, metrics);
+        if (null != body) {
+            responseFuture.addCallback(new ResponseCallback() {
+                @Override
+                public void onSucceed(ResponseWrapper wrapper) {
+                    body.release();
+                }
+
+                @Override
+                public void onFailed(Exception e) {
+                    body.release();
+                }
+            });
+        }
+        return responseFuture;
+    }
+
+    /**
+     * @param metrics 整个调用共用的统计，由 RetryPolicy 在最后一次请求完成时结束，可以为 null
+     */
+    private ResponseFuture sendOnce(String authCode, HttpMethod method, URI uri, ByteBuf body,
+                                    boolean gzipped, RequestMetrics metrics) {
+        final ResponseFuture responseFuture = new ResponseFuture();
+        final Promise<ResponseWrapper> promise = execute(authCode, method, uri, body, gzipped, metrics);
+        promise.addListener(new FutureListener<ResponseWrapper>() {
+            @Override
+            public void operationComplete(Future<ResponseWrapper> future) throws Exception {
+                if (!future.isSuccess()) {
+                    responseFuture.fail(toConnectionException(future.cause()));
+                    return;
+                }
+                try {
+                    checkResponse(future.getNow());
+                    responseFuture.complete(future.getNow());
+                } catch (APIRequestException e) {
+                    responseFuture.fail(e);
+                }
+            }
+        });
+        responseFuture.setCancelHandler(new Runnable() {
+            @Override
+            public void run() {
+                promise.cancel(false);
             }
+        });
+        return responseFuture;
+    }
+
+    private static void fail(ResponseFuture responseFuture, RequestMetrics metrics, Exception e) {
+        if (null != metrics) {
+            metrics.end(e);
+        }
+        responseFuture.fail(e);
+    }
+
+    private static APIConnectionException toConnectionException(Throwable cause) {
+        LOG.debug(IO_ERROR_MESSAGE, cause);
+        if (cause instanceof ReadTimeoutException) {
+            return new APIConnectionException(READ_TIMED_OUT_MESSAGE, cause, true);
+        } else if (cause instanceof ConnectTimeoutException) {
+            return new APIConnectionException(CONNECT_TIMED_OUT_MESSAGE, cause);
+        }
+        return new APIConnectionException(IO_ERROR_MESSAGE, cause);
+    }
+
+    private void checkResponse(ResponseWrapper wrapper) throws APIRequestException {
+        ResponseClassifier.classify(LOG, wrapper);
+        if (wrapper.responseCode >= 400) {
+            throw new APIRequestException(wrapper);
         }
+    }
 
+    public void send(ByteBuf body, HttpMethod method, URI uri) {
+        LOG.info("Send body: " + body);
+        execute(_authCode, method, uri, body, false, null);
+    }
+
+    /**
+     * 从目标主机的连接池取一个连接发送请求，返回的 Promise 在收到完整响应、出错或读超时后完成，
+     * 完成时连接归还连接池；出错或超时的连接状态未知，会先关闭再归还。
+     * @param gzipped body 是否已经 gzip 压缩
+     * @param metrics 可以为 null
+     */
+    private Promise<ResponseWrapper> execute(String authCode, HttpMethod method, URI uri, ByteBuf body,
+                                             boolean gzipped, final RequestMetrics metrics) {
+        if (_closed.get()) {
+            ReferenceCountUtil.release(body);
+            return ImmediateEventExecutor.INSTANCE.<ResponseWrapper>newPromise()
+                    .setFailure(new IllegalStateException("NettyHttpClient is closed"));
+        }
+        final long startNanos = System.nanoTime();
+        final Promise<ResponseWrapper> promise = _workerGroup.next().newPromise();
+        final FullHttpRequest request = buildRequest(authCode, method, uri, body, gzipped);
+        if (null != metrics) {
+            metrics.setBytesSent(request.content().readableBytes());
+        }
+        final FixedChannelPool pool;
         try {
-            ChannelFuture connect = b.connect(host, port);
-            _channel = connect.sync().channel();
-            FullHttpRequest request;
-            if (null != body) {
-                ByteBuf byteBuf = Unpooled.copiedBuffer(body.getBytes(CharsetUtil.UTF_8));
-                request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, uri.getRawPath(), byteBuf);
-                request.headers().set(HttpHeaderNames.CONTENT_LENGTH, (long) byteBuf.readableBytes());
-            } else {
-                request = new DefaultFullHttpRequest(HTTP_1_1, method, uri.getRawPath());
+            pool = _poolMap.get(poolKey(uri));
+        } catch (URISyntaxException e) {
+            ReferenceCountUtil.release(request);
+            promise.tryFailure(e);
+            return promise;
+        }
+        LOG.info("Sending request. " + request);
+        pool.acquire().addListener(new FutureListener<Channel>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (!future.isSuccess()) {
+                    ReferenceCountUtil.release(request);
+                    promise.tryFailure(future.cause());
+                    return;
+                }
+                final Channel channel = future.getNow();
+                if (promise.isDone()) {
+                    // 等待连接期间已被取消
+                    ReferenceCountUtil.release(request);
+                    pool.release(channel);
+                    return;
+                }
+                if (null != metrics) {
+                    recordConnection(channel, metrics, System.nanoTime() - startNanos);
+                }
+                channel.attr(HttpResponseHandler.RESPONSE_PROMISE).set(promise);
+                final ScheduledFuture<?> timeout = channel.eventLoop().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        promise.tryFailure(ReadTimeoutException.INSTANCE);
+                    }
+                }, _readTimeout, TimeUnit.MILLISECONDS);
+                promise.addListener(new FutureListener<ResponseWrapper>() {
+                    @Override
+                    public void operationComplete(Future<ResponseWrapper> future) throws Exception {
+                        timeout.cancel(false);
+                        if (!future.isSuccess()) {
+                            channel.close();
+                        }
+                        pool.release(channel);
+                    }
+                });
+                channel.writeAndFlush(request).addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (!future.isSuccess()) {
+                            promise.tryFailure(future.cause());
+                        }
+                    }
+                });
             }
-            if (!StringUtils.isEmpty(_encryptType)) {
-                request.headers().set("X-Encrypt-Type", _encryptType);
+        });
+        return promise;
+    }
+
+    /**
+     * 连接池等待时间和连接耗时。新建连接的 TLS 握手在连接建立后才开始，握手完成时再记录。
+     * @param acquiredNanos 本次请求从开始到拿到连接的时间，重试时不含之前的请求
+     */
+    private static void recordConnection(Channel channel, final RequestMetrics metrics, long acquiredNanos) {
+        Long connectStart = channel.attr(NettyClientInitializer.CONNECT_START_NANOS).getAndSet(null);
+        if (null == connectStart) {
+            // 复用连接池中的连接
+            metrics.addConnectNanos(0);
+            metrics.addPoolWaitNanos(acquiredNanos);
+            if (null != channel.pipeline().get(SslHandler.class)) {
+                metrics.addTlsNanos(0);
             }
-            request.headers().set(HttpHeaderNames.HOST, uri.getHost());
-            request.headers().set(HttpHeaderNames.AUTHORIZATION, _authCode);
-            request.headers().set("Content-Type", "application/json;charset=utf-8");
-            connect.awaitUninterruptibly();
-            LOG.info("Sending request. " + request);
-            LOG.info("Send body: " + body);
-            _channel.writeAndFlush(request);
-            latch.await();
-            wrapper = initializer.getResponse();
-            int status = wrapper.responseCode;
-            String responseContent = wrapper.responseContent;
-            if (status >= 200 && status < 300) {
-                LOG.debug("Succeed to get response OK - responseCode:" + status);
-                LOG.debug("Response Content - " + responseContent);
-
-            } else if (status >= 300 && status < 400) {
-                LOG.warn("Normal response but unexpected - responseCode:" + status + ", responseContent:" + responseContent);
-
-            } else {
-                LOG.warn("Got error response - responseCode:" + status + ", responseContent:" + responseContent);
-
-                switch (status) {
-                    case 400:
-                        LOG.warn("Your request params is invalid. Please check them according to error message.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 401:
-                        LOG.warn("Authentication failed! Please check authentication params according to docs.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 403:
-                        LOG.warn("Request is forbidden! Maybe your appkey is listed in blacklist or your params is invalid.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 404:
-                        LOG.warn("Request page is not found! Maybe your params is invalid.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 410:
-                        LOG.warn("Request resource is no longer in service. Please according to notice on official website.");
-                        wrapper.setErrorObject();
-                    case 429:
-                        LOG.warn("Too many requests! Please review your appkey's request quota.");
-                        wrapper.setErrorObject();
-                        break;
-                    case 500:
-                    case 502:
-                    case 503:
-                    case 504:
-                        LOG.warn("Seems encountered server error. Maybe JPush is in maintenance? Please retry later.");
-                        break;
-                    default:
-                        LOG.warn("Unexpected response.");
-                }
-                throw new APIRequestException(wrapper);
+        } else {
+            final long now = System.nanoTime();
+            long connectNanos = now - connectStart;
+            metrics.addConnectNanos(connectNanos);
+            metrics.addPoolWaitNanos(acquiredNanos - connectNanos);
+            SslHandler sslHandler = channel.pipeline().get(SslHandler.class);
+            if (null != sslHandler) {
+                sslHandler.handshakeFuture().addListener(new FutureListener<Channel>() {
+                    @Override
+                    public void operationComplete(Future<Channel> future) throws Exception {
+                        metrics.addTlsNanos(System.nanoTime() - now);
+                    }
+                });
             }
-        } catch (InterruptedException e) {
-        	LOG.debug(IO_ERROR_MESSAGE, e);
-            throw new APIConnectionException(READ_TIMED_OUT_MESSAGE, e, true);
         }
-        return wrapper;
+        channel.attr(HttpResponseHandler.REQUEST_METRICS).set(metrics);
     }
 
-    public void send(ByteBuf body, HttpMethod method, URI uri) {
+    private static HttpHeaders buildHeaders(String authCode, String encryptType, boolean responseCompression) {
+        HttpHeaders headers = new DefaultHttpHeaders(false);
+        headers.set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        headers.set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE_JSON_UTF8);
+        if (null != authCode) {
+            headers.set(HttpHeaderNames.AUTHORIZATION, new AsciiString(authCode));
+        }
+        if (!StringUtils.isEmpty(encryptType)) {
+            headers.set(ENCRYPT_TYPE, new AsciiString(encryptType));
+        }
+        if (responseCompression) {
+            headers.set(HttpHeaderNames.ACCEPT_ENCODING, ACCEPT_ENCODING);
+        }
+        return headers;
+    }
+
+    /**
+     * 请求头名称和值都是预先编码的，不再逐个校验
+     */
+    private FullHttpRequest buildRequest(String authCode, HttpMethod method, URI uri, ByteBuf body, boolean gzipped) {
+        String path = StringUtils.isEmpty(uri.getRawPath()) ? "/" : uri.getRawPath();
+        if (null != uri.getRawQuery()) {
+            path = path + "?" + uri.getRawQuery();
+        }
+        FullHttpRequest request = new DefaultFullHttpRequest(HTTP_1_1, method, path,
+                null == body ? Unpooled.EMPTY_BUFFER : body, false);
+        HttpHeaders headers = request.headers();
+        headers.set(_headers);
+        headers.setInt(HttpHeaderNames.CONTENT_LENGTH, request.content().readableBytes());
+        headers.set(HttpHeaderNames.HOST, uri.getHost());
+        if (null != authCode && !authCode.equals(_authCode)) {
+            headers.set(HttpHeaderNames.AUTHORIZATION, authCode);
+        }
+        if (gzipped) {
+            headers.set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+        }
+        return request;
+    }
+
+    /**
+     * 连接池按 scheme + host + port 区分
+     */
+    private static URI poolKey(URI uri) throws URISyntaxException {
         String scheme = uri.getScheme() == null ? "http" : uri.getScheme();
         String host = uri.getHost() == null ? "127.0.0.1" : uri.getHost();
         int port = uri.getPort();
@@ -255,31 +518,23 @@ public class NettyHttpClient implements IHttpClient {
                 port = 443;
             }
         }
-        _channel = b.connect(host, port).syncUninterruptibly().channel();
-        HttpRequest request;
-        if (null != body) {
-            request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, uri.getRawPath(), body);
-            request.headers().set(HttpHeaderNames.CONTENT_LENGTH, (long) body.readableBytes());
-        } else {
-            request = new DefaultFullHttpRequest(HTTP_1_1, method, uri.getRawPath());
-        }
-        request.headers().set(HttpHeaderNames.HOST, uri.getHost());
-        request.headers().set(HttpHeaderNames.AUTHORIZATION, _authCode);
-        request.headers().set("Content-Type", "application/json;charset=utf-8");
-        LOG.info("Sending request. " + request);
-        LOG.info("Send body: " + body);
-        _channel.writeAndFlush(request);
+        return new URI(scheme, null, host, port, null, null, null);
     }
 
 
+    /**
+     * 关闭所有连接池；实例自己创建的 EventLoopGroup 同时关闭，传入的共享 group 不受影响。之后的请求会直接失败。
+     */
+    @Override
     public void close() {
-        if (null != _channel) {
-            _channel.closeFuture().syncUninterruptibly();
+        if (!_closed.compareAndSet(false, true)) {
+            return;
+        }
+        _poolMap.close();
+        if (_ownsWorkerGroup) {
             _workerGroup.shutdownGracefully();
-            _channel = null;
-            _workerGroup = null;
         }
-        System.out.println("Finished request(s)");
+        LOG.debug("Closed NettyHttpClient");
     }
 
     public interface BaseCallback {
@@ -0,0 +1,174 @@
+package cn.jiguang.common.connection;
+
+import okhttp3.Dns;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+/**
+ * Http2Client 采集 RequestMetrics 用到的钩子，只在配置了 RequestListener 时装配。
+ * <p>
+ * RequestMetrics 挂在 Request 的 tag 上。OkHttp 的一次调用（同步或 Dispatcher 线程上的异步）从应用拦截器到建连都在同一个线程，
+ * 应用拦截器把当前调用放进 ThreadLocal，供 Dns 和 SocketFactory 记录 DNS 和连接耗时；
+ * 网络拦截器在连接就绪后执行，新建 https 连接时与 TCP 连接完成的间隔即为 TLS 握手耗时。
+ * 连接池等待时间为请求在 Dispatcher 中排队的时间。
+ */
+final class OkHttpRequestMetrics {
+
+    private static final ThreadLocal<CallState> CURRENT = new ThreadLocal<CallState>();
+
+    private OkHttpRequestMetrics() {
+    }
+
+    static void install(OkHttpClient.Builder builder) {
+        builder.addInterceptor(new CallInterceptor())
+                .addNetworkInterceptor(new NetworkInterceptor())
+                .dns(new TimedDns())
+                .socketFactory(new TimedSocketFactory());
+    }
+
+    static RequestMetrics metricsOf(Request request) {
+        Object tag = request.tag();
+        return tag instanceof RequestMetrics ? (RequestMetrics) tag : null;
+    }
+
+    private static class CallState {
+        final RequestMetrics metrics;
+        int attempts;
+        long connectedNanos = -1;
+
+        CallState(RequestMetrics metrics) {
+            this.metrics = metrics;
+        }
+    }
+
+    private static class CallInterceptor implements Interceptor {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            RequestMetrics metrics = metricsOf(request);
+            if (null == metrics) {
+                return chain.proceed(request);
+            }
+            if (metrics.getPoolWaitNanos() < 0) {
+                // 整个调用共用一个 RequestMetrics，只统计第一次请求的排队时间
+                metrics.addPoolWaitNanos(metrics.elapsedNanos());
+            }
+            metrics.setBytesSent(null == request.body() ? 0 : request.body().contentLength());
+            CURRENT.set(new CallState(metrics));
+            try {
+                Response response = chain.proceed(request);
+                metrics.setBytesReceived(response.body().contentLength());
+                return response;
+            } finally {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    private static class NetworkInterceptor implements Interceptor {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            CallState state = CURRENT.get();
+            if (null == state) {
+                return chain.proceed(chain.request());
+            }
+            RequestMetrics metrics = state.metrics;
+            if (++state.attempts > 1) {
+                // OkHttp 内部的重试；RetryPolicy 的重试次数已经记录在 metrics 中时取较大值
+                metrics.setRetryCount(Math.max(metrics.getRetryCount(), state.attempts - 1));
+            }
+            boolean https = chain.request().isHttps();
+            if (state.connectedNanos > 0) {
+                if (https) {
+                    metrics.addTlsNanos(System.nanoTime() - state.connectedNanos);
+                }
+                state.connectedNanos = -1;
+            } else if (metrics.getConnectNanos() < 0) {
+                // 复用连接池中的连接
+                metrics.addDnsNanos(0);
+                metrics.addConnectNanos(0);
+                if (https) {
+                    metrics.addTlsNanos(0);
+                }
+            }
+            Response response = chain.proceed(chain.request());
+            metrics.markFirstByte();
+            return response;
+        }
+    }
+
+    private static class TimedDns implements Dns {
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            long start = System.nanoTime();
+            try {
+                return Dns.SYSTEM.lookup(hostname);
+            } finally {
+                CallState state = CURRENT.get();
+                if (null != state) {
+                    state.metrics.addDnsNanos(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * OkHttp 只用无参的 createSocket 再自行 connect
+     */
+    private static class TimedSocketFactory extends SocketFactory {
+        private final SocketFactory _delegate = SocketFactory.getDefault();
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return new TimedSocket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return _delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return _delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return _delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return _delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+
+    private static class TimedSocket extends Socket {
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            long start = System.nanoTime();
+            try {
+                super.connect(endpoint, timeout);
+            } finally {
+                CallState state = CURRENT.get();
+                if (null != state) {
+                    long now = System.nanoTime();
+                    state.metrics.addConnectNanos(now - start);
+                    state.connectedNanos = now;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.IRateLimiting;
+import cn.jiguang.common.resp.ResponseWrapper;
+import cn.jiguang.common.utils.Preconditions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在任意 IHttpClient 前加上 RateLimiter：发送前按限速器的节奏等待，收到响应（包括 APIRequestException）后用其中的限频信息更新限速器，
+ * 使请求速度保持在服务端配额内，避免触发 429。
+ * <p>
+ * 同步接口在调用线程上等待；异步接口不阻塞，需要等待的请求由内部的调度线程延后发送。
+ * 被包装的 client 没有实现 IAsyncHttpClient、IStreamingHttpClient 或 IBinaryHttpClient 时，对应的请求改用它的同步接口发送。
+ */
+public class RateLimitedHttpClient implements IHttpClient, IAsyncHttpClient, IStreamingHttpClient, IBinaryHttpClient {
+
+    private final IHttpClient _delegate;
+    private final RateLimiter _limiter;
+
+    public RateLimitedHttpClient(IHttpClient delegate, RateLimiter limiter) {
+        Preconditions.checkArgument(null != delegate, "delegate should not be null");
+        Preconditions.checkArgument(null != limiter, "limiter should not be null");
+        this._delegate = delegate;
+        this._limiter = limiter;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return _limiter;
+    }
+
+    @Override
+    public ResponseWrapper sendGet(String url) throws APIConnectionException, APIRequestException {
+        return send(RequestMethod.GET, url, null);
+    }
+
+    @Override
+    public ResponseWrapper sendGet(String url, String content) throws APIConnectionException, APIRequestException {
+        return send(RequestMethod.GET, url, content);
+    }
+
+    @Override
+    public ResponseWrapper sendDelete(String url) throws APIConnectionException, APIRequestException {
+        return send(RequestMethod.DELETE, url, null);
+    }
+
+    @Override
+    public ResponseWrapper sendDelete(String url, String content) throws APIConnectionException, APIRequestException {
+        return send(RequestMethod.DELETE, url, content);
+    }
+
+    @Override
+    public ResponseWrapper sendPost(String url, String content) throws APIConnectionException, APIRequestException {
+        return send(RequestMethod.POST, url, content);
+    }
+
+    @Override
+    public ResponseWrapper sendPut(String url, String content) throws APIConnectionException, APIRequestException {
+        return send(RequestMethod.PUT, url, content);
+    }
+
+    @Override
+    public ResponseFuture sendGetAsync(String url) {
+        return sendAsync(RequestMethod.GET, url, null);
+    }
+
+    @Override
+    public ResponseFuture sendGetAsync(String url, String content) {
+        return sendAsync(RequestMethod.GET, url, content);
+    }
+
+    @Override
+    public ResponseFuture sendDeleteAsync(String url) {
+        return sendAsync(RequestMethod.DELETE, url, null);
+    }
+
+    @Override
+    public ResponseFuture sendDeleteAsync(String url, String content) {
+        return sendAsync(RequestMethod.DELETE, url, content);
+    }
+
+    @Override
+    public ResponseFuture sendPostAsync(String url, String content) {
+        return sendAsync(RequestMethod.POST, url, content);
+    }
+
+    @Override
+    public ResponseFuture sendPutAsync(String url, String content) {
+        return sendAsync(RequestMethod.PUT, url, content);
+    }
+
+    @Override
+    public <T> T sendStreaming(RequestMethod method, String url, String content, final ResponseBodyHandler<T> handler)
+            throws APIConnectionException, APIRequestException {
+        acquire();
+        try {
+            return ClientDelegates.sendStreaming(_delegate, method, url, content, new ResponseBodyHandler<T>() {
+                @Override
+                public T handle(ResponseWrapper wrapper, InputStream body) throws IOException {
+                    _limiter.update(wrapper);
+                    return handler.handle(wrapper, body);
+                }
+            });
+        } catch (APIRequestException e) {
+            _limiter.update(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public ResponseWrapper sendBytes(RequestMethod method, String url, ByteBuffer content)
+            throws APIConnectionException, APIRequestException {
+        acquire();
+        try {
+            ResponseWrapper wrapper = ClientDelegates.sendBytes(_delegate, method, url, content);
+            _limiter.update(wrapper);
+            return wrapper;
+        } catch (APIRequestException e) {
+            _limiter.update(e);
+            throw e;
+        }
+    }
+
+    private void acquire() throws APIConnectionException {
+        long delay = _limiter.reserve();
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new APIConnectionException(IO_ERROR_MESSAGE, e);
+            }
+        }
+    }
+
+    private ResponseWrapper send(RequestMethod method, String url, String content)
+            throws APIConnectionException, APIRequestException {
+        acquire();
+        try {
+            ResponseWrapper wrapper = ClientDelegates.send(_delegate, method, url, content);
+            _limiter.update(wrapper);
+            return wrapper;
+        } catch (APIRequestException e) {
+            _limiter.update(e);
+            throw e;
+        }
+    }
+
+    private ResponseFuture sendAsync(final RequestMethod method, final String url, final String content) {
+        final ResponseFuture future = new ResponseFuture();
+        long delay = _limiter.reserve();
+        if (delay <= 0) {
+            forward(method, url, content, future);
+            return future;
+        }
+        final ScheduledFuture<?> task = Scheduler.INSTANCE.schedule(new Runnable() {
+            @Override
+            public void run() {
+                forward(method, url, content, future);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+        future.setCancelHandler(new Runnable() {
+            @Override
+            public void run() {
+                task.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    private void forward(RequestMethod method, String url, String content, final ResponseFuture future) {
+        if (future.isDone()) {
+            return;
+        }
+        final ResponseFuture inner = ClientDelegates.sendAsync(_delegate, method, url, content);
+        future.setCancelHandler(new Runnable() {
+            @Override
+            public void run() {
+                inner.cancel(true);
+            }
+        });
+        inner.addCallback(new ResponseCallback() {
+            @Override
+            public void onSucceed(ResponseWrapper wrapper) {
+                _limiter.update(wrapper);
+                future.complete(wrapper);
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                if (e instanceof IRateLimiting) {
+                    _limiter.update((IRateLimiting) e);
+                }
+                future.fail(e);
+            }
+        });
+    }
+
+    /**
+     * 延后发送的异步请求共用一个守护线程
+     */
+    private static class Scheduler {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "jiguang-rate-limiter");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+}
@@ -0,0 +1,80 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.resp.IRateLimiting;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 根据服务端返回的 X-Rate-Limit-* 头自适应的客户端限速器，无锁实现。
+ * <p>
+ * 每次拿到限频信息后，把窗口内剩余的次数均匀分布到窗口重置前的时间里，请求按此间隔放行；
+ * 剩余次数为 0 时，窗口重置前不再放行。还没有拿到限频信息时不限速。
+ * <p>
+ * 限频以 appKey 为单位，同一个 appKey 的所有 client 应共享同一个实例。
+ */
+public class RateLimiter {
+
+    // 下一个可以放行的时间点，System.nanoTime()
+    private final AtomicLong _nextFreeNanos = new AtomicLong(System.nanoTime());
+    // 两次放行之间的间隔，0 表示不限速
+    private volatile long _intervalNanos = 0;
+
+    /**
+     * 预定一次放行，返回需要等待的时间。
+     * @return nanoseconds to wait before sending, 0 or negative to send right away
+     */
+    public long reserve() {
+        long interval = _intervalNanos;
+        while (true) {
+            long now = System.nanoTime();
+            long next = _nextFreeNanos.get();
+            long slot = next - now > 0 ? next : now;
+            if (_nextFreeNanos.compareAndSet(next, slot + interval)) {
+                return slot - now;
+            }
+        }
+    }
+
+    public void update(IRateLimiting rateLimiting) {
+        if (null != rateLimiting) {
+            update(rateLimiting.getRateLimitQuota(), rateLimiting.getRateLimitRemaining(),
+                    rateLimiting.getRateLimitReset());
+        }
+    }
+
+    /**
+     * @param quota X-Rate-Limit-Limit
+     * @param remaining X-Rate-Limit-Remaining
+     * @param reset X-Rate-Limit-Reset, seconds until the window resets
+     */
+    public void update(int quota, int remaining, int reset) {
+        if (quota <= 0 || reset <= 0) {
+            return;
+        }
+        long resetNanos = TimeUnit.SECONDS.toNanos(reset);
+        if (remaining <= 0) {
+            // 本窗口已用完，重置后按整个配额重新分配
+            advanceTo(System.nanoTime() + resetNanos);
+            _intervalNanos = resetNanos / quota;
+        } else {
+            _intervalNanos = resetNanos / remaining;
+        }
+    }
+
+    /**
+     * @return current interval between two requests in nanoseconds, 0 if not limited
+     */
+    public long getIntervalNanos() {
+        return _intervalNanos;
+    }
+
+    private void advanceTo(long nanos) {
+        while (true) {
+            long next = _nextFreeNanos.get();
+            if (next - nanos >= 0 || _nextFreeNanos.compareAndSet(next, nanos)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.ResponseWrapper;
+import cn.jiguang.common.utils.Preconditions;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 把多个线程提交的单条推送合并成批量推送请求，用于 BATCH_REGID_PUSH_PATH / BATCH_ALIAS_PUSH_PATH。
+ * <p>
+ * 每条推送以 cid 区分，攒够 maxBatchSize 条或第一条等待超过 maxLingerMillis 后，以
+ * {"pushlist": {cid: payload, ...}} 的形式发送一次请求，再按 cid 把响应拆分给各自的 ResponseFuture：
+ * 成功的条目得到该 cid 对应的响应内容，带 error 的条目以响应码 400 的 APIRequestException 失败；整个请求失败时所有条目以同一异常失败。
+ * <p>
+ * 如果 client 实现了 IAsyncHttpClient 则异步发送，否则在内部最多 maxInFlightBatches 个线程上同步发送，
+ * 发送线程都在忙时批次排队等待。用完后请调用 close。
+ */
+public class RequestBatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestBatcher.class);
+
+    // 批量推送接口单次最多 1000 条
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+    public static final long DEFAULT_MAX_LINGER_MILLIS = 50;
+    public static final int DEFAULT_MAX_IN_FLIGHT_BATCHES = 8;
+
+    // 批次中单条失败的响应码：整个请求是 200，单条的错误是请求内容的问题
+    private static final int ITEM_ERROR_STATUS = 400;
+
+    private static final String PUSH_LIST = "pushlist";
+    private static JsonParser jsonParser = new JsonParser();
+    private static final AtomicInteger SENDER_INDEX = new AtomicInteger();
+
+    private final IHttpClient _client;
+    private final String _url;
+    private final int _maxBatchSize;
+    private final long _maxLingerMillis;
+    private final ScheduledExecutorService _scheduler;
+    // 同步 client 的发送线程，异步 client 时为 null
+    private final ExecutorService _sender;
+
+    private Map<String, Item> _pending = new LinkedHashMap<String, Item>();
+    private ScheduledFuture<?> _lingerTask;
+    // 已经取出、还没交给 client 或发送线程的批次数，close 等它归零后才关闭发送线程
+    private int _dispatching;
+    private boolean _closed;
+
+    public RequestBatcher(IHttpClient client, String url) {
+        this(client, url, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LINGER_MILLIS);
+    }
+
+    public RequestBatcher(IHttpClient client, String url, int maxBatchSize, long maxLingerMillis) {
+        this(client, url, maxBatchSize, maxLingerMillis, DEFAULT_MAX_IN_FLIGHT_BATCHES);
+    }
+
+    /**
+     * @param maxInFlightBatches client 不是 IAsyncHttpClient 时同时发送的最大批次数
+     */
+    public RequestBatcher(IHttpClient client, String url, int maxBatchSize, long maxLingerMillis,
+                          int maxInFlightBatches) {
+        Preconditions.checkArgument(null != client, "client should not be null");
+        Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize should be positive");
+        Preconditions.checkArgument(maxLingerMillis >= 0, "maxLingerMillis should not be negative");
+        Preconditions.checkArgument(maxInFlightBatches > 0, "maxInFlightBatches should be positive");
+        _client = client;
+        _url = url;
+        _maxBatchSize = maxBatchSize;
+        _maxLingerMillis = maxLingerMillis;
+        _scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jiguang-request-batcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (client instanceof IAsyncHttpClient) {
+            _sender = null;
+        } else {
+            _sender = new ThreadPoolExecutor(maxInFlightBatches, maxInFlightBatches, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jiguang-request-batcher-sender-" + SENDER_INDEX.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    // 只有关闭后才会拒绝，不能在调度线程或提交的线程上发送
+                    failAll(((SendTask) r).batch, new RejectedExecutionException("RequestBatcher is closed"));
+                }
+            });
+        }
+    }
+
+    /**
+     * @param cid 本条推送的唯一标识，同一批次内不能重复
+     * @param content 单条推送的 JSON 内容
+     * @return 该条推送的结果
+     */
+    public ResponseFuture submit(String cid, String content) {
+        Preconditions.checkArgument(null != cid, "cid should not be null");
+        Preconditions.checkArgument(null != content, "content should not be null");
+        ResponseFuture future = new ResponseFuture();
+        List<Map<String, Item>> batches = new ArrayList<Map<String, Item>>(2);
+        synchronized (this) {
+            if (_closed) {
+                throw new IllegalStateException("RequestBatcher is closed");
+            }
+            if (_pending.containsKey(cid)) {
+                batches.add(takePending());
+            }
+            _pending.put(cid, new Item(content, future));
+            if (_pending.size() >= _maxBatchSize) {
+                batches.add(takePending());
+            } else if (null == _lingerTask) {
+                _lingerTask = _scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, _maxLingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        for (Map<String, Item> batch : batches) {
+            dispatch(batch);
+        }
+        return future;
+    }
+
+    /**
+     * 立即发送已经攒下的条目
+     */
+    public void flush() {
+        Map<String, Item> batch;
+        synchronized (this) {
+            if (_pending.isEmpty()) {
+                return;
+            }
+            batch = takePending();
+        }
+        dispatch(batch);
+    }
+
+    /**
+     * 发送剩余条目后停止调度和发送线程，已经开始的发送会继续完成，不会关闭传入的 client
+     */
+    public void close() {
+        synchronized (this) {
+            _closed = true;
+        }
+        flush();
+        _scheduler.shutdown();
+        boolean interrupted = false;
+        synchronized (this) {
+            // 调度线程可能刚取出一批还没交给发送线程
+            while (_dispatching > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (null != _sender) {
+            _sender.shutdown();
+        }
+    }
+
+    private Map<String, Item> takePending() {
+        Map<String, Item> batch = _pending;
+        _pending = new LinkedHashMap<String, Item>();
+        _dispatching++;
+        if (null != _lingerTask) {
+            _lingerTask.cancel(false);
+            _lingerTask = null;
+        }
+        return batch;
+    }
+
+    private void dispatch(final Map<String, Item> batch) {
+        try {
+            String payload = buildPayload(batch);
+            LOG.debug("Send batch of " + batch.size() + " - " + _url);
+            if (_client instanceof IAsyncHttpClient) {
+                ((IAsyncHttpClient) _client).sendPostAsync(_url, payload).addCallback(new ResponseCallback() {
+                    @Override
+                    public void onSucceed(ResponseWrapper wrapper) {
+                        fanOut(batch, wrapper);
+                    }
+
+                    @Override
+                    public void onFailed(Exception e) {
+                        failAll(batch, e);
+                    }
+                });
+            } else {
+                _sender.execute(new SendTask(batch, payload));
+            }
+        } catch (RuntimeException e) {
+            failAll(batch, e);
+        } finally {
+            synchronized (this) {
+                if (--_dispatching == 0) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private static String buildPayload(Map<String, Item> batch) {
+        StringBuilder builder = new StringBuilder(64 * batch.size());
+        builder.append("{\"").append(PUSH_LIST).append("\":{");
+        boolean first = true;
+        for (Map.Entry<String, Item> entry : batch.entrySet()) {
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            builder.append(new JsonPrimitive(entry.getKey()).toString()).append(':').append(entry.getValue().content);
+        }
+        return builder.append("}}").toString();
+    }
+
+    private static void fanOut(Map<String, Item> batch, ResponseWrapper wrapper) {
+        JsonObject results;
+        try {
+            results = jsonParser.parse(wrapper.responseContent).getAsJsonObject();
+        } catch (Exception e) {
+            LOG.error("Unexpected - responseContent:" + wrapper.responseContent, e);
+            failAll(batch, new APIRequestException(wrapper));
+            return;
+        }
+        for (Map.Entry<String, Item> entry : batch.entrySet()) {
+            ResponseFuture future = entry.getValue().future;
+            JsonElement result = results.get(entry.getKey());
+            ResponseWrapper itemWrapper = new ResponseWrapper();
+            itemWrapper.responseCode = wrapper.responseCode;
+            itemWrapper.responseContent = null == result ? wrapper.responseContent : result.toString();
+            itemWrapper.rateLimitQuota = wrapper.rateLimitQuota;
+            itemWrapper.rateLimitRemaining = wrapper.rateLimitRemaining;
+            itemWrapper.rateLimitReset = wrapper.rateLimitReset;
+            if (null == result) {
+                // 响应中没有这一条的结果
+                itemWrapper.responseCode = ITEM_ERROR_STATUS;
+                future.fail(new APIRequestException(itemWrapper));
+            } else if (result.isJsonObject() && result.getAsJsonObject().has("error")) {
+                // 整个请求是 200，单条的错误不能按 200 上报
+                itemWrapper.responseCode = ITEM_ERROR_STATUS;
+                itemWrapper.setErrorObject();
+                future.fail(new APIRequestException(itemWrapper));
+            } else {
+                future.complete(itemWrapper);
+            }
+        }
+    }
+
+    private static void failAll(Map<String, Item> batch, Exception e) {
+        for (Item item : batch.values()) {
+            item.future.fail(e);
+        }
+    }
+
+    private class SendTask implements Runnable {
+        final Map<String, Item> batch;
+        final String payload;
+
+        SendTask(Map<String, Item> batch, String payload) {
+            this.batch = batch;
+            this.payload = payload;
+        }
+
+        @Override
+        public void run() {
+            try {
+                fanOut(batch, _client.sendPost(_url, payload));
+            } catch (APIConnectionException e) {
+                failAll(batch, e);
+            } catch (APIRequestException e) {
+                failAll(batch, e);
+            } catch (RuntimeException e) {
+                failAll(batch, e);
+            }
+        }
+    }
+
+    private static class Item {
+        final String content;
+        final ResponseFuture future;
+
+        Item(String content, ResponseFuture future) {
+            this.content = content;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package cn.jiguang.common.connection;
+
+/**
+ * 请求监听器，通过 ClientConfig.setRequestListener 配置后，所有 IHttpClient 实现在每次请求开始和结束时回调，
+ * 可用于统计耗时、上报监控或接入链路追踪。
+ * <p>
+ * 回调在发起请求的线程或 IO 线程上同步执行，实现必须线程安全且不能阻塞；抛出的异常会被忽略。
+ */
+public interface RequestListener {
+
+    /**
+     * 请求开始，此时只有 method 和 url 可用
+     */
+    void onRequestStart(RequestMetrics metrics);
+
+    /**
+     * 请求结束（成功或失败），同一个 metrics 对象，各项耗时已填好
+     */
+    void onRequestEnd(RequestMetrics metrics);
+
+}
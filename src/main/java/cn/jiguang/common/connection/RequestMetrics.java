@@ -0,0 +1,207 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.ResponseWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 一次请求的耗时和流量统计，交给 RequestListener。
+ * <p>
+ * 时间单位均为纳秒，-1 表示当前实现拿不到该项：
+ * <ul>
+ *     <li>DNS / 连接 / TLS 只在本次请求新建了连接时有值，复用连接时为 0；取不到 DNS 的实现会把它计入连接耗时</li>
+ *     <li>连接池等待时间为从请求开始到拿到可用连接的排队时间，不含新建连接的耗时</li>
+ *     <li>首字节时间为从请求开始到收到响应头</li>
+ *     <li>字节数只统计请求体和响应体</li>
+ * </ul>
+ * 多次重试时各项耗时为累计值。
+ */
+public class RequestMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestMetrics.class);
+
+    private final RequestListener _listener;
+    private final String _method;
+    private final String _url;
+    private final long _startNanos;
+
+    private volatile long _dnsNanos = -1;
+    private volatile long _connectNanos = -1;
+    private volatile long _tlsNanos = -1;
+    private volatile long _poolWaitNanos = -1;
+    private volatile long _firstByteNanos = -1;
+    private volatile long _totalNanos = -1;
+    private volatile long _bytesSent = -1;
+    private volatile long _bytesReceived = -1;
+    private volatile int _statusCode = -1;
+    private volatile int _retryCount = 0;
+    private volatile Exception _exception;
+
+    private RequestMetrics(RequestListener listener, String method, String url) {
+        this._listener = listener;
+        this._method = method;
+        this._url = url;
+        this._startNanos = System.nanoTime();
+    }
+
+    /**
+     * 开始统计一次请求并回调 onRequestStart
+     * @return 没有配置监听器时返回 null，调用方据此跳过所有统计
+     */
+    static RequestMetrics start(RequestListener listener, String method, String url) {
+        if (null == listener) {
+            return null;
+        }
+        RequestMetrics metrics = new RequestMetrics(listener, method, url);
+        try {
+            listener.onRequestStart(metrics);
+        } catch (RuntimeException e) {
+            LOG.warn("RequestListener.onRequestStart failed", e);
+        }
+        return metrics;
+    }
+
+    /**
+     * 请求成功结束
+     */
+    void end(ResponseWrapper wrapper) {
+        _statusCode = wrapper.responseCode;
+        finish();
+    }
+
+    /**
+     * 请求失败结束，APIRequestException 会带上响应码
+     */
+    void end(Exception e) {
+        _exception = e;
+        if (e instanceof APIRequestException) {
+            _statusCode = ((APIRequestException) e).getStatus();
+        }
+        finish();
+    }
+
+    private void finish() {
+        _totalNanos = System.nanoTime() - _startNanos;
+        try {
+            _listener.onRequestEnd(this);
+        } catch (RuntimeException e) {
+            LOG.warn("RequestListener.onRequestEnd failed", e);
+        }
+    }
+
+    long elapsedNanos() {
+        return System.nanoTime() - _startNanos;
+    }
+
+    void addDnsNanos(long nanos) {
+        _dnsNanos = accumulate(_dnsNanos, nanos);
+    }
+
+    void addConnectNanos(long nanos) {
+        _connectNanos = accumulate(_connectNanos, nanos);
+    }
+
+    void addTlsNanos(long nanos) {
+        _tlsNanos = accumulate(_tlsNanos, nanos);
+    }
+
+    void addPoolWaitNanos(long nanos) {
+        _poolWaitNanos = accumulate(_poolWaitNanos, Math.max(0, nanos));
+    }
+
+    /**
+     * 收到响应头时调用，只记录第一次
+     */
+    void markFirstByte() {
+        if (_firstByteNanos < 0) {
+            _firstByteNanos = elapsedNanos();
+        }
+    }
+
+    void setBytesSent(long bytes) {
+        _bytesSent = bytes;
+    }
+
+    void setBytesReceived(long bytes) {
+        _bytesReceived = bytes;
+    }
+
+    void setRetryCount(int retryCount) {
+        _retryCount = retryCount;
+    }
+
+    private static long accumulate(long current, long nanos) {
+        return current < 0 ? nanos : current + nanos;
+    }
+
+    public String getMethod() {
+        return _method;
+    }
+
+    public String getUrl() {
+        return _url;
+    }
+
+    public long getDnsNanos() {
+        return _dnsNanos;
+    }
+
+    public long getConnectNanos() {
+        return _connectNanos;
+    }
+
+    public long getTlsNanos() {
+        return _tlsNanos;
+    }
+
+    public long getPoolWaitNanos() {
+        return _poolWaitNanos;
+    }
+
+    public long getFirstByteNanos() {
+        return _firstByteNanos;
+    }
+
+    public long getTotalNanos() {
+        return _totalNanos;
+    }
+
+    public long getBytesSent() {
+        return _bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return _bytesReceived;
+    }
+
+    /**
+     * @return HTTP 响应码，没有收到响应时为 -1
+     */
+    public int getStatusCode() {
+        return _statusCode;
+    }
+
+    public int getRetryCount() {
+        return _retryCount;
+    }
+
+    /**
+     * @return 失败原因，成功时为 null
+     */
+    public Exception getException() {
+        return _exception;
+    }
+
+    public boolean isSuccess() {
+        return null == _exception;
+    }
+
+    @Override
+    public String toString() {
+        return _method + " " + _url + " status=" + _statusCode + " total=" + _totalNanos
+                + " dns=" + _dnsNanos + " connect=" + _connectNanos + " tls=" + _tlsNanos
+                + " poolWait=" + _poolWaitNanos + " firstByte=" + _firstByteNanos
+                + " sent=" + _bytesSent + " received=" + _bytesReceived + " retry=" + _retryCount;
+    }
+}
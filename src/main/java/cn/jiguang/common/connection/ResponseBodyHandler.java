@@ -0,0 +1,21 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.resp.ResponseWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 直接从输入流读取响应体，不再先读成完整的字符串，用于报表、设备列表等较大的响应。
+ * <p>
+ * 只有 2xx 和 3xx 的响应会交给 handler；错误响应仍读成字符串，以 APIRequestException 抛出。
+ */
+public interface ResponseBodyHandler<T> {
+
+    /**
+     * @param wrapper 已填好响应码和限频信息，responseContent 为 null
+     * @param body UTF-8 编码的响应体，handler 返回后由客户端关闭，不要在 handler 之外使用
+     * @return 作为 sendStreaming 的返回值
+     */
+    public T handle(ResponseWrapper wrapper, InputStream body) throws IOException;
+}
@@ -0,0 +1,16 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.resp.ResponseWrapper;
+
+/**
+ * 异步请求的回调。回调在 IO 线程上执行，不要在回调里做阻塞操作。
+ */
+public interface ResponseCallback {
+
+    public void onSucceed(ResponseWrapper wrapper);
+
+    /**
+     * @param e APIConnectionException, APIRequestException, or CancellationException if the request is cancelled
+     */
+    public void onFailed(Exception e);
+}
@@ -0,0 +1,73 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.resp.ResponseWrapper;
+import org.slf4j.Logger;
+
+/**
+ * 各 client 共用的响应分类：按响应码记录日志，4xx 时读取错误信息。是否抛出 APIRequestException 由调用方决定。
+ * <p>
+ * 拼接响应内容的日志只在对应级别开启时才拼接，429 等错误集中出现时不产生额外的字符串。
+ */
+final class ResponseClassifier {
+
+    private ResponseClassifier() {
+    }
+
+    /**
+     * @param log 调用方的 Logger，日志仍记在各 client 名下
+     */
+    static void classify(Logger log, ResponseWrapper wrapper) {
+        int status = wrapper.responseCode;
+        if (status >= 200 && status < 300) {
+            if (log.isDebugEnabled()) {
+                log.debug("Succeed to get response OK - responseCode:" + status);
+                log.debug("Response Content - " + wrapper.responseContent);
+            }
+            return;
+        }
+        if (status >= 300 && status < 400) {
+            if (log.isWarnEnabled()) {
+                log.warn("Normal response but unexpected - responseCode:" + status
+                        + ", responseContent:" + wrapper.responseContent);
+            }
+            return;
+        }
+        if (log.isWarnEnabled()) {
+            log.warn("Got error response - responseCode:" + status + ", responseContent:" + wrapper.responseContent);
+        }
+        switch (status) {
+            case 400:
+                log.warn("Your request params is invalid. Please check them according to error message.");
+                wrapper.setErrorObject();
+                break;
+            case 401:
+                log.warn("Authentication failed! Please check authentication params according to docs.");
+                wrapper.setErrorObject();
+                break;
+            case 403:
+                log.warn("Request is forbidden! Maybe your appkey is listed in blacklist or your params is invalid.");
+                wrapper.setErrorObject();
+                break;
+            case 404:
+                log.warn("Request page is not found! Maybe your params is invalid.");
+                wrapper.setErrorObject();
+                break;
+            case 410:
+                log.warn("Request resource is no longer in service. Please according to notice on official website.");
+                wrapper.setErrorObject();
+                break;
+            case 429:
+                log.warn("Too many requests! Please review your appkey's request quota.");
+                wrapper.setErrorObject();
+                break;
+            case 500:
+            case 502:
+            case 503:
+            case 504:
+                log.warn("Seems encountered server error. Maybe JPush is in maintenance? Please retry later.");
+                break;
+            default:
+                log.warn("Unexpected response.");
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.ResponseWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 异步请求的结果。由各 IAsyncHttpClient 实现在 IO 线程上完成，调用方可以注册回调，也可以阻塞等待。
+ * <p>
+ * get() 遵循 Future 的约定，失败时抛出 ExecutionException；getResponse() 与同步接口一致，
+ * 直接抛出 APIConnectionException 或 APIRequestException。
+ */
+public class ResponseFuture implements Future<ResponseWrapper> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResponseFuture.class);
+
+    private final CountDownLatch _latch = new CountDownLatch(1);
+    private final List<ResponseCallback> _callbacks = new ArrayList<ResponseCallback>();
+    private ResponseWrapper _response;
+    private Exception _exception;
+    private boolean _done;
+    private boolean _cancelled;
+    private Runnable _cancelHandler;
+
+    /**
+     * @return false if the future is already done
+     */
+    public boolean complete(ResponseWrapper wrapper) {
+        return finish(wrapper, null, false);
+    }
+
+    /**
+     * @return false if the future is already done
+     */
+    public boolean fail(Exception e) {
+        return finish(null, e, false);
+    }
+
+    /**
+     * 取消时执行的动作，由实现用来中止底层请求。已经取消时立即执行。
+     */
+    public void setCancelHandler(Runnable handler) {
+        synchronized (this) {
+            if (!_cancelled) {
+                _cancelHandler = handler;
+                return;
+            }
+        }
+        handler.run();
+    }
+
+    public void addCallback(ResponseCallback callback) {
+        synchronized (this) {
+            if (!_done) {
+                _callbacks.add(callback);
+                return;
+            }
+        }
+        notifyCallback(callback);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, new CancellationException(), true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return _cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return _done;
+    }
+
+    @Override
+    public ResponseWrapper get() throws InterruptedException, ExecutionException {
+        _latch.await();
+        return report();
+    }
+
+    @Override
+    public ResponseWrapper get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!_latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return report();
+    }
+
+    /**
+     * 阻塞等待结果，异常与同步接口一致。等待时线程被中断会取消请求。
+     */
+    public ResponseWrapper getResponse() throws APIConnectionException, APIRequestException {
+        try {
+            _latch.await();
+        } catch (InterruptedException e) {
+            cancel(true);
+            Thread.currentThread().interrupt();
+            throw new APIConnectionException(IHttpClient.IO_ERROR_MESSAGE, e);
+        }
+        if (_exception instanceof APIRequestException) {
+            throw (APIRequestException) _exception;
+        } else if (_exception instanceof APIConnectionException) {
+            throw (APIConnectionException) _exception;
+        } else if (null != _exception) {
+            throw new APIConnectionException(IHttpClient.IO_ERROR_MESSAGE, _exception);
+        }
+        return _response;
+    }
+
+    private ResponseWrapper report() throws ExecutionException {
+        if (_cancelled) {
+            throw new CancellationException();
+        }
+        if (null != _exception) {
+            throw new ExecutionException(_exception);
+        }
+        return _response;
+    }
+
+    private boolean finish(ResponseWrapper wrapper, Exception e, boolean cancelled) {
+        List<ResponseCallback> callbacks;
+        Runnable cancelHandler;
+        synchronized (this) {
+            if (_done) {
+                return false;
+            }
+            _done = true;
+            _response = wrapper;
+            _exception = e;
+            _cancelled = cancelled;
+            callbacks = new ArrayList<ResponseCallback>(_callbacks);
+            _callbacks.clear();
+            cancelHandler = _cancelHandler;
+            _cancelHandler = null;
+        }
+        _latch.countDown();
+        if (cancelled && null != cancelHandler) {
+            cancelHandler.run();
+        }
+        for (ResponseCallback callback : callbacks) {
+            notifyCallback(callback);
+        }
+        return true;
+    }
+
+    private void notifyCallback(ResponseCallback callback) {
+        try {
+            if (null == _exception) {
+                callback.onSucceed(_response);
+            } else {
+                callback.onFailed(_exception);
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Callback error", e);
+        }
+    }
+}
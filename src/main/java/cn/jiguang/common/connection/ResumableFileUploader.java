@@ -0,0 +1,209 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.ResponseWrapper;
+import cn.jiguang.common.utils.Preconditions;
+import cn.jiguang.common.utils.StringUtils;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 可续传的大文件上传：文件按 partSize 分段，每段以 PUT 和 Content-Range 单独上传，发送时顺带计算这一段的 MD5；
+ * 全部完成后以 POST 提交文件大小、分段大小和各段的 MD5，服务端据此校验和合并。
+ * <p>
+ * 每上传完一段就追加到本地的日志文件（默认为文件旁边的 .upload 文件）；上传失败后再次调用 upload 时只上传未完成的段，
+ * 文件大小或修改时间变了则从头开始。失败的段按 ApacheHttpClient 的 RetryPolicy 单独重试，不影响已完成的段。
+ * <p>
+ * 需要服务端支持按 Content-Range 分段上传；不支持时请使用 ApacheHttpClient.uploadFile。
+ */
+public class ResumableFileUploader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResumableFileUploader.class);
+
+    public static final long DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+    private static final String JOURNAL_SUFFIX = ".upload";
+    private static final String JOURNAL_VERSION = "v1";
+    // MD5 的十六进制长度
+    private static final int CHECKSUM_LENGTH = 32;
+
+    private final ApacheHttpClient _client;
+    private final long _partSize;
+    private final File _journalDir;
+
+    public ResumableFileUploader(ApacheHttpClient client) {
+        this(client, DEFAULT_PART_SIZE, null);
+    }
+
+    /**
+     * @param partSize 每段的字节数
+     * @param journalDir 日志文件的目录，为 null 时放在上传的文件旁边
+     */
+    public ResumableFileUploader(ApacheHttpClient client, long partSize, File journalDir) {
+        Preconditions.checkArgument(null != client, "client should not be null");
+        Preconditions.checkArgument(partSize > 0, "partSize should be positive");
+        _client = client;
+        _partSize = partSize;
+        _journalDir = journalDir;
+    }
+
+    /**
+     * 上传文件，之前中断过的从未完成的段继续
+     * @return 提交请求的响应
+     * @throws APIConnectionException 某一段重试后仍然失败，已完成的段保留在日志中
+     */
+    public ResponseWrapper upload(String url, String path) throws APIConnectionException, APIRequestException {
+        File file = new File(path);
+        Preconditions.checkArgument(file.isFile(), "File not exist: " + path);
+        File journal = getJournalFile(file);
+        long length = file.length();
+        // 空文件没有分段，只提交
+        int partCount = (int) ((length + _partSize - 1) / _partSize);
+        String header = JOURNAL_VERSION + " " + length + " " + file.lastModified() + " " + _partSize + " " + url;
+
+        String[] checksums = new String[partCount];
+        int done = readJournal(journal, header, checksums);
+        if (done > 0) {
+            LOG.info("Resume uploading " + path + " - " + done + "/" + partCount + " parts done");
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Writer writer = null;
+        try {
+            writer = openJournal(journal, header, checksums);
+            for (int i = 0; i < partCount; i++) {
+                if (null != checksums[i]) {
+                    continue;
+                }
+                long offset = i * _partSize;
+                _client.uploadPart(url, file, offset, Math.min(_partSize, length - offset), digest);
+                checksums[i] = StringUtils.byteArrayToHexString(digest.digest());
+                writer.write(i + " " + checksums[i] + "\n");
+                writer.flush();
+            }
+        } catch (IOException e) {
+            throw new APIConnectionException("Failed to write upload journal " + journal, e);
+        } finally {
+            closeQuietly(writer);
+        }
+
+        JsonObject complete = new JsonObject();
+        complete.add("size", new JsonPrimitive(length));
+        complete.add("part_size", new JsonPrimitive(_partSize));
+        JsonArray parts = new JsonArray();
+        for (String checksum : checksums) {
+            parts.add(new JsonPrimitive(checksum));
+        }
+        complete.add("parts", parts);
+        ResponseWrapper wrapper = _client.sendPost(url, complete.toString());
+        if (!journal.delete()) {
+            LOG.warn("Failed to delete upload journal " + journal);
+        }
+        return wrapper;
+    }
+
+    public File getJournalFile(File file) {
+        File dir = null == _journalDir ? file.getAbsoluteFile().getParentFile() : _journalDir;
+        return new File(dir, file.getName() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * @return 已完成的段数；日志不存在或与当前文件不符时为 0
+     */
+    private int readJournal(File journal, String header, String[] checksums) {
+        if (!journal.isFile()) {
+            return 0;
+        }
+        int done = 0;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), IHttpClient.CHARSET));
+            if (!header.equals(reader.readLine())) {
+                LOG.info("Upload journal " + journal + " is out of date, restart uploading");
+                return 0;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length != 2 || fields[1].length() != CHECKSUM_LENGTH) {
+                    // 写到一半中断的最后一行，重新打开日志时丢弃
+                    break;
+                }
+                int index = Integer.parseInt(fields[0]);
+                if (index >= 0 && index < checksums.length && null == checksums[index]) {
+                    checksums[index] = fields[1];
+                    done++;
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to read upload journal " + journal + ", restart uploading", e);
+            clear(checksums);
+            return 0;
+        } catch (NumberFormatException e) {
+            LOG.warn("Broken upload journal " + journal + ", restart uploading", e);
+            clear(checksums);
+            return 0;
+        } finally {
+            closeQuietly(reader);
+        }
+        return done;
+    }
+
+    /**
+     * 按读到的状态重写日志，不在中断的半行后面追加
+     */
+    private static Writer openJournal(File journal, String header, String[] checksums) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(journal), IHttpClient.CHARSET);
+        StringBuilder builder = new StringBuilder(header).append('\n');
+        for (int i = 0; i < checksums.length; i++) {
+            if (null != checksums[i]) {
+                builder.append(i).append(' ').append(checksums[i]).append('\n');
+            }
+        }
+        try {
+            writer.write(builder.toString());
+            writer.flush();
+        } catch (IOException e) {
+            closeQuietly(writer);
+            throw e;
+        }
+        return writer;
+    }
+
+    private static void clear(String[] checksums) {
+        for (int i = 0; i < checksums.length; i++) {
+            checksums[i] = null;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (null != closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LOG.debug("Close error", e);
+            }
+        }
+    }
+}
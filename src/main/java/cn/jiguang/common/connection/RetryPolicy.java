@@ -0,0 +1,298 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.ClientConfig;
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.ResponseWrapper;
+import cn.jiguang.common.utils.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 各 IHttpClient 实现共用的重试策略，参数来自 ClientConfig：最多重试 maxRetryTimes 次，
+ * 第 n 次重试前等待 [0, min(retryMaxDelay, retryBaseDelay * 2^n)) 之间的随机时间（full jitter）。
+ * <p>
+ * 哪些失败可以重试：
+ * <ul>
+ *     <li>连接失败（连接超时、连接被拒绝、域名解析失败），请求没有发出，所有方法都重试</li>
+ *     <li>429，服务端没有处理请求，所有方法都重试；等待时间不少于 X-Rate-Limit-Reset，超过 retryMaxDelay 时不重试</li>
+ *     <li>读超时等其他网络错误以及 500、502、503、504，请求可能已被处理，只重试幂等的方法（GET、PUT、DELETE），不会重复推送</li>
+ * </ul>
+ * 重试还受预算限制：每个请求存入 retryBudgetRatio 个令牌，每次重试取出一个，令牌不足时不重试，
+ * 服务端故障时重试最多只占总请求数的这个比例，不会形成重试风暴。
+ * <p>
+ * 每个 client 实例持有一个 RetryPolicy，预算在该实例的所有请求间共享。
+ */
+public class RetryPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+    // 令牌上限，即空闲一段时间后最多可以连续重试的次数
+    private static final int MAX_TOKENS = 10;
+    // 令牌以千分之一为单位计数
+    private static final long TOKEN_SCALE = 1000;
+
+    private final int _maxRetryTimes;
+    private final long _baseDelayMillis;
+    private final long _maxDelayMillis;
+    private final long _tokensPerRequest;
+    private final AtomicLong _tokens = new AtomicLong(MAX_TOKENS * TOKEN_SCALE);
+    private final Random _random = new Random();
+
+    public RetryPolicy(ClientConfig config) {
+        this(config.getMaxRetryTimes(), config.getRetryBaseDelay(), config.getRetryMaxDelay(),
+                config.getRetryBudgetRatio());
+    }
+
+    /**
+     * @param maxRetryTimes 最大重试次数，0 表示不重试
+     * @param baseDelayMillis 第一次重试的最大等待时间，之后每次翻倍
+     * @param maxDelayMillis 单次等待时间的上限
+     * @param budgetRatio 重试次数占请求数的上限，小于等于 0 表示不限制
+     */
+    public RetryPolicy(int maxRetryTimes, long baseDelayMillis, long maxDelayMillis, double budgetRatio) {
+        Preconditions.checkArgument(maxRetryTimes >= 0, "maxRetryTimes should not be negative");
+        Preconditions.checkArgument(baseDelayMillis >= 0, "baseDelayMillis should not be negative");
+        Preconditions.checkArgument(maxDelayMillis >= baseDelayMillis,
+                "maxDelayMillis should not be less than baseDelayMillis");
+        this._maxRetryTimes = maxRetryTimes;
+        this._baseDelayMillis = baseDelayMillis;
+        this._maxDelayMillis = maxDelayMillis;
+        this._tokensPerRequest = budgetRatio > 0 ? Math.max((long) (budgetRatio * TOKEN_SCALE), 1) : -1;
+    }
+
+    public int getMaxRetryTimes() {
+        return _maxRetryTimes;
+    }
+
+    public static boolean isIdempotent(String method) {
+        return "GET".equals(method) || "PUT".equals(method) || "DELETE".equals(method)
+                || "HEAD".equals(method) || "OPTIONS".equals(method);
+    }
+
+    /**
+     * 每个请求（不含重试）开始时调用，为重试预算存入令牌
+     */
+    public void onRequest() {
+        if (_tokensPerRequest < 0) {
+            return;
+        }
+        long max = MAX_TOKENS * TOKEN_SCALE;
+        for (;;) {
+            long tokens = _tokens.get();
+            if (tokens >= max || _tokens.compareAndSet(tokens, Math.min(tokens + _tokensPerRequest, max))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param idempotent 请求是否可以安全地重复发送；流式请求的 handler 可能已经读了部分响应体，按非幂等处理
+     * @param e 本次请求的失败，APIConnectionException 或 APIRequestException
+     * @param retryTimes 已经重试的次数
+     * @return 下次重试前等待的毫秒数，-1 表示不重试
+     */
+    public long retryDelay(boolean idempotent, Exception e, int retryTimes) {
+        if (e instanceof APIRequestException) {
+            APIRequestException re = (APIRequestException) e;
+            return retryDelay(idempotent, re.getStatus(), re.getRateLimitReset(), retryTimes);
+        }
+        if (!(e instanceof APIConnectionException) || retryTimes >= _maxRetryTimes) {
+            return -1;
+        }
+        Throwable cause = e.getCause();
+        boolean retryable;
+        if (IHttpClient.CONNECT_TIMED_OUT_MESSAGE.equals(e.getMessage()) || cause instanceof ConnectException
+                || cause instanceof UnknownHostException) {
+            retryable = true;
+        } else {
+            retryable = idempotent && (((APIConnectionException) e).isReadTimedout() || cause instanceof IOException);
+        }
+        return retryable ? acquire(backoff(retryTimes)) : -1;
+    }
+
+    /**
+     * 不抛出异常的旧接口用，按响应码判断
+     * @return 下次重试前等待的毫秒数，-1 表示不重试
+     */
+    public long retryDelay(boolean idempotent, ResponseWrapper wrapper, int retryTimes) {
+        return retryDelay(idempotent, wrapper.responseCode, wrapper.rateLimitReset, retryTimes);
+    }
+
+    private long retryDelay(boolean idempotent, int status, int rateLimitReset, int retryTimes) {
+        if (retryTimes >= _maxRetryTimes) {
+            return -1;
+        }
+        long delay = backoff(retryTimes);
+        if (status == 429) {
+            delay = Math.max(delay, TimeUnit.SECONDS.toMillis(rateLimitReset));
+            if (delay > _maxDelayMillis) {
+                return -1;
+            }
+        } else if (!idempotent || (status != 500 && status != 502 && status != 503 && status != 504)) {
+            return -1;
+        }
+        return acquire(delay);
+    }
+
+    /**
+     * 同步请求用：可以重试时等待后返回 true；不重试或等待时被中断返回 false，调用方抛出原来的异常
+     * @param metrics 整个调用共用一个 RequestMetrics 时传入，记录重试次数；可以为 null
+     */
+    public boolean awaitRetry(boolean idempotent, Exception e, int retryTimes, RequestMetrics metrics) {
+        return await(retryDelay(idempotent, e, retryTimes), retryTimes, metrics);
+    }
+
+    public boolean awaitRetry(boolean idempotent, ResponseWrapper wrapper, int retryTimes, RequestMetrics metrics) {
+        return await(retryDelay(idempotent, wrapper, retryTimes), retryTimes, metrics);
+    }
+
+    private static boolean await(long delay, int retryTimes, RequestMetrics metrics) {
+        if (delay < 0) {
+            return false;
+        }
+        LOG.debug("Retry again after " + delay + "ms - " + (retryTimes + 1));
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (null != metrics) {
+            metrics.setRetryCount(retryTimes + 1);
+        }
+        return true;
+    }
+
+    private long backoff(int retryTimes) {
+        long ceiling = _baseDelayMillis << Math.min(retryTimes, 30);
+        if (ceiling <= 0 || ceiling > _maxDelayMillis) {
+            ceiling = _maxDelayMillis;
+        }
+        return ceiling == 0 ? 0 : (long) (_random.nextDouble() * ceiling);
+    }
+
+    private long acquire(long delay) {
+        if (_tokensPerRequest < 0) {
+            return delay;
+        }
+        for (;;) {
+            long tokens = _tokens.get();
+            if (tokens < TOKEN_SCALE) {
+                LOG.debug("Retry budget exhausted");
+                return -1;
+            }
+            if (_tokens.compareAndSet(tokens, tokens - TOKEN_SCALE)) {
+                return delay;
+            }
+        }
+    }
+
+    /**
+     * 发出一次异步请求，retryTimes 为已经重试的次数
+     */
+    interface AsyncRequest {
+        ResponseFuture send(int retryTimes);
+    }
+
+    /**
+     * 异步请求用：失败时按策略在守护线程上延迟重发，返回的 ResponseFuture 在最后一次请求完成后完成，取消时取消正在进行的请求。
+     * @param metrics 整个调用共用的统计，可以为 null；重试时记录重试次数，最后一次请求完成时结束统计
+     */
+    ResponseFuture executeAsync(boolean idempotent, AsyncRequest request, RequestMetrics metrics) {
+        onRequest();
+        RetryingCall call = new RetryingCall(idempotent, request, metrics);
+        call.send(0);
+        return call._future;
+    }
+
+    private class RetryingCall {
+        private final boolean _idempotent;
+        private final AsyncRequest _request;
+        private final RequestMetrics _metrics;
+        private final ResponseFuture _future = new ResponseFuture();
+        private volatile ResponseFuture _attempt;
+
+        RetryingCall(boolean idempotent, AsyncRequest request, RequestMetrics metrics) {
+            this._idempotent = idempotent;
+            this._request = request;
+            this._metrics = metrics;
+            _future.setCancelHandler(new Runnable() {
+                @Override
+                public void run() {
+                    ResponseFuture attempt = _attempt;
+                    if (null != attempt) {
+                        attempt.cancel(true);
+                    }
+                }
+            });
+        }
+
+        void send(final int retryTimes) {
+            if (_future.isDone()) {
+                return;
+            }
+            ResponseFuture attempt = _request.send(retryTimes);
+            _attempt = attempt;
+            attempt.addCallback(new ResponseCallback() {
+                @Override
+                public void onSucceed(ResponseWrapper wrapper) {
+                    if (null != _metrics) {
+                        _metrics.end(wrapper);
+                    }
+                    _future.complete(wrapper);
+                }
+
+                @Override
+                public void onFailed(Exception e) {
+                    long delay = _future.isDone() ? -1 : retryDelay(_idempotent, e, retryTimes);
+                    if (delay < 0) {
+                        if (null != _metrics) {
+                            _metrics.end(e);
+                        }
+                        _future.fail(e);
+                        return;
+                    }
+                    if (null != _metrics) {
+                        _metrics.setRetryCount(retryTimes + 1);
+                    }
+                    LOG.debug("Retry again after " + delay + "ms - " + (retryTimes + 1));
+                    Scheduler.INSTANCE.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            send(retryTimes + 1);
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                }
+            });
+            if (_future.isDone() && !attempt.isDone()) {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * 异步重试的定时共用一个守护线程
+     */
+    private static class Scheduler {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "jiguang-retry");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+}
@@ -0,0 +1,128 @@
+package cn.jiguang.common.connection;
+
+import cn.jiguang.common.ServiceHelper;
+import cn.jiguang.common.resp.APIConnectionException;
+import cn.jiguang.common.resp.APIRequestException;
+import cn.jiguang.common.resp.ResponseWrapper;
+import cn.jiguang.common.utils.Preconditions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 多个 JPush 应用共用一个底层 client：连接池、IO 线程和 TLS 上下文只有一份，每个请求带上各自应用的 Authorization，
+ * 内存和连接数随请求量而不是应用数增长。
+ * <pre>
+ * TenantHttpClientRegistry registry = new TenantHttpClientRegistry(new ApacheHttpClient(null, null, config));
+ * IHttpClient client = registry.getClient(appKey, masterSecret);
+ * </pre>
+ * getClient 返回的 client 只持有 Authorization 字符串，最近使用的 maxTenants 个被缓存，避免每次重新做 Base64 编码。
+ * 底层 client 由调用方负责关闭。
+ */
+public class TenantHttpClientRegistry {
+
+    public static final int DEFAULT_MAX_TENANTS = 1024;
+
+    private final IMultiTenantHttpClient _transport;
+    private final Map<String, TenantHttpClient> _tenants;
+
+    public TenantHttpClientRegistry(IMultiTenantHttpClient transport) {
+        this(transport, DEFAULT_MAX_TENANTS);
+    }
+
+    /**
+     * @param maxTenants 缓存的应用数上限，超出时淘汰最久未使用的
+     */
+    public TenantHttpClientRegistry(IMultiTenantHttpClient transport, final int maxTenants) {
+        Preconditions.checkArgument(null != transport, "transport should not be null");
+        Preconditions.checkArgument(maxTenants > 0, "maxTenants should be positive");
+        this._transport = transport;
+        this._tenants = new LinkedHashMap<String, TenantHttpClient>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TenantHttpClient> eldest) {
+                return size() > maxTenants;
+            }
+        };
+    }
+
+    public IMultiTenantHttpClient getTransport() {
+        return _transport;
+    }
+
+    /**
+     * @return 使用该应用 Authorization 的 client；masterSecret 变化时重新生成
+     */
+    public IHttpClient getClient(String appKey, String masterSecret) {
+        synchronized (_tenants) {
+            TenantHttpClient client = _tenants.get(appKey);
+            if (null != client && client._masterSecret.equals(masterSecret)) {
+                return client;
+            }
+        }
+        ServiceHelper.checkBasic(appKey, masterSecret);
+        TenantHttpClient client = new TenantHttpClient(_transport, masterSecret,
+                ServiceHelper.getBasicAuthorization(appKey, masterSecret));
+        synchronized (_tenants) {
+            _tenants.put(appKey, client);
+        }
+        return client;
+    }
+
+    /**
+     * 从缓存中移除，已经取得的 client 仍然可用
+     */
+    public void remove(String appKey) {
+        synchronized (_tenants) {
+            _tenants.remove(appKey);
+        }
+    }
+
+    public int size() {
+        synchronized (_tenants) {
+            return _tenants.size();
+        }
+    }
+
+    private static class TenantHttpClient implements IHttpClient {
+        private final IMultiTenantHttpClient _transport;
+        private final String _masterSecret;
+        private final String _authCode;
+
+        TenantHttpClient(IMultiTenantHttpClient transport, String masterSecret, String authCode) {
+            this._transport = transport;
+            this._masterSecret = masterSecret;
+            this._authCode = authCode;
+        }
+
+        @Override
+        public ResponseWrapper sendGet(String url) throws APIConnectionException, APIRequestException {
+            return _transport.send(_authCode, RequestMethod.GET, url, null);
+        }
+
+        @Override
+        public ResponseWrapper sendGet(String url, String content) throws APIConnectionException, APIRequestException {
+            return _transport.send(_authCode, RequestMethod.GET, url, content);
+        }
+
+        @Override
+        public ResponseWrapper sendDelete(String url) throws APIConnectionException, APIRequestException {
+            return _transport.send(_authCode, RequestMethod.DELETE, url, null);
+        }
+
+        @Override
+        public ResponseWrapper sendDelete(String url, String content)
+                throws APIConnectionException, APIRequestException {
+            return _transport.send(_authCode, RequestMethod.DELETE, url, content);
+        }
+
+        @Override
+        public ResponseWrapper sendPost(String url, String content) throws APIConnectionException, APIRequestException {
+            return _transport.send(_authCode, RequestMethod.POST, url, content);
+        }
+
+        @Override
+        public ResponseWrapper sendPut(String url, String content) throws APIConnectionException, APIRequestException {
+            return _transport.send(_authCode, RequestMethod.PUT, url, content);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package cn.jiguang.common.connection;
+
+/**
+ * 上传进度回调，在上传的线程上同步执行，不能阻塞；抛出的异常会中止上传。
+ */
+public interface UploadProgressListener {
+
+    /**
+     * 每写出一块数据回调一次，上传完成时 bytesWritten 等于 totalBytes
+     * @param bytesWritten 已写出的字节数，包括表单字段和分隔符
+     * @param totalBytes 请求体的总字节数
+     */
+    void onProgress(long bytesWritten, long totalBytes);
+
+}
@@ -1,9 +1,14 @@
 package cn.jiguang.common.resp;
 
+import cn.jiguang.common.connection.ResponseBodyHandler;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Serializable;
+import java.io.StringReader;
 
 public abstract class BaseResult implements IRateLimiting, Serializable {
     public static final int ERROR_CODE_NONE = -1;
@@ -20,6 +25,10 @@ public abstract class BaseResult implements IRateLimiting, Serializable {
     public void setResponseWrapper(ResponseWrapper responseWrapper) {
         this.responseWrapper = responseWrapper;
     }
+
+    protected ResponseWrapper getResponseWrapper() {
+        return responseWrapper;
+    }
     
     public String getOriginalContent() {
         if (null != responseWrapper) {
@@ -42,20 +51,22 @@ public abstract class BaseResult implements IRateLimiting, Serializable {
         return false;
     }
     
+    /**
+     * 用 ResultTypeAdapters 中 clazz 的 adapter 解析响应内容，不是服务端响应或内容为空时返回 clazz 的空实例。
+     */
     public static <T extends BaseResult> T fromResponse(
             ResponseWrapper responseWrapper, Class<T> clazz) {
+        if (clazz == LazyResult.class) {
+            // 直接保存原始响应体，不经过 JsonReader
+            return clazz.cast(LazyResult.fromResponse(responseWrapper));
+        }
         T result = null;
         
-        if (responseWrapper.isServerResponse()) {
-            result = _gson.fromJson(responseWrapper.responseContent, clazz);
-        } else {
-            try {
-                result = clazz.newInstance();
-            } catch (InstantiationException e) {
-                e.printStackTrace();
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            }
+        if (responseWrapper.isServerResponse() && null != responseWrapper.responseContent) {
+            result = ResultTypeAdapters.read(clazz, new StringReader(responseWrapper.responseContent));
+        }
+        if (null == result) {
+            result = ResultTypeAdapters.getAdapter(clazz).newInstance();
         }
         
         result.setResponseWrapper(responseWrapper);
@@ -63,6 +74,41 @@ public abstract class BaseResult implements IRateLimiting, Serializable {
         return result;
     }
 
+    /**
+     * 与 fromResponse 相同，但直接从响应体的输入流解析，不经过 responseContent 字符串。
+     * getOriginalContent() 因此返回 null。
+     */
+    public static <T extends BaseResult> T fromStream(
+            ResponseWrapper responseWrapper, InputStream body, Class<T> clazz) throws IOException {
+        if (clazz == LazyResult.class) {
+            return clazz.cast(LazyResult.fromStream(responseWrapper, body));
+        }
+        T result = null;
+
+        if (responseWrapper.isServerResponse()) {
+            result = ResultTypeAdapters.read(clazz, new InputStreamReader(body, "UTF-8"));
+        }
+        if (null == result) {
+            result = ResultTypeAdapters.getAdapter(clazz).newInstance();
+        }
+
+        result.setResponseWrapper(responseWrapper);
+
+        return result;
+    }
+
+    /**
+     * @return 用 fromStream 解析响应的 ResponseBodyHandler，供 IStreamingHttpClient 使用
+     */
+    public static <T extends BaseResult> ResponseBodyHandler<T> bodyHandler(final Class<T> clazz) {
+        return new ResponseBodyHandler<T>() {
+            @Override
+            public T handle(ResponseWrapper wrapper, InputStream body) throws IOException {
+                return fromStream(wrapper, body, clazz);
+            }
+        };
+    }
+
     
     public int getRateLimitQuota() {
         if (null != responseWrapper) {
@@ -0,0 +1,30 @@
+package cn.jiguang.common.resp;
+
+/**
+ * The circuit breaker of the target host is open, the request is not sent.
+ * It fails fast instead of waiting for connect or read timeout, you may shed load or retry later.
+ */
+public class CircuitBreakerOpenException extends APIConnectionException {
+    private static final long serialVersionUID = 1L;
+
+    private final String host;
+    private final long remainingMillis;
+
+    public CircuitBreakerOpenException(String host, long remainingMillis) {
+        super("Circuit breaker of " + host + " is open, the request is rejected. Retry after "
+                + remainingMillis + " ms.", null);
+        this.host = host;
+        this.remainingMillis = remainingMillis;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return milliseconds until the breaker lets probe requests through
+     */
+    public long getRemainingMillis() {
+        return remainingMillis;
+    }
+}
@@ -0,0 +1,201 @@
+package cn.jiguang.common.resp;
+
+import cn.jiguang.common.connection.ResponseBodyHandler;
+import com.google.gson.stream.JsonReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 可复用的响应，用于高 QPS 的场景：响应体读到复用的 byte[] 中，响应码和限频信息都是基本类型，
+ * 用完后由调用方 recycle 放回池中，稳定后每个请求不再分配响应体的缓冲区。
+ * <pre>
+ * CompactResponse response = client.sendStreaming(RequestMethod.GET, url, null, CompactResponse.bodyHandler());
+ * try {
+ *     JsonReader reader = response.newJsonReader();
+ *     ...
+ * } finally {
+ *     response.recycle();
+ * }
+ * </pre>
+ * 只有 2xx 和 3xx 的响应会读到这里，错误响应仍以 APIRequestException 抛出。recycle 之后不要再使用这个对象和 getContent 返回的 buffer。
+ */
+public final class CompactResponse implements IRateLimiting {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // 池中最多保留的对象数
+    private static final int POOL_SIZE = 64;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    // 超过这个大小的缓冲区放回池中时丢弃，不长期占用内存
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+    private static final AtomicReferenceArray<CompactResponse> _pool = new AtomicReferenceArray<CompactResponse>(POOL_SIZE);
+
+    private static final ResponseBodyHandler<CompactResponse> BODY_HANDLER = new ResponseBodyHandler<CompactResponse>() {
+        @Override
+        public CompactResponse handle(ResponseWrapper wrapper, InputStream body) throws IOException {
+            CompactResponse response = obtain();
+            try {
+                response.readFrom(wrapper, body);
+            } catch (IOException e) {
+                response.recycle();
+                throw e;
+            }
+            return response;
+        }
+    };
+
+    public int responseCode;
+    public int rateLimitQuota;
+    public int rateLimitRemaining;
+    public int rateLimitReset;
+
+    private byte[] _buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int _length;
+    private boolean _recycled;
+
+    private CompactResponse() {
+    }
+
+    /**
+     * @return 池中的空闲对象，池为空时新建
+     */
+    public static CompactResponse obtain() {
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            int index = (start + i) & (POOL_SIZE - 1);
+            if (null != _pool.get(index)) {
+                CompactResponse response = _pool.getAndSet(index, null);
+                if (null != response) {
+                    response._recycled = false;
+                    return response;
+                }
+            }
+        }
+        return new CompactResponse();
+    }
+
+    /**
+     * @return 从 wrapper 复制响应码和限频信息、把 body 读到池中对象的 ResponseBodyHandler，供 IStreamingHttpClient 使用
+     */
+    public static ResponseBodyHandler<CompactResponse> bodyHandler() {
+        return BODY_HANDLER;
+    }
+
+    /**
+     * 清空当前内容后读取 wrapper 的响应码、限频信息和 body
+     */
+    public void readFrom(ResponseWrapper wrapper, InputStream body) throws IOException {
+        responseCode = wrapper.responseCode;
+        rateLimitQuota = wrapper.rateLimitQuota;
+        rateLimitRemaining = wrapper.rateLimitRemaining;
+        rateLimitReset = wrapper.rateLimitReset;
+        _length = 0;
+        int len;
+        while (true) {
+            if (_length == _buffer.length) {
+                byte[] grown = new byte[_buffer.length << 1];
+                System.arraycopy(_buffer, 0, grown, 0, _length);
+                _buffer = grown;
+            }
+            len = body.read(_buffer, _length, _buffer.length - _length);
+            if (len < 0) {
+                break;
+            }
+            _length += len;
+        }
+    }
+
+    /**
+     * 放回池中，池满时丢弃。同一对象只能 recycle 一次
+     */
+    public void recycle() {
+        if (_recycled) {
+            throw new IllegalStateException("CompactResponse is already recycled");
+        }
+        _recycled = true;
+        responseCode = 0;
+        rateLimitQuota = 0;
+        rateLimitRemaining = 0;
+        rateLimitReset = 0;
+        _length = 0;
+        if (_buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            _buffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            if (_pool.compareAndSet((start + i) & (POOL_SIZE - 1), null, this)) {
+                return;
+            }
+        }
+    }
+
+    public boolean isResultOK() {
+        return responseCode / 100 == 2;
+    }
+
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    public int getContentLength() {
+        return _length;
+    }
+
+    /**
+     * @return 只读的响应体，不拷贝，recycle 之后失效
+     */
+    public ByteBuffer getContent() {
+        return ByteBuffer.wrap(_buffer, 0, _length).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return 把响应体复制到 dest 的 offset 处
+     */
+    public int getContent(byte[] dest, int offset) {
+        System.arraycopy(_buffer, 0, dest, offset, _length);
+        return _length;
+    }
+
+    /**
+     * 解码成字符串，会分配新的 String，只在需要时调用
+     */
+    public String getContentString() {
+        return new String(_buffer, 0, _length, UTF_8);
+    }
+
+    /**
+     * @return 直接读取响应体的 JsonReader，recycle 之后失效
+     */
+    public JsonReader newJsonReader() {
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(_buffer, 0, _length), UTF_8));
+        reader.setLenient(true);
+        return reader;
+    }
+
+    @Override
+    public int getRateLimitQuota() {
+        return rateLimitQuota;
+    }
+
+    @Override
+    public int getRateLimitRemaining() {
+        return rateLimitRemaining;
+    }
+
+    @Override
+    public int getRateLimitReset() {
+        return rateLimitReset;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactResponse{responseCode=" + responseCode + ", contentLength=" + _length + "}";
+    }
+}
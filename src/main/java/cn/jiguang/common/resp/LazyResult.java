@@ -0,0 +1,201 @@
+package cn.jiguang.common.resp;
+
+import cn.jiguang.common.connection.ResponseBodyHandler;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 延迟解析的结果：响应体以 UTF-8 字节保存，不转成 String，读取某个字段时才扫描响应体，只解析这个字段的值，
+ * 其他字段跳过不创建对象。用于报表查询等较大、但通常只读 isResultOK() 和少数字段的响应。
+ * <pre>
+ * LazyResult result = client.sendStreaming(RequestMethod.GET, url, null, LazyResult.bodyHandler());
+ * long total = result.getLong("total", 0);
+ * </pre>
+ * 需要完整结果时用 as 按 ResultTypeAdapters 解析。字段只能是响应顶层对象的字段，读过的字段会缓存。
+ */
+public class LazyResult extends BaseResult {
+
+    private static final long serialVersionUID = -2604437317520883106L;
+    private static final byte[] EMPTY = new byte[0];
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] _body;
+    private transient Map<String, JsonElement> _fields;
+
+    /**
+     * 空响应体，供 BaseResult.fromResponse(wrapper, LazyResult.class) 在内容为空时使用
+     */
+    protected LazyResult() {
+        this(null, EMPTY);
+    }
+
+    protected LazyResult(ResponseWrapper responseWrapper, byte[] body) {
+        this._body = null == body ? EMPTY : body;
+        setResponseWrapper(responseWrapper);
+    }
+
+    /**
+     * 把 responseContent 转为 UTF-8 字节后置为 null，结果只保留字节；getOriginalContent 时再解码。
+     */
+    public static LazyResult fromResponse(ResponseWrapper responseWrapper) {
+        byte[] body = null;
+        if (responseWrapper.isServerResponse() && null != responseWrapper.responseContent) {
+            body = responseWrapper.responseContent.getBytes(UTF_8);
+            responseWrapper.responseContent = null;
+        }
+        return new LazyResult(responseWrapper, body);
+    }
+
+    /**
+     * 把响应体读成字节，不经过 String
+     */
+    public static LazyResult fromStream(ResponseWrapper responseWrapper, InputStream body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] buff = new byte[4096];
+        int len;
+        while ((len = body.read(buff)) > 0) {
+            out.write(buff, 0, len);
+        }
+        return new LazyResult(responseWrapper, out.toByteArray());
+    }
+
+    /**
+     * @return 用 fromStream 读取响应的 ResponseBodyHandler，供 IStreamingHttpClient 使用
+     */
+    public static ResponseBodyHandler<LazyResult> bodyHandler() {
+        return new ResponseBodyHandler<LazyResult>() {
+            @Override
+            public LazyResult handle(ResponseWrapper wrapper, InputStream body) throws IOException {
+                return fromStream(wrapper, body);
+            }
+        };
+    }
+
+    /**
+     * @return 响应体的字节数
+     */
+    public int getContentLength() {
+        return _body.length;
+    }
+
+    @Override
+    public String getOriginalContent() {
+        String content = super.getOriginalContent();
+        if (null != content || _body.length == 0) {
+            return content;
+        }
+        return new String(_body, UTF_8);
+    }
+
+    public boolean has(String name) {
+        return null != get(name);
+    }
+
+    /**
+     * @return 顶层字段 name 的值，没有这个字段或响应体不是对象时为 null
+     * @throws JsonSyntaxException 响应体格式错误
+     */
+    public synchronized JsonElement get(String name) {
+        if (null == _fields) {
+            _fields = new HashMap<String, JsonElement>();
+        } else if (_fields.containsKey(name)) {
+            return _fields.get(name);
+        }
+        JsonElement value = readField(name);
+        _fields.put(name, value);
+        return value;
+    }
+
+    public String getString(String name) {
+        JsonElement value = get(name);
+        return null == value || value.isJsonNull() ? null : value.getAsString();
+    }
+
+    public long getLong(String name, long defaultValue) {
+        JsonPrimitive value = getPrimitive(name);
+        return null == value ? defaultValue : value.getAsLong();
+    }
+
+    public int getInt(String name, int defaultValue) {
+        JsonPrimitive value = getPrimitive(name);
+        return null == value ? defaultValue : value.getAsInt();
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        JsonPrimitive value = getPrimitive(name);
+        return null == value ? defaultValue : value.getAsBoolean();
+    }
+
+    /**
+     * 用 Gson 把字段 name 的值转为 clazz，只解析这个字段
+     */
+    public <T> T get(String name, Class<T> clazz) {
+        JsonElement value = get(name);
+        return null == value ? null : _gson.fromJson(value, clazz);
+    }
+
+    /**
+     * 解析完整的结果，与 BaseResult.fromStream 相同
+     */
+    public <T extends BaseResult> T as(Class<T> clazz) {
+        ResponseWrapper wrapper = getResponseWrapper();
+        T result = null;
+        if (_body.length > 0) {
+            result = ResultTypeAdapters.read(clazz, new InputStreamReader(new ByteArrayInputStream(_body), UTF_8));
+        }
+        if (null == result) {
+            result = ResultTypeAdapters.getAdapter(clazz).newInstance();
+        }
+        result.setResponseWrapper(wrapper);
+        return result;
+    }
+
+    private JsonPrimitive getPrimitive(String name) {
+        JsonElement value = get(name);
+        return null != value && value.isJsonPrimitive() ? value.getAsJsonPrimitive() : null;
+    }
+
+    private JsonElement readField(String name) {
+        if (_body.length == 0) {
+            return null;
+        }
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(_body), UTF_8));
+        reader.setLenient(true);
+        try {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (name.equals(reader.nextName())) {
+                    return new JsonParser().parse(reader);
+                }
+                reader.skipValue();
+            }
+            return null;
+        } catch (IOException e) {
+            throw new JsonSyntaxException(e);
+        } catch (IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        String content = getOriginalContent();
+        return null == content ? "" : content;
+    }
+}
@@ -1,24 +1,22 @@
 package cn.jiguang.common.resp;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.StringReader;
 
-public class ResponseWrapper implements Serializable {
+public class ResponseWrapper implements IRateLimiting, Serializable {
 
     private static final Logger LOG = LoggerFactory.getLogger(ResponseWrapper.class);
     private static final int RESPONSE_CODE_NONE = -1;
     private static final long serialVersionUID = -4227962073448507865L;
 
     private static Gson _gson = new Gson();
-    private static JsonParser jsonParser = new JsonParser();
     
     public int responseCode = RESPONSE_CODE_NONE;
     public String responseContent;
@@ -43,47 +41,108 @@ public class ResponseWrapper implements Serializable {
         }
     }
     
+    /**
+     * 从错误响应中读取 msg_id、code 和 message。用 JsonReader 流式读取，读到需要的字段后不再解析后面的内容；
+     * 响应是数组时取第一个带 error 的元素。
+     */
     public void setErrorObject() {
         error = new ErrorObject();
         error.error = new ErrorEntity();
+        if (null == responseContent || responseContent.isEmpty()) {
+            return;
+        }
+        JsonReader reader = new JsonReader(new StringReader(responseContent));
+        reader.setLenient(true);
         try {
-            JsonElement element = jsonParser.parse(responseContent);
-            JsonObject errorObj = null;
-            if( element instanceof JsonArray) {
-                JsonArray array = (JsonArray) element;
-                for(int i = 0; i < array.size(); i++) {
-                    if(array.get(i).getAsJsonObject().has("error")) {
-                        errorObj = array.get(i).getAsJsonObject();
+            JsonToken token = reader.peek();
+            if (token == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                    } else if (readErrorObject(reader, true)) {
                         break;
                     }
                 }
-            } else if(element instanceof JsonObject) {
-                errorObj = (JsonObject) element;
-            } else {
-                // nothing
-            }
-            if(null != errorObj) {
-                JsonObject errorMsg = errorObj;
-                if(errorObj.has("msg_id")) {
-                    error.msg_id = errorObj.get("msg_id").getAsLong();
-                }
-                if (errorObj.has("error")) {
-                    errorMsg = (JsonObject) errorObj.get("error");
-                }
-                if(errorMsg.has("code")) {
-                    error.error.code = errorMsg.get("code").getAsInt();
-                }
-                if(errorMsg.has("message")) {
-                    error.error.message = errorMsg.get("message").getAsString();
-                }
+            } else if (token == JsonToken.BEGIN_OBJECT) {
+                readErrorObject(reader, false);
             }
-        } catch(JsonSyntaxException e) {
-            LOG.error("Unexpected - responseContent:" + responseContent, e);
         } catch (Exception e) {
             LOG.error("Unexpected - responseContent:" + responseContent, e);
         }
     }
-    
+
+    /**
+     * 读取一个对象中的错误信息，code 和 message 在 error 对象中，没有 error 时取对象本身的。
+     * 读到 error 和 msg_id 后直接返回，不再读完这个对象。
+     * @param requireError 数组元素没有 error 时不采用，此时已读完该元素
+     * @return 是否采用了这个对象
+     */
+    private boolean readErrorObject(JsonReader reader, boolean requireError) throws IOException {
+        long msgId = 0;
+        boolean hasMsgId = false;
+        boolean hasError = false;
+        int code = 0;
+        String message = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("msg_id".equals(name) && reader.peek() != JsonToken.NULL) {
+                msgId = reader.nextLong();
+                hasMsgId = true;
+            } else if ("error".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                hasError = true;
+                readErrorEntity(reader);
+            } else if (!hasError && "code".equals(name) && reader.peek() != JsonToken.NULL) {
+                code = reader.nextInt();
+            } else if (!hasError && "message".equals(name) && reader.peek() != JsonToken.NULL) {
+                message = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+            if (hasError && hasMsgId) {
+                break;
+            }
+        }
+        if (!hasError) {
+            if (requireError) {
+                reader.endObject();
+                return false;
+            }
+            error.error.code = code;
+            error.error.message = message;
+        }
+        error.msg_id = msgId;
+        return true;
+    }
+
+    private void readErrorEntity(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("code".equals(name) && reader.peek() != JsonToken.NULL) {
+                error.error.code = reader.nextInt();
+            } else if ("message".equals(name) && reader.peek() != JsonToken.NULL) {
+                error.error.message = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    public int getRateLimitQuota() {
+        return rateLimitQuota;
+    }
+
+    public int getRateLimitRemaining() {
+        return rateLimitRemaining;
+    }
+
+    public int getRateLimitReset() {
+        return rateLimitReset;
+    }
+
     public boolean isServerResponse() {
         if (responseCode / 100 == 2) return true;
         if (responseCode > 0 && null != error && error.error.code > 0) return true;
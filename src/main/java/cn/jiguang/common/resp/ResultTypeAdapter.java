@@ -0,0 +1,68 @@
+package cn.jiguang.common.resp;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * BaseResult 子类的手写 TypeAdapter，注册到 ResultTypeAdapters 后 fromResponse、fromStream 不再通过反射创建和填充结果。
+ * <p>
+ * 子类实现 newInstance，并在 readField 中读取自己的 @Expose 字段，未读取的字段被跳过。
+ * 写出仍使用 BaseResult 的 Gson，只在 toString 时用到。
+ */
+public abstract class ResultTypeAdapter<T extends BaseResult> extends TypeAdapter<T> {
+
+    public abstract T newInstance();
+
+    /**
+     * @param name 字段名
+     * @return 是否读取了这个字段的值，返回 false 时值被跳过
+     */
+    protected boolean readField(JsonReader in, String name, T result) throws IOException {
+        return false;
+    }
+
+    @Override
+    public T read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        T result = newInstance();
+        in.beginObject();
+        while (in.hasNext()) {
+            if (!readField(in, in.nextName(), result)) {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return result;
+    }
+
+    @Override
+    public void write(JsonWriter out, T value) throws IOException {
+        if (null == value) {
+            out.nullValue();
+            return;
+        }
+        BaseResult._gson.toJson(value, value.getClass(), out);
+    }
+
+    /**
+     * 与 Gson 读取 boolean 字段一致：null 保留默认值，字符串按 Boolean.parseBoolean
+     */
+    protected static boolean nextBoolean(JsonReader in, boolean defaultValue) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return defaultValue;
+        }
+        if (token == JsonToken.STRING) {
+            return Boolean.parseBoolean(in.nextString());
+        }
+        return in.nextBoolean();
+    }
+}
@@ -0,0 +1,175 @@
+package cn.jiguang.common.resp;
+
+import cn.jiguang.common.utils.Preconditions;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * BaseResult 子类的 TypeAdapter 注册表，fromResponse、fromStream 按结果类型取出后直接解析。
+ * <p>
+ * 注册了 ResultTypeAdapter 的类型不经过反射；其他类型第一次用到时取 Gson 的反射 adapter 和无参构造器缓存下来，
+ * 之后不再查找。下游 client 的结果类型可以在类加载时注册：
+ * <pre>
+ * ResultTypeAdapters.register(PushResult.class, new ResultTypeAdapter&lt;PushResult&gt;() {...});
+ * </pre>
+ * 缓存以 Class 为键（JDK 6 没有 ClassValue），结果类型一般随 client 一起加载，数量固定。
+ */
+public final class ResultTypeAdapters {
+
+    private static final ConcurrentMap<Class<?>, ResultTypeAdapter<?>> _adapters =
+            new ConcurrentHashMap<Class<?>, ResultTypeAdapter<?>>();
+
+    static {
+        register(DefaultResult.class, new ResultTypeAdapter<DefaultResult>() {
+            @Override
+            public DefaultResult newInstance() {
+                return new DefaultResult();
+            }
+        });
+        register(BooleanResult.class, new ResultTypeAdapter<BooleanResult>() {
+            @Override
+            public BooleanResult newInstance() {
+                return new BooleanResult();
+            }
+
+            @Override
+            protected boolean readField(JsonReader in, String name, BooleanResult result) throws IOException {
+                if ("result".equals(name)) {
+                    result.result = nextBoolean(in, result.result);
+                    return true;
+                }
+                return false;
+            }
+        });
+        // LazyResult 保留整个响应体，不按字段解析。BaseResult.fromResponse 和 fromStream 直接用原始响应体创建，
+        // 不经过这里；这里只用于 LazyResult 嵌在其他 JSON 中的情况
+        register(LazyResult.class, new ResultTypeAdapter<LazyResult>() {
+            @Override
+            public LazyResult newInstance() {
+                return new LazyResult();
+            }
+
+            @Override
+            public LazyResult read(JsonReader in) throws IOException {
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    return null;
+                }
+                return new LazyResult(null, new JsonParser().parse(in).toString().getBytes(LazyResult.UTF_8));
+            }
+
+            @Override
+            public void write(JsonWriter out, LazyResult value) throws IOException {
+                String content = null == value ? null : value.getOriginalContent();
+                if (null == content) {
+                    out.nullValue();
+                    return;
+                }
+                BaseResult._gson.toJson(new JsonParser().parse(content), out);
+            }
+        });
+    }
+
+    private ResultTypeAdapters() {
+    }
+
+    /**
+     * 注册或替换 clazz 的 adapter，只对 clazz 本身生效，子类需要单独注册
+     */
+    public static <T extends BaseResult> void register(Class<T> clazz, ResultTypeAdapter<T> adapter) {
+        Preconditions.checkArgument(null != clazz, "clazz should not be null");
+        Preconditions.checkArgument(null != adapter, "adapter should not be null");
+        _adapters.put(clazz, adapter);
+    }
+
+    /**
+     * @return 注册的 adapter；没有注册时为缓存的反射 adapter
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends BaseResult> ResultTypeAdapter<T> getAdapter(Class<T> clazz) {
+        ResultTypeAdapter<T> adapter = (ResultTypeAdapter<T>) _adapters.get(clazz);
+        if (null == adapter) {
+            ResultTypeAdapter<T> created = new ReflectiveAdapter<T>(clazz);
+            adapter = (ResultTypeAdapter<T>) _adapters.putIfAbsent(clazz, created);
+            if (null == adapter) {
+                adapter = created;
+            }
+        }
+        return adapter;
+    }
+
+    /**
+     * 按 Gson.fromJson 的方式读取：宽松模式，空文档返回 null，格式错误抛出 JsonSyntaxException
+     */
+    static <T extends BaseResult> T read(Class<T> clazz, Reader content) {
+        JsonReader reader = new JsonReader(content);
+        reader.setLenient(true);
+        try {
+            reader.peek();
+            return getAdapter(clazz).read(reader);
+        } catch (EOFException e) {
+            // 空文档
+            return null;
+        } catch (IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        } catch (IOException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * 没有注册的类型：读写委托给 Gson 的反射 adapter，实例用缓存的无参构造器创建
+     */
+    private static class ReflectiveAdapter<T extends BaseResult> extends ResultTypeAdapter<T> {
+
+        private final TypeAdapter<T> _delegate;
+        private final Constructor<T> _constructor;
+
+        ReflectiveAdapter(Class<T> clazz) {
+            this._delegate = BaseResult._gson.getAdapter(clazz);
+            Constructor<T> constructor = null;
+            try {
+                constructor = clazz.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                // newInstance 时再报错，只用于解析时不影响
+            } catch (SecurityException e) {
+                // 同上
+            }
+            this._constructor = constructor;
+        }
+
+        @Override
+        public T newInstance() {
+            if (null == _constructor) {
+                throw new IllegalArgumentException("No accessible no-arg constructor");
+            }
+            try {
+                return _constructor.newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        @Override
+        public T read(JsonReader in) throws IOException {
+            return _delegate.read(in);
+        }
+
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+            _delegate.write(out, value);
+        }
+    }
+}
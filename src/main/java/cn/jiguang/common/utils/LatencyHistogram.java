@@ -0,0 +1,99 @@
+package cn.jiguang.common.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的延迟直方图，记录时只做几次原子自增，可在多线程下高频调用。
+ * <p>
+ * 以微秒为精度按对数分桶：每个 2 的幂区间再等分为 32 个桶，相对误差不超过约 3%，最大可记录约 19 小时。
+ * 分位数查询会遍历所有桶，得到的是近似值，适合定期导出 p50/p99 等指标。
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // 最大记录 2^37 - 1 微秒
+    private static final int MAX_EXPONENT = 36;
+    private static final long MAX_MICROS = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _sumMicros = new AtomicLong();
+    private final AtomicLong _maxMicros = new AtomicLong();
+
+    /**
+     * @param nanos 耗时，纳秒，负数会被忽略
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        long micros = Math.min(nanos / 1000, MAX_MICROS);
+        _buckets.incrementAndGet(indexOf(micros));
+        _count.incrementAndGet();
+        _sumMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = _maxMicros.get())) {
+            if (_maxMicros.compareAndSet(max, micros)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return _count.get();
+    }
+
+    /**
+     * @return 平均耗时，纳秒，没有记录时为 0
+     */
+    public long getMeanNanos() {
+        long count = _count.get();
+        return count == 0 ? 0 : _sumMicros.get() / count * 1000;
+    }
+
+    public long getMaxNanos() {
+        return _maxMicros.get() * 1000;
+    }
+
+    /**
+     * @param percentile 0 - 100，如 99 表示 p99
+     * @return 该分位的耗时上界，纳秒，没有记录时为 0
+     */
+    public long getValueAtPercentile(double percentile) {
+        Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "percentile should be in [0, 100]");
+        long count = _count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += _buckets.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), _maxMicros.get()) * 1000;
+            }
+        }
+        return getMaxNanos();
+    }
+
+    private static int indexOf(long micros) {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + sub;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        long sub = index % SUB_BUCKET_COUNT;
+        return ((SUB_BUCKET_COUNT + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -12,7 +12,7 @@ public class StringUtils {
 
 	private static Pattern pattern = Pattern.compile("^(1[34578][0-9])(\\d{4})(\\d{4})$");
 
-	private static String byteArrayToHexString(byte[] b) {
+	public static String byteArrayToHexString(byte[] b) {
 		StringBuffer resultSb = new StringBuffer();
 		for (int i = 0; i < b.length; i++) {
 			resultSb.append(byteToHexString(b[i]));